@@ -10,6 +10,12 @@ repositories {
     jcenter()
 }
 
+// JMH benchmarks live in src/jmh/java and see the main classes
+val jmh by sourceSets.creating {
+    compileClasspath += sourceSets["main"].output + sourceSets["main"].compileClasspath
+    runtimeClasspath += output + compileClasspath + sourceSets["main"].runtimeClasspath
+}
+
 dependencies {
     // Our beloved one-nio
     compile("ru.odnoklassniki:one-nio:1.0.2")
@@ -17,19 +23,54 @@ dependencies {
     // Annotations for better code documentation
     compile("com.intellij:annotations:12.0")
 
+    // Latency histograms of the load generator
+    compile("org.hdrhistogram:HdrHistogram:2.1.10")
+
     // JUnit 5
     testImplementation("org.junit.jupiter:junit-jupiter-api:5.3.1")
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.3.1")
 
     // Guava for tests
     testCompile("com.google.guava:guava:23.1-jre")
+
+    // JMH for benchmarks
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.21")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.21")
 }
 
 tasks {
+    // Arena accesses the off-heap memtables atomically with sun.misc.Unsafe on purpose,
+    // javac reads the JDK classes instead of ct.sym so that it doesn't warn about them
+    withType<JavaCompile> {
+        options.compilerArgs.add("-XDignore.symbol.file")
+    }
+
     "test"(Test::class) {
         maxHeapSize = "128m"
         useJUnitPlatform()
     }
+
+    // E.g. gradle load -Pload.args="workload=get replicas=2/3 connections=4 rate=5000 report=build/load.txt"
+    register("load", JavaExec::class) {
+        description = "Applies a workload to the running cluster, see ru.mail.polis.LoadGenerator"
+        group = "application"
+        classpath = sourceSets["main"].runtimeClasspath
+        main = "ru.mail.polis.LoadGenerator"
+        args = findProperty("load.args")?.toString()?.split(" ")?.filter { it.isNotEmpty() } ?: emptyList()
+    }
+
+    // E.g. gradle jmh -Pjmh.include=KVDaoBenchmark -Pjmh.args="-p valueSize=1024"
+    register("jmh", JavaExec::class) {
+        description = "Runs the JMH benchmarks and saves the results to build/reports/jmh"
+        group = "verification"
+        classpath = jmh.runtimeClasspath
+        main = "org.openjdk.jmh.Main"
+        val report = file("$buildDir/reports/jmh/results.json")
+        doFirst { report.parentFile.mkdirs() }
+        args = listOf("-rf", "json", "-rff", report.path) +
+                (findProperty("jmh.args")?.toString()?.split(" ")?.filter { it.isNotEmpty() } ?: emptyList()) +
+                (findProperty("jmh.include")?.toString() ?: ".*Benchmark.*")
+    }
 }
 
 application {
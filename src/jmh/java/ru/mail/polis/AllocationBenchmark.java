@@ -0,0 +1,218 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes allocated per request by a single node {@link KVService}, run with the GC profiler:
+ * <pre>
+ * gradle jmh -Pjmh.include=AllocationBenchmark -Pjmh.args="-prof gc"
+ * </pre>
+ * The client reuses its request and response buffers, so {@code gc.alloc.rate.norm} is
+ * what the service allocates per request. A copy of the value per request would
+ * show up as at least {@code valueSize} bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+@Threads(1)
+public class AllocationBenchmark {
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"1024", "16384"})
+    public int valueSize;
+
+    @Param({"lsm", "hash"})
+    public String engine;
+
+    private File data;
+    private KVDao dao;
+    private KVService storage;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private byte[] get;
+    private byte[] put;
+    private byte[] response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final int port = freePort();
+        // Every trial runs in a fork of its own
+        System.setProperty("kv.engine", engine);
+        data = Files.createTempDirectory();
+        dao = KVDaoFactory.create(data);
+        storage = KVServiceFactory.create(port, dao, Collections.singleton("http://localhost:" + port));
+        storage.start();
+
+        socket = connect(port);
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+
+        final byte[] value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        final String path = "/v0/entity?id=key";
+        get = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        final ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(
+                ("PUT " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + valueSize + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+        request.write(value);
+        put = request.toByteArray();
+        response = new byte[valueSize + 4096];
+
+        check(put(), 201);
+        check(get(), 200);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        storage.stop();
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 0), 1);
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Waits for the service to accept connections
+     */
+    private static Socket connect(final int port) throws Exception {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(1);
+        while (true) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static int check(
+            final int status,
+            final int expected) {
+        if (status != expected) {
+            throw new IllegalStateException("Unexpected status " + status);
+        }
+        return status;
+    }
+
+    /**
+     * Sends the request and reads the whole response into the reused buffer
+     *
+     * @return the status of the response
+     */
+    private int exchange(final byte[] request) throws IOException {
+        out.write(request);
+        out.flush();
+
+        int length = 0;
+        int headers = -1;
+        while (headers < 0) {
+            length += read(length);
+            headers = endOfHeaders(length);
+        }
+        final int total = headers + contentLength(headers);
+        while (length < total) {
+            length += read(length);
+        }
+        // The status code follows "HTTP/1.1 "
+        return (response[9] - '0') * 100 + (response[10] - '0') * 10 + (response[11] - '0');
+    }
+
+    private int read(final int offset) throws IOException {
+        final int read = in.read(response, offset, response.length - offset);
+        if (read < 0) {
+            throw new EOFException();
+        }
+        return read;
+    }
+
+    /**
+     * @return the offset of the body or -1 if the headers haven't been read yet
+     */
+    private int endOfHeaders(final int length) {
+        for (int i = 3; i < length; i++) {
+            if (response[i] == '\n' && response[i - 1] == '\r' && response[i - 2] == '\n' && response[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int contentLength(final int headers) {
+        for (int i = 0; i + CONTENT_LENGTH.length < headers; i++) {
+            if (startsWith(i)) {
+                int result = 0;
+                for (int j = i + CONTENT_LENGTH.length; response[j] != '\r'; j++) {
+                    if (response[j] != ' ') {
+                        result = result * 10 + response[j] - '0';
+                    }
+                }
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private boolean startsWith(final int offset) {
+        for (int i = 0; i < CONTENT_LENGTH.length; i++) {
+            if (Character.toLowerCase(response[offset + i]) != CONTENT_LENGTH[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        return check(exchange(get), 200);
+    }
+
+    @Benchmark
+    public int put() throws IOException {
+        return check(exchange(put), 201);
+    }
+}
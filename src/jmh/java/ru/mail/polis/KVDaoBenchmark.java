@@ -0,0 +1,138 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the {@link KVDao} operations on a prefilled storage.
+ * <p>
+ * The storage holds about {@link #DATA_SIZE} bytes whatever the value size, so
+ * that larger values mean fewer keys. The benchmarks are run by 1, 2 and 4
+ * threads sharing a single storage, see the nested classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public abstract class KVDaoBenchmark {
+    private static final long DATA_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * 1 KB is the value size of the tests, 128 KB values are stored as blobs
+     */
+    @Param({"1024", "16384", "131072"})
+    public int valueSize;
+
+    @Param({KeyDistribution.UNIFORM, KeyDistribution.ZIPFIAN, KeyDistribution.SEQUENTIAL})
+    public String distribution;
+
+    /**
+     * The ordered engine against the hash-indexed one, see {@code kv.engine}
+     */
+    @Param({"lsm", "hash"})
+    public String engine;
+
+    private File data;
+    private KVDao dao;
+    private byte[][] keys;
+    private byte[] value;
+
+    /**
+     * Keys picked by a benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int thread;
+        private int threads;
+        private KeyDistribution keys;
+
+        @Setup(Level.Trial)
+        public void setUp(final ThreadParams params) {
+            thread = params.getThreadIndex();
+            threads = params.getThreadCount();
+            keys = null;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Every trial runs in a fork of its own
+        System.setProperty("kv.engine", engine);
+        data = Files.createTempDirectory();
+        dao = KVDaoFactory.create(data);
+        keys = new byte[(int) (DATA_SIZE / valueSize)][];
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = String.format("key%010d", i).getBytes(StandardCharsets.UTF_8);
+            dao.upsert(keys[i], value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    @Benchmark
+    public byte[] get(final Cursor cursor) throws IOException {
+        try {
+            return dao.get(next(cursor));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public void upsert(final Cursor cursor) throws IOException {
+        dao.upsert(next(cursor), value);
+    }
+
+    @Benchmark
+    public void remove(final Cursor cursor) throws IOException {
+        dao.remove(next(cursor));
+    }
+
+    private byte[] next(final Cursor cursor) {
+        if (cursor.keys == null) {
+            // The thread state is set up before the parameters of the benchmark are known to it
+            cursor.keys = KeyDistribution.of(distribution, keys.length, cursor.thread, cursor.threads);
+        }
+        return keys[cursor.keys.next()];
+    }
+
+    @Threads(1)
+    public static class OneThread extends KVDaoBenchmark {
+    }
+
+    @Threads(2)
+    public static class TwoThreads extends KVDaoBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends KVDaoBenchmark {
+    }
+}
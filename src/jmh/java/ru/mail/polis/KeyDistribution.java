@@ -0,0 +1,119 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Order in which a benchmark thread picks the keys out of {@code count} ones
+ */
+abstract class KeyDistribution {
+    static final String UNIFORM = "uniform";
+    static final String ZIPFIAN = "zipfian";
+    static final String SEQUENTIAL = "sequential";
+
+    /**
+     * @return the index of the next key
+     */
+    abstract int next();
+
+    /**
+     * @param thread  index of the benchmark thread, so that sequential threads start apart
+     * @param threads number of the benchmark threads
+     */
+    @NotNull
+    static KeyDistribution of(
+            @NotNull final String name,
+            final int count,
+            final int thread,
+            final int threads) {
+        switch (name) {
+            case UNIFORM:
+                return new Uniform(count);
+            case ZIPFIAN:
+                return new Zipfian(count);
+            case SEQUENTIAL:
+                return new Sequential(count, (int) ((long) count * thread / threads));
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + name);
+        }
+    }
+
+    private static final class Uniform extends KeyDistribution {
+        private final int count;
+
+        Uniform(final int count) {
+            this.count = count;
+        }
+
+        @Override
+        int next() {
+            return ThreadLocalRandom.current().nextInt(count);
+        }
+    }
+
+    private static final class Sequential extends KeyDistribution {
+        private final int count;
+        private int current;
+
+        Sequential(
+                final int count,
+                final int start) {
+            this.count = count;
+            this.current = start;
+        }
+
+        @Override
+        int next() {
+            final int result = current;
+            current = current + 1 == count ? 0 : current + 1;
+            return result;
+        }
+    }
+
+    /**
+     * Zipfian ranks as generated by YCSB, scattered over the keys so that the hot
+     * keys are not neighbours
+     */
+    private static final class Zipfian extends KeyDistribution {
+        private static final double THETA = 0.99;
+        private static final long SCATTER = 0x9E3779B97F4A7C15L;
+
+        private final int count;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+        private final double half;
+
+        Zipfian(final int count) {
+            this.count = count;
+            this.zetaN = zeta(count);
+            this.alpha = 1.0 / (1.0 - THETA);
+            this.eta = (1.0 - Math.pow(2.0 / count, 1.0 - THETA)) / (1.0 - zeta(2) / zetaN);
+            this.half = 1.0 + Math.pow(0.5, THETA);
+        }
+
+        private static double zeta(final int n) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1.0 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+
+        @Override
+        int next() {
+            final double u = ThreadLocalRandom.current().nextDouble();
+            final double uz = u * zetaN;
+            final long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < half) {
+                rank = 1;
+            } else {
+                rank = Math.min(count - 1, (long) (count * Math.pow(eta * u - eta + 1.0, alpha)));
+            }
+            return (int) Long.remainderUnsigned(rank * SCATTER, count);
+        }
+    }
+}
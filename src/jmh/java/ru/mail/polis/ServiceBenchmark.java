@@ -0,0 +1,123 @@
+package ru.mail.polis;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a single node {@link KVService} serving requests over loopback
+ * keep-alive connections, the client runs in the same JVM.
+ * <p>
+ * Compared to {@link KVDaoBenchmark}, it shows the cost of parsing, dispatching
+ * to the workers and sending the responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+@Threads(4)
+public class ServiceBenchmark {
+    private static final int KEYS = 4096;
+
+    @Param({"1024", "16384"})
+    public int valueSize;
+
+    @Param({"lsm", "hash"})
+    public String engine;
+
+    private File data;
+    private KVDao dao;
+    private KVService storage;
+    private HttpClient client;
+    private String[] paths;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final int port = freePort();
+        System.setProperty("kv.engine", engine);
+        data = Files.createTempDirectory();
+        dao = KVDaoFactory.create(data);
+        final String endpoint = "http://localhost:" + port;
+        storage = KVServiceFactory.create(port, dao, Collections.singleton(endpoint));
+        storage.start();
+        client = new HttpClient(new ConnectionString(endpoint + "?timeout=10000"));
+
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        paths = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            paths[i] = "/v0/entity?id=key" + i;
+            check(client.put(paths[i], value), 201);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        storage.stop();
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 0), 1);
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Response check(
+            final Response response,
+            final int status) {
+        if (response.getStatus() != status) {
+            throw new IllegalStateException("Unexpected status " + response.getStatus());
+        }
+        return response;
+    }
+
+    private String path() {
+        return paths[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+
+    @Benchmark
+    public Response get() throws Exception {
+        return check(client.get(path()), 200);
+    }
+
+    @Benchmark
+    public Response getAbsent() throws Exception {
+        return check(client.get("/v0/entity?id=absent"), 404);
+    }
+
+    @Benchmark
+    public Response put() throws Exception {
+        return check(client.put(path(), value), 201);
+    }
+}
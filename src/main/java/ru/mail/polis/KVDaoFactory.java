@@ -17,6 +17,10 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vana06.dao.DaoConfig;
+import ru.mail.polis.vana06.dao.HashDao;
+import ru.mail.polis.vana06.dao.LSMDao;
+import ru.mail.polis.vana06.dao.ShardedDao;
 
 import java.io.File;
 import java.io.IOException;
@@ -41,6 +45,20 @@ final class KVDaoFactory {
      */
     @NotNull
     static KVDao create(@NotNull final File data) throws IOException {
+        return create(data, DaoConfig.fromSystemProperties());
+    }
+
+    /**
+     * Construct a {@link KVDao} instance with the given tunables.
+     *
+     * @param data   local disk folder to persist the data to
+     * @param config tunables of the storage
+     * @return a storage instance
+     */
+    @NotNull
+    static KVDao create(
+            @NotNull final File data,
+            @NotNull final DaoConfig config) throws IOException {
         if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
@@ -53,7 +71,19 @@ final class KVDaoFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        // TODO: Implement me
-        throw new UnsupportedOperationException("Implement me!");
+        switch (config.engine()) {
+            case "lsm":
+                if (config.shards() > 1) {
+                    return new ShardedDao(data, config);
+                }
+                return new LSMDao(data, config);
+            case "hash":
+                if (config.shards() > 1) {
+                    throw new IllegalArgumentException("Hash engine isn't sharded");
+                }
+                return new HashDao(data, config);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + config.engine());
+        }
     }
 }
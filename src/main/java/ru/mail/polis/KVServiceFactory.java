@@ -17,6 +17,9 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
+import ru.mail.polis.vana06.service.KVServiceImpl;
+import ru.mail.polis.vana06.service.ServiceConfig;
 
 import java.io.IOException;
 import java.util.Set;
@@ -54,7 +57,10 @@ final class KVServiceFactory {
             throw new IllegalArgumentException("Port out of range");
         }
 
-        // TODO: Implement me
-        throw new UnsupportedOperationException("Implement me!");
+        if (!(dao instanceof StreamingKVDao)) {
+            throw new IllegalArgumentException("Streaming DAO is required");
+        }
+
+        return new KVServiceImpl(port, (StreamingKVDao) dao, topology, ServiceConfig.fromSystemProperties());
     }
 }
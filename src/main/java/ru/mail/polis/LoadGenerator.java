@@ -0,0 +1,384 @@
+package ru.mail.polis;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.HdrHistogram.Histogram;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Applies the stage 3 workloads to a running storage and reports the throughput and the latency.
+ * <p>
+ * Every connection is served by a thread of its own. With a target {@code rate} the
+ * requests are scheduled in advance (open loop), and the latency of a request is counted
+ * from the moment it was due rather than sent, so a stalled server isn't rewarded with
+ * fewer measured requests (coordinated omission). Without a rate every connection sends
+ * requests back to back (closed loop).
+ * <p>
+ * Arguments are {@code name=value} pairs, e.g.
+ * <pre>
+ * workload=mixed overwrite=true replicas=2/3 connections=4 rate=2000 duration=60
+ * </pre>
+ */
+public final class LoadGenerator {
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    private LoadGenerator() {
+        // Not instantiable
+    }
+
+    enum Workload {
+        PUT,
+        GET,
+        MIXED
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(1);
+            return;
+        }
+
+        final byte[] value = new byte[options.valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        final Keys keys = new Keys(options);
+        if (options.workload != Workload.PUT) {
+            System.out.println("Preloading " + options.keys + " keys");
+            preload(options, value);
+        }
+
+        System.out.println("Running " + options);
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        final long deadline = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        final List<Connection> connections = new ArrayList<>(options.connections);
+        for (int i = 0; i < options.connections; i++) {
+            connections.add(new Connection(i, options, keys, value, start, measureFrom, deadline));
+        }
+        for (final Connection connection : connections) {
+            connection.thread.start();
+        }
+
+        final Histogram latency = new Histogram(HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+        long ok = 0;
+        long failed = 0;
+        for (final Connection connection : connections) {
+            connection.thread.join();
+            latency.add(connection.latency);
+            ok += connection.ok;
+            failed += connection.failed;
+        }
+
+        report(System.out, options, ok, failed, latency);
+        if (options.report != null) {
+            // Results of consecutive runs are appended, so that a whole matrix ends up in a single file
+            try (PrintStream out = new PrintStream(new FileOutputStream(options.report, true), true, "UTF-8")) {
+                report(out, options, ok, failed, latency);
+                latency.outputPercentileDistribution(out, 1000.0);
+                out.println();
+            }
+        }
+    }
+
+    /**
+     * Writes all the keys, so that reads hit them
+     */
+    private static void preload(
+            @NotNull final Options options,
+            @NotNull final byte[] value) throws InterruptedException {
+        final AtomicLong next = new AtomicLong();
+        final List<Thread> threads = new ArrayList<>(options.connections);
+        for (int i = 0; i < options.connections; i++) {
+            final Thread thread = new Thread(() -> {
+                final HttpClient client = options.client();
+                try {
+                    for (long key = next.getAndIncrement(); key < options.keys; key = next.getAndIncrement()) {
+                        final int status = client.put(options.path(key), value).getStatus();
+                        if (status != 201) {
+                            throw new IllegalStateException("Can't preload key " + key + ": " + status);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException("Can't preload", e);
+                } finally {
+                    client.close();
+                }
+            }, "preload-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void report(
+            @NotNull final PrintStream out,
+            @NotNull final Options options,
+            final long ok,
+            final long failed,
+            @NotNull final Histogram latency) {
+        out.println(options);
+        out.printf("requests: %d ok, %d failed, %.1f ok/s%n", ok, failed, (double) ok / options.durationSeconds);
+        out.printf("latency ms: mean %.3f", latency.getMean() / 1000.0);
+        for (final double percentile : PERCENTILES) {
+            out.printf(" p%s %.3f", percentile == 99.9 ? "999" : String.valueOf((int) percentile),
+                    latency.getValueAtPercentile(percentile) / 1000.0);
+        }
+        out.printf(" max %.3f%n", latency.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Picks the keys of the requests.
+     * <p>
+     * With overwrite, keys are picked at random out of {@code keys} ones, so they repeat.
+     * Otherwise every {@code PUT} writes a new key and {@code GET}s walk the preloaded keys.
+     */
+    private static final class Keys {
+        private final long count;
+        private final boolean overwrite;
+        private final AtomicLong nextPut;
+        private final AtomicLong nextGet = new AtomicLong();
+
+        Keys(@NotNull final Options options) {
+            this.count = options.keys;
+            this.overwrite = options.overwrite;
+            // Fresh keys follow the preloaded ones
+            this.nextPut = new AtomicLong(options.workload == Workload.PUT ? 0 : options.keys);
+        }
+
+        long put() {
+            return overwrite ? ThreadLocalRandom.current().nextLong(count) : nextPut.getAndIncrement();
+        }
+
+        long get() {
+            return overwrite ? ThreadLocalRandom.current().nextLong(count) : nextGet.getAndIncrement() % count;
+        }
+    }
+
+    private static final class Connection implements Runnable {
+        @NotNull
+        private final Options options;
+        @NotNull
+        private final Keys keys;
+        @NotNull
+        private final byte[] value;
+        private final long start;
+        private final long measureFrom;
+        private final long deadline;
+        @NotNull
+        final Thread thread;
+        @NotNull
+        final Histogram latency = new Histogram(HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+        long ok;
+        long failed;
+
+        Connection(
+                final int index,
+                @NotNull final Options options,
+                @NotNull final Keys keys,
+                @NotNull final byte[] value,
+                final long start,
+                final long measureFrom,
+                final long deadline) {
+            this.options = options;
+            this.keys = keys;
+            this.value = value;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.deadline = deadline;
+            this.thread = new Thread(this, "load-" + index);
+        }
+
+        @Override
+        public void run() {
+            // Connections share the rate and start apart, so that the requests are evenly spread
+            final long interval = options.rate > 0 ? TimeUnit.SECONDS.toNanos(options.connections) / options.rate : 0;
+            long due = start + ThreadLocalRandom.current().nextLong(Math.max(1, interval));
+            final HttpClient client = options.client();
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    if (interval > 0) {
+                        while (now < due) {
+                            LockSupport.parkNanos(due - now);
+                            now = System.nanoTime();
+                        }
+                    } else {
+                        due = now;
+                    }
+                    if (due >= deadline) {
+                        return;
+                    }
+
+                    final boolean success = send(client);
+                    final long end = System.nanoTime();
+                    if (due >= measureFrom) {
+                        if (success) {
+                            ok++;
+                            latency.recordValue(Math.min(HIGHEST_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(end - due)));
+                        } else {
+                            failed++;
+                        }
+                    }
+                    due += interval;
+                }
+            } finally {
+                client.close();
+            }
+        }
+
+        private boolean send(@NotNull final HttpClient client) {
+            final boolean put;
+            switch (options.workload) {
+                case PUT:
+                    put = true;
+                    break;
+                case GET:
+                    put = false;
+                    break;
+                default:
+                    put = ThreadLocalRandom.current().nextBoolean();
+            }
+            try {
+                if (put) {
+                    return client.put(options.path(keys.put()), value).getStatus() == 201;
+                }
+                final Response response = client.get(options.path(keys.get()));
+                return response.getStatus() == 200 || response.getStatus() == 404;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+    private static final class Options {
+        static final String USAGE = "Arguments: [endpoint=http://localhost:8080] [workload=put|get|mixed]"
+                + " [overwrite=true|false] [replicas=ack/from] [connections=1] [rate=requests/s, 0 for closed loop]"
+                + " [duration=seconds] [warmup=seconds] [keys=count] [value=bytes] [timeout=ms] [report=file]";
+
+        String endpoint = "http://localhost:8080";
+        Workload workload = Workload.PUT;
+        boolean overwrite;
+        String replicas;
+        int connections = 1;
+        long rate;
+        long durationSeconds = 60;
+        long warmupSeconds = 10;
+        long keys = 100_000;
+        int valueSize = 1024;
+        int timeoutMs = 10_000;
+        String report;
+
+        @NotNull
+        static Options parse(@NotNull final String[] args) {
+            final Map<String, String> values = new HashMap<>();
+            for (final String arg : args) {
+                final int separator = arg.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Malformed argument " + arg);
+                }
+                values.put(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+
+            final Options options = new Options();
+            try {
+                for (final Map.Entry<String, String> entry : values.entrySet()) {
+                    final String value = entry.getValue();
+                    switch (entry.getKey()) {
+                        case "endpoint":
+                            options.endpoint = value;
+                            break;
+                        case "workload":
+                            options.workload = Workload.valueOf(value.toUpperCase());
+                            break;
+                        case "overwrite":
+                            options.overwrite = Boolean.parseBoolean(value);
+                            break;
+                        case "replicas":
+                            options.replicas = value;
+                            break;
+                        case "connections":
+                            options.connections = Integer.parseInt(value);
+                            break;
+                        case "rate":
+                            options.rate = Long.parseLong(value);
+                            break;
+                        case "duration":
+                            options.durationSeconds = Long.parseLong(value);
+                            break;
+                        case "warmup":
+                            options.warmupSeconds = Long.parseLong(value);
+                            break;
+                        case "keys":
+                            options.keys = Long.parseLong(value);
+                            break;
+                        case "value":
+                            options.valueSize = Integer.parseInt(value);
+                            break;
+                        case "timeout":
+                            options.timeoutMs = Integer.parseInt(value);
+                            break;
+                        case "report":
+                            options.report = value;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown argument " + entry.getKey());
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed number: " + e.getMessage(), e);
+            }
+
+            if (options.connections <= 0 || options.rate < 0 || options.durationSeconds <= 0
+                    || options.warmupSeconds < 0 || options.keys <= 0 || options.valueSize < 0) {
+                throw new IllegalArgumentException("Out of range: " + options);
+            }
+            return options;
+        }
+
+        @NotNull
+        HttpClient client() {
+            return new HttpClient(new ConnectionString(endpoint + "?timeout=" + timeoutMs));
+        }
+
+        @NotNull
+        String path(final long key) {
+            final String path = "/v0/entity?id=key" + key;
+            return replicas == null ? path : path + "&replicas=" + replicas;
+        }
+
+        @Override
+        public String toString() {
+            return "workload=" + workload.name().toLowerCase()
+                    + " overwrite=" + overwrite
+                    + " replicas=" + (replicas == null ? "default" : replicas)
+                    + " connections=" + connections
+                    + " rate=" + (rate == 0 ? "closed-loop" : rate + "/s")
+                    + " duration=" + durationSeconds + "s"
+                    + " keys=" + keys
+                    + " value=" + valueSize + "B";
+        }
+    }
+}
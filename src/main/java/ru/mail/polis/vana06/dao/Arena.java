@@ -0,0 +1,124 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size region of direct memory outside of the heap, allocated by bumping a pointer.
+ * <p>
+ * Memory is never freed piecemeal: the whole arena goes away together with the last
+ * buffer referencing it, so views handed out to readers stay valid. The ints of the
+ * arena may be accessed atomically, which is what lock-free structures within it need.
+ * <p>
+ * Java 8 has no public API for atomic access to direct memory, so {@link Unsafe} is used
+ * deliberately, and the build suppresses the warnings about the proprietary API.
+ */
+final class Arena {
+    static final int NONE = -1;
+
+    private static final int ALIGNMENT = Long.BYTES;
+    private static final Unsafe unsafe;
+    private static final long ADDRESS_OFFSET;
+
+    static {
+        try {
+            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+            ADDRESS_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Native order, so that plain and atomic accesses agree
+     */
+    @NotNull
+    private final ByteBuffer memory;
+    private final long address;
+    private final AtomicInteger used = new AtomicInteger();
+
+    Arena(final int capacity) {
+        this.memory = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        this.address = unsafe.getLong(memory, ADDRESS_OFFSET);
+    }
+
+    /**
+     * @return the offset of the {@code size} bytes aligned to 8 bytes or {@link #NONE} if they don't fit
+     */
+    int allocate(final int size) {
+        final int aligned = align(size);
+        while (true) {
+            final int current = used.get();
+            if (aligned > memory.capacity() - current) {
+                return NONE;
+            }
+            if (used.compareAndSet(current, current + aligned)) {
+                return current;
+            }
+        }
+    }
+
+    static int align(final int size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    int capacity() {
+        return memory.capacity();
+    }
+
+    /**
+     * @return the number of bytes allocated so far
+     */
+    int used() {
+        return used.get();
+    }
+
+    /**
+     * @return the memory for absolute access only, bytes written to it are published by a successful
+     * {@link #compareAndSet(int, int, int)} which makes them reachable
+     */
+    @NotNull
+    ByteBuffer memory() {
+        return memory;
+    }
+
+    int getIntVolatile(final int offset) {
+        return unsafe.getIntVolatile(null, address + offset);
+    }
+
+    boolean compareAndSet(
+            final int offset,
+            final int expected,
+            final int update) {
+        return unsafe.compareAndSwapInt(null, address + offset, expected, update);
+    }
+
+    /**
+     * Copies the remaining bytes of the source to the offset
+     */
+    void put(
+            final int offset,
+            @NotNull final ByteBuffer source) {
+        final ByteBuffer target = memory.duplicate();
+        target.position(offset);
+        target.put(source.duplicate());
+    }
+
+    /**
+     * @return a view of the bytes, which keeps the arena alive
+     */
+    @NotNull
+    ByteBuffer slice(
+            final int offset,
+            final int length) {
+        return Bytes.slice(memory, offset, length);
+    }
+}
@@ -0,0 +1,117 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Updates applied together by {@link StreamingKVDao#apply(Batch)}.
+ * <p>
+ * Updates without a timestamp are stamped when the batch is applied, in the
+ * order they were added, so a later update of the same key wins.
+ */
+public final class Batch {
+    static final long NOW = Long.MIN_VALUE;
+
+    @NotNull
+    private final List<Update> updates = new ArrayList<>();
+
+    @NotNull
+    public Batch upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value) {
+        return add(key, value, NOW, Value.NEVER);
+    }
+
+    @NotNull
+    public Batch upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value,
+            final long timestamp) {
+        return add(key, value, timestamp, Value.NEVER);
+    }
+
+    /**
+     * @param expiresAt the time in milliseconds since the epoch or {@link Value#NEVER}
+     */
+    @NotNull
+    public Batch upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value,
+            final long timestamp,
+            final long expiresAt) {
+        return add(key, value, timestamp, expiresAt);
+    }
+
+    @NotNull
+    public Batch remove(@NotNull final byte[] key) {
+        return add(key, null, NOW, Value.NEVER);
+    }
+
+    @NotNull
+    public Batch remove(
+            @NotNull final byte[] key,
+            final long timestamp) {
+        return add(key, null, timestamp, Value.NEVER);
+    }
+
+    @NotNull
+    private Batch add(
+            @NotNull final byte[] key,
+            @Nullable final byte[] value,
+            final long timestamp,
+            final long expiresAt) {
+        updates.add(new Update(key, value, timestamp, expiresAt));
+        return this;
+    }
+
+    /**
+     * Appends an update taken from another batch
+     */
+    @NotNull
+    Batch add(@NotNull final Update update) {
+        updates.add(update);
+        return this;
+    }
+
+    public int size() {
+        return updates.size();
+    }
+
+    public boolean isEmpty() {
+        return updates.isEmpty();
+    }
+
+    @NotNull
+    List<Update> updates() {
+        return updates;
+    }
+
+    static final class Update {
+        @NotNull
+        final byte[] key;
+        /**
+         * {@code null} for a tombstone
+         */
+        @Nullable
+        final byte[] value;
+        /**
+         * {@link #NOW} to stamp the update when it is applied
+         */
+        final long timestamp;
+        final long expiresAt;
+
+        Update(
+                @NotNull final byte[] key,
+                @Nullable final byte[] value,
+                final long timestamp,
+                final long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
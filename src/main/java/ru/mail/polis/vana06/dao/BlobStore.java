@@ -0,0 +1,123 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage of large values, one file per value, kept apart from the tables.
+ * <p>
+ * Tables store only a reference to a blob, so neither compaction nor the
+ * memtable copies large values around. A blob is written in chunks to a
+ * temporary file, which becomes visible atomically once complete.
+ * A blob is removed when the last version referencing it is dropped.
+ */
+final class BlobStore {
+    private static final String SUFFIX = ".blob";
+
+    @NotNull
+    private final File dir;
+    private final AtomicLong nextId = new AtomicLong();
+
+    BlobStore(@NotNull final File dir) throws IOException {
+        this.dir = dir;
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                final long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                nextId.set(Math.max(nextId.get(), id + 1));
+            } else if (name.contains(SSTable.TEMP_SUFFIX)) {
+                // Leftover of an interrupted upload
+                Files.delete(file.toPath());
+            }
+        }
+    }
+
+    @NotNull
+    Writer create() throws IOException {
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Can't create " + dir);
+        }
+        return new Writer(nextId.getAndIncrement());
+    }
+
+    /**
+     * @throws java.nio.file.NoSuchFileException if the blob has been removed
+     */
+    @NotNull
+    FileChannel open(final long id) throws IOException {
+        return FileChannel.open(file(id).toPath(), StandardOpenOption.READ);
+    }
+
+    void delete(final long id) throws IOException {
+        Files.deleteIfExists(file(id).toPath());
+    }
+
+    @NotNull
+    private File file(final long id) {
+        return new File(dir, id + SUFFIX);
+    }
+
+    /**
+     * Appends chunks of a new blob, which is discarded unless committed
+     */
+    final class Writer implements Closeable {
+        private final long id;
+        @NotNull
+        private final File temp;
+        @NotNull
+        private final FileChannel channel;
+        private long length;
+        private boolean committed;
+
+        private Writer(final long id) throws IOException {
+            this.id = id;
+            this.temp = new File(dir, id + SUFFIX + SSTable.TEMP_SUFFIX);
+            this.channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        void write(@NotNull final ByteBuffer chunk) throws IOException {
+            while (chunk.hasRemaining()) {
+                length += channel.write(chunk);
+            }
+        }
+
+        long length() {
+            return length;
+        }
+
+        /**
+         * Makes the blob durable and visible.
+         *
+         * @return the reference to store in a table as the version with the timestamp
+         */
+        @NotNull
+        Value commit(final long timestamp) throws IOException {
+            channel.force(true);
+            channel.close();
+            Files.move(temp.toPath(), file(id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            return Value.blob(id, length, timestamp);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+    }
+}
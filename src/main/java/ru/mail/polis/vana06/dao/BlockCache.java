@@ -0,0 +1,301 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of table blocks kept in direct memory outside of the heap.
+ * <p>
+ * The memory is split into shards of fixed size slots, each shard has its own lock.
+ * A shard allocates its memory with the first block put, so an idle cache costs nothing.
+ * Blocks larger than a slot are not cached. Eviction is segmented LRU: a block
+ * enters the probationary segment and is promoted to the protected one only
+ * on a repeated hit, so a stream of one-off reads can't wash out the hot blocks.
+ * <p>
+ * A block handed out by {@link #get} or {@link #put} is pinned and can't be
+ * evicted until it is {@link Block#release() released}.
+ */
+final class BlockCache {
+    private static final int SHARDS = 16;
+    private static final int NONE = -1;
+
+    /**
+     * Share of the slots reserved for blocks which have been hit at least twice
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final int slotSize;
+    @NotNull
+    private final Shard[] shards;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    BlockCache(
+            final long capacity,
+            final int slotSize) {
+        this.slotSize = slotSize;
+        final int slotsPerShard = (int) Math.min(Integer.MAX_VALUE / slotSize, capacity / slotSize / SHARDS);
+        this.shards = new Shard[slotsPerShard > 0 ? SHARDS : 0];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(slotsPerShard, slotSize);
+        }
+    }
+
+    /**
+     * @return the pinned block or {@code null} if it isn't cached
+     */
+    @Nullable
+    Block get(
+            final long generation,
+            final int blockIndex) {
+        if (shards.length == 0) {
+            return null;
+        }
+        final long key = key(generation, blockIndex);
+        final Block block = shard(key).get(key);
+        if (block == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return block;
+    }
+
+    /**
+     * Copies the block to the cache.
+     *
+     * @return the pinned cached copy or {@code null} if the block can't be cached
+     */
+    @Nullable
+    Block put(
+            final long generation,
+            final int blockIndex,
+            @NotNull final ByteBuffer data) {
+        if (shards.length == 0 || data.remaining() > slotSize) {
+            return null;
+        }
+        final long key = key(generation, blockIndex);
+        return shard(key).put(key, data);
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private static long key(
+            final long generation,
+            final int blockIndex) {
+        return generation << 32 | blockIndex & 0xFFFFFFFFL;
+    }
+
+    @NotNull
+    private Shard shard(final long key) {
+        final long mixed = key * 0x9E3779B97F4A7C15L;
+        return shards[(int) (mixed >>> 32) & (SHARDS - 1)];
+    }
+
+    /**
+     * A cached block which stays in place until released
+     */
+    static final class Block {
+        @NotNull
+        private final Shard shard;
+        private final int slot;
+        @NotNull
+        private final ByteBuffer data;
+
+        private Block(
+                @NotNull final Shard shard,
+                final int slot,
+                @NotNull final ByteBuffer data) {
+            this.shard = shard;
+            this.slot = slot;
+            this.data = data;
+        }
+
+        @NotNull
+        ByteBuffer data() {
+            return data;
+        }
+
+        void release() {
+            shard.unpin(slot);
+        }
+    }
+
+    private static final class Shard {
+        private static final byte PROBATION = 0;
+        private static final byte PROTECTED = 1;
+
+        /**
+         * Allocated on the first put
+         */
+        private ByteBuffer memory;
+        private final int slotSize;
+        private final int protectedCapacity;
+
+        private final Map<Long, Integer> slots = new HashMap<>();
+        private final long[] keys;
+        private final int[] sizes;
+        private final int[] pins;
+        private final byte[] segments;
+        private final int[] prev;
+        private final int[] next;
+
+        /**
+         * Heads are the most recently used slots, tails are the eviction candidates
+         */
+        private final int[] heads = {NONE, NONE};
+        private final int[] tails = {NONE, NONE};
+        private int protectedCount;
+        private int used;
+
+        Shard(
+                final int slotCount,
+                final int slotSize) {
+            this.slotSize = slotSize;
+            this.protectedCapacity = (int) (slotCount * PROTECTED_RATIO);
+            this.keys = new long[slotCount];
+            this.sizes = new int[slotCount];
+            this.pins = new int[slotCount];
+            this.segments = new byte[slotCount];
+            this.prev = new int[slotCount];
+            this.next = new int[slotCount];
+            Arrays.fill(prev, NONE);
+            Arrays.fill(next, NONE);
+        }
+
+        @Nullable
+        synchronized Block get(final long key) {
+            final Integer slot = slots.get(key);
+            if (slot == null) {
+                return null;
+            }
+            unlink(slot);
+            if (segments[slot] == PROBATION) {
+                promote(slot);
+            } else {
+                pushHead(PROTECTED, slot);
+            }
+            return pin(slot);
+        }
+
+        @Nullable
+        synchronized Block put(
+                final long key,
+                @NotNull final ByteBuffer data) {
+            final Integer existing = slots.get(key);
+            if (existing != null) {
+                // Loaded concurrently by another reader
+                return pin(existing);
+            }
+            final int slot = used < keys.length ? used++ : evict();
+            if (slot == NONE) {
+                return null;
+            }
+            if (memory == null) {
+                memory = ByteBuffer.allocateDirect(keys.length * slotSize);
+            }
+            keys[slot] = key;
+            sizes[slot] = data.remaining();
+            final ByteBuffer target = memory.duplicate();
+            target.position(slot * slotSize);
+            target.put(data.duplicate());
+            slots.put(key, slot);
+            segments[slot] = PROBATION;
+            pushHead(PROBATION, slot);
+            return pin(slot);
+        }
+
+        synchronized void unpin(final int slot) {
+            pins[slot]--;
+        }
+
+        @NotNull
+        private Block pin(final int slot) {
+            pins[slot]++;
+            return new Block(this, slot, Bytes.slice(memory, slot * slotSize, sizes[slot]).asReadOnlyBuffer());
+        }
+
+        private void promote(final int slot) {
+            segments[slot] = PROTECTED;
+            protectedCount++;
+            pushHead(PROTECTED, slot);
+            if (protectedCount > protectedCapacity) {
+                // Give the least recently used protected block another chance in probation
+                final int demoted = tails[PROTECTED];
+                unlink(demoted);
+                segments[demoted] = PROBATION;
+                protectedCount--;
+                pushHead(PROBATION, demoted);
+            }
+        }
+
+        /**
+         * @return a free slot or {@code NONE} if every slot is pinned
+         */
+        private int evict() {
+            int victim = unpinnedTail(PROBATION);
+            if (victim == NONE) {
+                victim = unpinnedTail(PROTECTED);
+            }
+            if (victim == NONE) {
+                return NONE;
+            }
+            unlink(victim);
+            if (segments[victim] == PROTECTED) {
+                protectedCount--;
+            }
+            slots.remove(keys[victim]);
+            return victim;
+        }
+
+        private int unpinnedTail(final byte segment) {
+            int slot = tails[segment];
+            while (slot != NONE && pins[slot] > 0) {
+                slot = prev[slot];
+            }
+            return slot;
+        }
+
+        private void pushHead(
+                final byte segment,
+                final int slot) {
+            prev[slot] = NONE;
+            next[slot] = heads[segment];
+            if (heads[segment] != NONE) {
+                prev[heads[segment]] = slot;
+            }
+            heads[segment] = slot;
+            if (tails[segment] == NONE) {
+                tails[segment] = slot;
+            }
+        }
+
+        private void unlink(final int slot) {
+            final byte segment = segments[slot];
+            if (prev[slot] == NONE) {
+                heads[segment] = next[slot];
+            } else {
+                next[prev[slot]] = next[slot];
+            }
+            if (next[slot] == NONE) {
+                tails[segment] = prev[slot];
+            } else {
+                prev[next[slot]] = prev[slot];
+            }
+            prev[slot] = NONE;
+            next[slot] = NONE;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Probabilistic set of table keys answering "definitely absent" or "maybe present".
+ * <p>
+ * Bits live in a (memory-mapped) {@link ByteBuffer} outside of the heap.
+ * Bit positions are derived from a single 64-bit hash by double hashing.
+ */
+final class BloomFilter {
+    private static final BloomFilter ALWAYS_MAYBE = new BloomFilter(Bytes.EMPTY, 0);
+
+    @NotNull
+    private final ByteBuffer words;
+    private final long bitCount;
+    private final int hashFunctions;
+
+    private BloomFilter(
+            @NotNull final ByteBuffer words,
+            final int hashFunctions) {
+        this.words = words;
+        this.bitCount = (long) words.remaining() * Byte.SIZE;
+        this.hashFunctions = hashFunctions;
+    }
+
+    @NotNull
+    static BloomFilter wrap(
+            @NotNull final ByteBuffer words,
+            final int hashFunctions) {
+        if (hashFunctions == 0 || !words.hasRemaining()) {
+            return ALWAYS_MAYBE;
+        }
+        return new BloomFilter(words.slice(), hashFunctions);
+    }
+
+    /**
+     * @return the optimal number of hash functions for the density
+     */
+    static int hashFunctions(final int bitsPerKey) {
+        if (bitsPerKey <= 0) {
+            return 0;
+        }
+        return Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    /**
+     * @return size of the filter in bytes, a multiple of {@link Long#BYTES}
+     */
+    static long sizeInBytes(
+            final long keys,
+            final int bitsPerKey) {
+        if (bitsPerKey <= 0 || keys == 0) {
+            return 0;
+        }
+        final long words = (keys * bitsPerKey + Long.SIZE - 1) / Long.SIZE;
+        return words * Long.BYTES;
+    }
+
+    static void add(
+            @NotNull final ByteBuffer words,
+            final int hashFunctions,
+            final long hash) {
+        final long bitCount = (long) words.remaining() * Byte.SIZE;
+        final int base = words.position();
+        final long h2 = (hash >>> 32) | 1;
+        long combined = hash;
+        for (int i = 0; i < hashFunctions; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bitCount;
+            final int index = base + (int) (bit >>> 6) * Long.BYTES;
+            words.putLong(index, words.getLong(index) | 1L << (bit & 63));
+            combined += h2;
+        }
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        if (hashFunctions == 0) {
+            return true;
+        }
+        final long hash = hash(key);
+        final long h2 = (hash >>> 32) | 1;
+        long combined = hash;
+        for (int i = 0; i < hashFunctions; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bitCount;
+            if ((words.getLong((int) (bit >>> 6) * Long.BYTES) & 1L << (bit & 63)) == 0) {
+                return false;
+            }
+            combined += h2;
+        }
+        return true;
+    }
+
+    /**
+     * MurmurHash64A of the remaining bytes
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        final int length = key.remaining();
+        final int start = key.position();
+        long h = 0x9747b28c ^ length * m;
+
+        final int blocks = length / Long.BYTES;
+        for (int i = 0; i < blocks; i++) {
+            long k = 0;
+            for (int j = 0; j < Long.BYTES; j++) {
+                k |= (key.get(start + i * Long.BYTES + j) & 0xFFL) << (j * Byte.SIZE);
+            }
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+
+        final int tail = start + blocks * Long.BYTES;
+        final int rest = length % Long.BYTES;
+        if (rest > 0) {
+            for (int j = rest - 1; j >= 0; j--) {
+                h ^= (key.get(tail + j) & 0xFFL) << (j * Byte.SIZE);
+            }
+            h *= m;
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+}
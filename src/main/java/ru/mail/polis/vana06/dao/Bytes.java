@@ -0,0 +1,84 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Helpers for keys and values represented as {@link ByteBuffer}s
+ */
+public final class Bytes {
+    public static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Lexicographic order of unsigned bytes between the position and the limit
+     */
+    public static final Comparator<ByteBuffer> COMPARATOR = Bytes::compare;
+
+    private Bytes() {
+        // Not instantiable
+    }
+
+    public static int compare(
+            @NotNull final ByteBuffer a,
+            @NotNull final ByteBuffer b) {
+        final int aPos = a.position();
+        final int bPos = b.position();
+        final int length = Math.min(a.remaining(), b.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Integer.compare(a.get(aPos + i) & 0xFF, b.get(bPos + i) & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(a.remaining(), b.remaining());
+    }
+
+    /**
+     * Compares {@code length} bytes of {@code buffer} starting at the absolute
+     * {@code offset} with the remaining bytes of {@code key} without allocations
+     */
+    public static int compare(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int length,
+            @NotNull final ByteBuffer key) {
+        final int keyPos = key.position();
+        final int keyLength = key.remaining();
+        final int common = Math.min(length, keyLength);
+        for (int i = 0; i < common; i++) {
+            final int cmp = Integer.compare(buffer.get(offset + i) & 0xFF, key.get(keyPos + i) & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, keyLength);
+    }
+
+    /**
+     * @return a view of {@code length} bytes of {@code buffer} starting at the absolute {@code offset}
+     */
+    @NotNull
+    public static ByteBuffer slice(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(offset + length);
+        duplicate.position(offset);
+        return duplicate.slice();
+    }
+
+    @NotNull
+    public static ByteBuffer copyOf(@NotNull final byte[] array) {
+        return ByteBuffer.wrap(array.clone());
+    }
+
+    @NotNull
+    public static byte[] toArray(@NotNull final ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+}
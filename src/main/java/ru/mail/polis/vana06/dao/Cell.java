@@ -0,0 +1,32 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A key together with its {@link Value}
+ */
+public final class Cell {
+    @NotNull
+    private final ByteBuffer key;
+    @NotNull
+    private final Value value;
+
+    public Cell(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    @NotNull
+    public ByteBuffer getKey() {
+        return key.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    public Value getValue() {
+        return value;
+    }
+}
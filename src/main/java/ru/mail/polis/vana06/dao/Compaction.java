@@ -0,0 +1,35 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * A set of tables to be merged into new tables at the specified level
+ */
+final class Compaction {
+    @NotNull
+    final List<SSTable> inputs;
+    final int outputLevel;
+    final long outputSequence;
+    final long maxTableSize;
+
+    /**
+     * No older version of the input keys may exist outside the inputs,
+     * so tombstones are not needed anymore
+     */
+    final boolean bottommost;
+
+    Compaction(
+            @NotNull final List<SSTable> inputs,
+            final int outputLevel,
+            final long outputSequence,
+            final long maxTableSize,
+            final boolean bottommost) {
+        this.inputs = inputs;
+        this.outputLevel = outputLevel;
+        this.outputSequence = outputSequence;
+        this.maxTableSize = maxTableSize;
+        this.bottommost = bottommost;
+    }
+}
@@ -0,0 +1,30 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides which tables should be merged next
+ */
+interface CompactionPolicy {
+    /**
+     * @param tables live tables ordered from the newest to the oldest one
+     * @return the next compaction or {@code null} if there is nothing to do
+     */
+    @Nullable
+    Compaction pick(@NotNull List<SSTable> tables);
+
+    @NotNull
+    static CompactionPolicy of(@NotNull final DaoConfig config) {
+        switch (config.compactionPolicy) {
+            case "tiered":
+                return new SizeTieredCompactionPolicy(config.memTableSize);
+            case "leveled":
+                return new LeveledCompactionPolicy(config.tableSize);
+            default:
+                throw new IllegalArgumentException("Unknown compaction policy: " + config.compactionPolicy);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges tables of {@link LSMDao} in a background thread according to a {@link CompactionPolicy}
+ */
+final class Compactor implements Closeable {
+    private static final Logger log = Logger.getLogger(Compactor.class.getName());
+
+    @NotNull
+    private final LSMDao dao;
+    @NotNull
+    private final CompactionPolicy policy;
+    @NotNull
+    private final Throttle throttle;
+    private final int blockSize;
+    private final int bloomBitsPerKey;
+    private final long tombstoneGraceMs;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    Compactor(
+            @NotNull final LSMDao dao,
+            @NotNull final DaoConfig config) {
+        this.dao = dao;
+        this.policy = CompactionPolicy.of(config);
+        this.throttle = new Throttle(config.compactionRate);
+        this.blockSize = config.blockSize;
+        this.bloomBitsPerKey = config.bloomBitsPerKey;
+        this.tombstoneGraceMs = config.tombstoneGraceMs;
+    }
+
+    /**
+     * Requests a compaction check, e.g. after a new table has been flushed
+     */
+    void schedule() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            executor.execute(this::run);
+        }
+    }
+
+    private void run() {
+        scheduled.set(false);
+        try {
+            Compaction compaction;
+            while (!closed && (compaction = policy.pick(dao.tables())) != null) {
+                compact(compaction);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | UncheckedIOException e) {
+            log.log(Level.WARNING, "Compaction failed", e);
+        }
+    }
+
+    private void compact(@NotNull final Compaction compaction) throws IOException, InterruptedException {
+        final List<SSTable> inputs = new ArrayList<>(compaction.inputs);
+        inputs.sort(LSMDao.NEWEST_FIRST);
+        final List<Iterator<Cell>> sources = new ArrayList<>(inputs.size());
+        for (final SSTable table : inputs) {
+            sources.add(table.iterator(Bytes.EMPTY));
+        }
+        // Blobs of the dropped versions are removed once the outputs replace the inputs
+        final List<Long> shadowedBlobs = new ArrayList<>();
+        Iterator<Cell> cells = Iters.merge(sources, cell -> {
+            if (cell.getValue().isBlob()) {
+                shadowedBlobs.add(cell.getValue().blobId());
+            }
+        });
+        // Expired values become tombstones here and are purged as such
+        cells = Iters.expire(cells, System.currentTimeMillis(), cell -> {
+            if (cell.getValue().isBlob()) {
+                shadowedBlobs.add(cell.getValue().blobId());
+            }
+        });
+        // Digests of the purged tombstones are dropped once the outputs replace the inputs
+        final List<Cell> purged = new ArrayList<>();
+        if (compaction.bottommost) {
+            // Replicas which have missed a delete may still resurrect the value until the grace period ends
+            final long before = (System.currentTimeMillis() - tombstoneGraceMs) << HybridClock.LOGICAL_BITS;
+            cells = Iters.purge(cells, before, purged::add);
+        }
+        final Iterator<Cell> throttled = throttled(cells);
+
+        final List<File> outputs = new ArrayList<>();
+        try {
+            while (throttled.hasNext()) {
+                final File file = dao.newTableFile();
+                SSTableWriter.write(
+                        file,
+                        throttled,
+                        compaction.outputLevel,
+                        compaction.outputSequence,
+                        compaction.maxTableSize,
+                        blockSize,
+                        bloomBitsPerKey);
+                outputs.add(file);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // Partial output is redundant, the inputs are still in place
+            for (final File file : outputs) {
+                Files.deleteIfExists(file.toPath());
+            }
+            if (e.getCause() instanceof InterruptedIOException) {
+                throw new InterruptedException();
+            }
+            throw e;
+        }
+        dao.replace(inputs, outputs, purged);
+        dao.deleteBlobs(shadowedBlobs);
+    }
+
+    @NotNull
+    private Iterator<Cell> throttled(@NotNull final Iterator<Cell> cells) {
+        return new Iterator<Cell>() {
+            @Override
+            public boolean hasNext() {
+                return cells.hasNext();
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Cell cell = cells.next();
+                try {
+                    throttle.acquire(cell.getKey().remaining() + cell.getValue().sizeInBytes());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Compaction interrupted"));
+                }
+                return cell;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warning("Compactor didn't stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
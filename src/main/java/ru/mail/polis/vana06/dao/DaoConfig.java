@@ -0,0 +1,218 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Tunables of {@link LSMDao} and {@link HashDao} which may be overridden with {@code -Dkv.*} system properties
+ */
+public final class DaoConfig {
+    private static final long DEFAULT_MEMTABLE_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_IMMUTABLE_MEMTABLES = 2;
+    private static final long DEFAULT_TABLE_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_COMPACTION_RATE = 64 * 1024 * 1024;
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 10;
+    private static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    private static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_BLOB_THRESHOLD = 64 * 1024;
+    private static final long DEFAULT_TOMBSTONE_GRACE_MS = 24 * 60 * 60 * 1000;
+    private static final int DEFAULT_SHARDS = 1;
+    private static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+    /**
+     * Length of the keys a memtable of a shard fits along with the largest inline value
+     */
+    private static final int SHARD_KEY_LENGTH = 1024;
+
+    /**
+     * Storage engine: {@code lsm} keeps the keys ordered, {@code hash} serves point lookups only
+     */
+    @NotNull
+    final String engine;
+
+    /**
+     * Capacity of the off-heap arena of a {@link MemTable}, which is flushed once an update doesn't fit
+     */
+    final long memTableSize;
+
+    /**
+     * Full memtables which may wait for a background flush before writers are held back
+     */
+    final int immutableMemTables;
+
+    /**
+     * {@code tiered} or {@code leveled}
+     */
+    @NotNull
+    final String compactionPolicy;
+
+    /**
+     * Target size of tables produced by leveled compaction
+     */
+    final long tableSize;
+
+    /**
+     * Compaction I/O limit in bytes per second, non positive means unlimited
+     */
+    final long compactionRate;
+
+    @NotNull
+    final WriteAheadLog.Durability durability;
+
+    /**
+     * How often the log is synced with {@link WriteAheadLog.Durability#PERIODIC} durability
+     */
+    final long syncIntervalMs;
+
+    /**
+     * Bloom filter density, 10 bits give about 1% of false positives, 0 disables filters
+     */
+    final int bloomBitsPerKey;
+
+    /**
+     * Approximate size of a table block, a lookup reads a single block
+     */
+    final int blockSize;
+
+    /**
+     * Capacity of the off-heap {@link BlockCache} in bytes, 0 disables the cache
+     */
+    final long cacheSize;
+
+    /**
+     * Values larger than this are stored in separate blob files
+     */
+    final int blobThreshold;
+
+    /**
+     * Tombstones are kept at least this long, so that the delete reaches all the replicas
+     */
+    final long tombstoneGraceMs;
+
+    /**
+     * Number of independent engines the keys are spread across, each gets its share of the memory
+     */
+    final int shards;
+
+    /**
+     * Size of a data segment of {@link HashDao} after which a new one is started
+     */
+    final long segmentSize;
+
+    private DaoConfig(
+            @NotNull final String engine,
+            final long memTableSize,
+            final int immutableMemTables,
+            @NotNull final String compactionPolicy,
+            final long tableSize,
+            final long compactionRate,
+            @NotNull final WriteAheadLog.Durability durability,
+            final long syncIntervalMs,
+            final int bloomBitsPerKey,
+            final int blockSize,
+            final long cacheSize,
+            final int blobThreshold,
+            final long tombstoneGraceMs,
+            final int shards,
+            final long segmentSize) {
+        this.engine = engine;
+        this.memTableSize = memTableSize;
+        this.immutableMemTables = Math.max(1, immutableMemTables);
+        this.compactionPolicy = compactionPolicy;
+        this.tableSize = tableSize;
+        this.compactionRate = compactionRate;
+        this.durability = durability;
+        this.syncIntervalMs = syncIntervalMs;
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        this.blockSize = blockSize;
+        this.cacheSize = cacheSize;
+        this.blobThreshold = blobThreshold;
+        this.tombstoneGraceMs = tombstoneGraceMs;
+        this.shards = Math.max(1, shards);
+        // Offsets within a segment are packed into 32 bits
+        this.segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @return the tunables of a single shard with its share of the memtable, the cache and the compaction I/O.
+     * The share of the memtable still fits any value stored inline
+     */
+    @NotNull
+    DaoConfig shard() {
+        return new DaoConfig(
+                engine,
+                Math.max(memTableSize / shards, MemTable.capacityFor(SHARD_KEY_LENGTH, blobThreshold)),
+                immutableMemTables,
+                compactionPolicy,
+                tableSize,
+                compactionRate > 0 ? Math.max(1, compactionRate / shards) : compactionRate,
+                durability,
+                syncIntervalMs,
+                bloomBitsPerKey,
+                blockSize,
+                cacheSize / shards,
+                blobThreshold,
+                tombstoneGraceMs,
+                1,
+                segmentSize);
+    }
+
+    @NotNull
+    public String engine() {
+        return engine;
+    }
+
+    public int shards() {
+        return shards;
+    }
+
+    @NotNull
+    public static DaoConfig fromSystemProperties() {
+        return fromProperties(System.getProperties());
+    }
+
+    /**
+     * @param properties the {@code kv.*} tunables, the absent ones get the defaults
+     */
+    @NotNull
+    public static DaoConfig fromProperties(@NotNull final Properties properties) {
+        return new DaoConfig(
+                properties.getProperty("kv.engine", "lsm").toLowerCase(Locale.ROOT),
+                getLong(properties, "kv.memtable.size", DEFAULT_MEMTABLE_SIZE),
+                (int) getLong(properties, "kv.memtable.immutable", DEFAULT_IMMUTABLE_MEMTABLES),
+                properties.getProperty("kv.compaction.policy", "tiered"),
+                getLong(properties, "kv.compaction.table.size", DEFAULT_TABLE_SIZE),
+                getLong(properties, "kv.compaction.rate", DEFAULT_COMPACTION_RATE),
+                WriteAheadLog.Durability.valueOf(
+                        properties.getProperty("kv.wal.durability", "always").toUpperCase(Locale.ROOT)),
+                getLong(properties, "kv.wal.sync.interval", DEFAULT_SYNC_INTERVAL_MS),
+                (int) getLong(properties, "kv.bloom.bits.per.key", DEFAULT_BLOOM_BITS_PER_KEY),
+                (int) getLong(properties, "kv.block.size", DEFAULT_BLOCK_SIZE),
+                getLong(properties, "kv.cache.size", DEFAULT_CACHE_SIZE),
+                (int) getLong(properties, "kv.blob.threshold", DEFAULT_BLOB_THRESHOLD),
+                getLong(properties, "kv.tombstone.grace", DEFAULT_TOMBSTONE_GRACE_MS),
+                (int) getLong(properties, "kv.shards", DEFAULT_SHARDS),
+                getLong(properties, "kv.hash.segment.size", DEFAULT_SEGMENT_SIZE));
+    }
+
+    /**
+     * Same as {@link Long#getLong(String, long)}: a malformed value gets the default
+     */
+    private static long getLong(
+            @NotNull final Properties properties,
+            @NotNull final String name,
+            final long defaultValue) {
+        final String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.decode(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
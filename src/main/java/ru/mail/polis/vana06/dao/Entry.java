@@ -0,0 +1,51 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A live key of a range obtained by {@link StreamingKVDao#range(byte[], byte[])},
+ * whose value is opened only when needed
+ */
+public abstract class Entry {
+    @NotNull
+    private final ByteBuffer key;
+    private final long timestamp;
+    private final long expiresAt;
+
+    Entry(
+            @NotNull final ByteBuffer key,
+            final long timestamp,
+            final long expiresAt) {
+        this.key = key;
+        this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
+    }
+
+    @NotNull
+    public ByteBuffer getKey() {
+        return key.asReadOnlyBuffer();
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch the value expires at or {@link Value#NEVER}
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Opens the value for reading
+     *
+     * @return the value or {@code null} if the key has been removed since the range was started
+     */
+    @Nullable
+    public abstract ValueReader open() throws IOException;
+}
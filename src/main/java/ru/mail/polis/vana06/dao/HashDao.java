@@ -0,0 +1,1043 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.KVDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hash-indexed {@link KVDao} for point lookups: updates are appended to the {@link Segment}s of a
+ * data log, and a {@link HashIndex} in a memory-mapped file points to the newest entry of every key,
+ * so a lookup reads a single entry whatever the size of the storage.
+ * <p>
+ * Entries superseded by later updates stay in the log until the sealed segments are merged in
+ * background, which copies the live entries to new segments and removes the former ones.
+ * Values larger than the configured threshold or written in chunks are kept in the {@link BlobStore}.
+ * <p>
+ * The index, together with the digests of the {@link MerkleTree} it keeps, is reused after a
+ * clean shutdown and rebuilt by scanning the segments after a crash. Keys aren't ordered, so
+ * {@link #range(byte[], byte[])} scans the whole index and sorts the keys of the range.
+ */
+public final class HashDao implements StreamingKVDao {
+    private static final Logger log = Logger.getLogger(HashDao.class.getName());
+
+    private static final int NONE = -1;
+
+    /**
+     * Live entries are copied by records of about this size
+     */
+    private static final int MERGE_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Slots inspected at once while estimating the garbage, so that writers aren't held back long
+     */
+    private static final int SCAN_CHUNK_SLOTS = 64 * 1024;
+
+    @NotNull
+    private final File data;
+    @NotNull
+    private final DaoConfig config;
+    @NotNull
+    private final File indexFile;
+
+    /**
+     * Readers hold the read lock while copying the slots of a key and read the entry afterwards,
+     * writers hold the read lock while probing the slots and the write lock while updating them
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Guarded by {@link #lock}
+     */
+    @NotNull
+    private HashIndex index;
+
+    /**
+     * Segments the index may point to, a removed one is closed
+     */
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSegment = new AtomicInteger(1);
+
+    /**
+     * The segment updates are appended to, changed under the write lock
+     */
+    @NotNull
+    private volatile Segment active;
+
+    private final HybridClock clock = new HybridClock();
+    @NotNull
+    private final BlobStore blobs;
+    @NotNull
+    private final MerkleTree tree;
+
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private final ScheduledExecutorService syncer;
+
+    public HashDao(
+            @NotNull final File data,
+            @NotNull final DaoConfig config) throws IOException {
+        this.data = data;
+        this.config = config;
+        this.indexFile = new File(data, HashIndex.NAME);
+        this.blobs = new BlobStore(new File(data, LSMDao.BLOBS));
+
+        final File[] files = data.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (file.isDirectory()) {
+                    continue;
+                }
+                if (name.endsWith(SSTable.SUFFIX) || name.endsWith(WriteAheadLog.SUFFIX)) {
+                    throw new IllegalStateException("Storage " + data + " isn't hash-indexed");
+                }
+                if (name.contains(SSTable.TEMP_SUFFIX) || name.endsWith(Segment.SUFFIX) && file.length() == 0) {
+                    // Leftover of an interrupted growth of the index or a segment nothing was written to
+                    Files.delete(file.toPath());
+                } else if (name.endsWith(Segment.SUFFIX)) {
+                    final int id = Segment.idOf(file);
+                    segments.put(id, Segment.open(data, id));
+                    nextSegment.set(Math.max(nextSegment.get(), id + 1));
+                }
+            }
+        }
+
+        final HashIndex existing = HashIndex.open(indexFile);
+        if (existing != null && existing.isClean()) {
+            this.index = existing;
+            clock.observe(existing.maxTimestamp());
+        } else {
+            if (existing != null) {
+                existing.close();
+            }
+            // Mappings of the former index stay valid, so a new file takes its place
+            Files.deleteIfExists(indexFile.toPath());
+            this.index = HashIndex.create(indexFile);
+            rebuild();
+        }
+        // A crash from now on leaves the index to be rebuilt
+        index.markDirty();
+
+        this.tree = new MerkleTree(new IndexedVersions());
+        this.active = newSegment();
+
+        if (config.durability == WriteAheadLog.Durability.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "segment-syncer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncActive, config.syncIntervalMs, config.syncIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+        scheduleMerge();
+    }
+
+    /**
+     * Indexes the newest entry of every key of the segments
+     */
+    private void rebuild() throws IOException {
+        if (segments.isEmpty()) {
+            return;
+        }
+        log.log(Level.INFO, "Rebuilding the index of {0}", data);
+        final List<Segment> ordered = new ArrayList<>(segments.values());
+        // Racing updates may be appended out of order, the timestamps reconcile them
+        ordered.sort(Comparator.comparingInt(Segment::id));
+        for (final Segment segment : ordered) {
+            segment.scan((offset, entry) -> {
+                final ByteBuffer key = Segment.keyOf(entry);
+                final Value value = Segment.valueOf(entry);
+                clock.observe(value.getTimestamp());
+                final long hash = BloomFilter.hash(key);
+                index = index.reserve(indexFile, 1);
+                final int slot = probe(key, hash);
+                if (index.isFree(slot) || compare(value, slot) >= 0) {
+                    index.put(slot, hash, MerkleTree.leafOf(key), location(segment.id(), offset), entry.remaining(), value);
+                }
+            });
+        }
+    }
+
+    @NotNull
+    private Segment newSegment() throws IOException {
+        final Segment segment = Segment.open(data, nextSegment.getAndIncrement());
+        segments.put(segment.id(), segment);
+        return segment;
+    }
+
+    private void syncActive() {
+        try {
+            active.sync();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can't sync the segment", e);
+        }
+    }
+
+    private static long location(
+            final int segment,
+            final long offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    private static int segmentOf(final long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static long offsetOf(final long location) {
+        return location & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Must be called under the lock
+     *
+     * @return the slot of the key or the free slot ending its probe
+     */
+    private int probe(
+            @NotNull final ByteBuffer key,
+            final long hash) throws IOException {
+        int slot = index.home(hash);
+        while (!index.isFree(slot)) {
+            if (index.hash(slot) == hash) {
+                final long location = index.location(slot);
+                // A segment is removed only once no slot points to it
+                final Segment segment = segments.get(segmentOf(location));
+                if (segment.hasKey(offsetOf(location), index.size(slot), key)) {
+                    return slot;
+                }
+            }
+            slot = index.next(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * @return the slot pointing to the entry or {@link #NONE}
+     */
+    private int slotOf(
+            final long hash,
+            final long location) {
+        for (int slot = index.home(hash); !index.isFree(slot); slot = index.next(slot)) {
+            if (index.location(slot) == location) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Compares the version with the one the slot points to, see {@link Value#compareVersion(Value)}
+     */
+    private int compare(
+            @NotNull final Value value,
+            final int slot) throws IOException {
+        final int cmp = Long.compare(value.getTimestamp(), index.timestamp(slot));
+        if (cmp != 0) {
+            return cmp;
+        }
+        // Ties are rare, so the stored entry is read to break them
+        final ByteBuffer entry = read(index.location(slot), index.size(slot));
+        return entry == null ? 1 : value.compareVersion(Segment.valueOf(entry));
+    }
+
+    /**
+     * @return the entry or {@code null} if its segment has been merged and removed
+     */
+    @Nullable
+    private ByteBuffer read(
+            final long location,
+            final int size) throws IOException {
+        final Segment segment = segments.get(segmentOf(location));
+        if (segment == null) {
+            return null;
+        }
+        try {
+            return segment.read(offsetOf(location), size);
+        } catch (ClosedChannelException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the newest version of the key including a tombstone or {@code null} if the key is unknown
+     */
+    @Nullable
+    private Value find(@NotNull final ByteBuffer key) throws IOException {
+        final long hash = BloomFilter.hash(key);
+        while (true) {
+            // Almost always a single candidate, others are collisions of the hash
+            final Locations candidates = new Locations();
+            lock.readLock().lock();
+            try {
+                for (int slot = index.home(hash); !index.isFree(slot); slot = index.next(slot)) {
+                    if (index.hash(slot) == hash) {
+                        candidates.add(index.location(slot), index.size(slot));
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            boolean moved = false;
+            for (int i = 0; i < candidates.count; i++) {
+                final ByteBuffer entry = read(candidates.locations[i], candidates.sizes[i]);
+                if (entry == null) {
+                    // Relocated by a merge meanwhile
+                    moved = true;
+                    break;
+                }
+                if (Bytes.compare(Segment.keyOf(entry), key) == 0) {
+                    return Segment.valueOf(entry);
+                }
+            }
+            if (!moved) {
+                return null;
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+        final Value value = find(ByteBuffer.wrap(key));
+        if (value == null || !value.isLive(System.currentTimeMillis())) {
+            throw new NoSuchElementException();
+        }
+        if (value.isBlob()) {
+            try (ValueReader reader = open(key)) {
+                return ValueReaders.toArray(reader);
+            }
+        }
+        return Bytes.toArray(value.getData());
+    }
+
+    @NotNull
+    @Override
+    public ValueReader open(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+        final Record record = getWithMeta(key);
+        if (record == null || record.isTombstone()) {
+            throw new NoSuchElementException();
+        }
+        return record.getValue();
+    }
+
+    @Nullable
+    @Override
+    public Record getWithMeta(@NotNull final byte[] key) throws IOException {
+        while (true) {
+            final Value value = find(ByteBuffer.wrap(key));
+            if (value == null) {
+                return null;
+            }
+            if (!value.isLive(System.currentTimeMillis())) {
+                return Record.tombstone(value.getTimestamp());
+            }
+            if (!value.isBlob()) {
+                return Record.value(value.getTimestamp(), value.expiresAt(), ValueReaders.of(value.getData()));
+            }
+            try {
+                return Record.value(
+                        value.getTimestamp(),
+                        value.expiresAt(),
+                        ValueReaders.of(blobs.open(value.blobId()), value.blobLength()));
+            } catch (NoSuchFileException e) {
+                // A blob is removed only after its entry has been superseded
+                if (references(ByteBuffer.wrap(key), value.blobId())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the newest version of the key is the blob
+     */
+    private boolean references(
+            @NotNull final ByteBuffer key,
+            final long blobId) throws IOException {
+        final Value current = find(key);
+        return current != null && current.isBlob() && current.blobId() == blobId;
+    }
+
+    @Override
+    public long timestamp() {
+        return clock.now();
+    }
+
+    @NotNull
+    @Override
+    public ValueWriter create() throws IOException {
+        return LSMDao.writer(blobs.create(), clock, this::store);
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value) throws IOException {
+        upsert(key, value, clock.now());
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value,
+            final long timestamp) throws IOException {
+        upsert(key, value, timestamp, Value.NEVER);
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value,
+            final long timestamp,
+            final long expiresAt) throws IOException {
+        if (value.length > config.blobThreshold) {
+            try (ValueWriter writer = create()) {
+                writer.write(ByteBuffer.wrap(value));
+                writer.commit(key, timestamp, expiresAt);
+            }
+            return;
+        }
+        store(Bytes.copyOf(key), LSMDao.expiring(Value.of(Bytes.copyOf(value), timestamp), expiresAt));
+    }
+
+    @Override
+    public void remove(@NotNull final byte[] key) throws IOException {
+        remove(key, clock.now());
+    }
+
+    @Override
+    public void remove(
+            @NotNull final byte[] key,
+            final long timestamp) throws IOException {
+        store(Bytes.copyOf(key), Value.tombstone(timestamp));
+    }
+
+    @Override
+    public void apply(@NotNull final Batch batch) throws IOException {
+        final List<Cell> cells = new ArrayList<>(batch.size());
+        try {
+            for (final Batch.Update update : batch.updates()) {
+                final long timestamp = update.timestamp == Batch.NOW ? clock.now() : update.timestamp;
+                final ByteBuffer key = Bytes.copyOf(update.key);
+                if (update.value == null) {
+                    cells.add(new Cell(key, Value.tombstone(timestamp)));
+                } else if (update.value.length > config.blobThreshold) {
+                    try (BlobStore.Writer writer = blobs.create()) {
+                        writer.write(ByteBuffer.wrap(update.value));
+                        cells.add(new Cell(key, LSMDao.expiring(writer.commit(timestamp), update.expiresAt)));
+                    }
+                } else {
+                    cells.add(new Cell(key, LSMDao.expiring(Value.of(Bytes.copyOf(update.value), timestamp), update.expiresAt)));
+                }
+            }
+        } catch (IOException e) {
+            // Nothing references the blobs of the batch yet
+            for (final Cell cell : cells) {
+                if (cell.getValue().isBlob()) {
+                    blobs.delete(cell.getValue().blobId());
+                }
+            }
+            throw e;
+        }
+        if (!cells.isEmpty()) {
+            store(newest(cells));
+        }
+    }
+
+    /**
+     * @return the newest update of every key of the batch
+     */
+    @NotNull
+    private List<Cell> newest(@NotNull final List<Cell> cells) throws IOException {
+        final Map<ByteBuffer, Cell> newest = new LinkedHashMap<>();
+        for (final Cell cell : cells) {
+            final Cell previous = newest.get(cell.getKey());
+            final Cell dropped;
+            if (previous == null || cell.getValue().isNewerThan(previous.getValue())) {
+                newest.put(cell.getKey(), cell);
+                dropped = previous;
+            } else {
+                dropped = cell;
+            }
+            if (dropped != null && dropped.getValue().isBlob()) {
+                blobs.delete(dropped.getValue().blobId());
+            }
+        }
+        return new ArrayList<>(newest.values());
+    }
+
+    private void store(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        store(Collections.singletonList(new Cell(key, value)));
+    }
+
+    /**
+     * Appends the updates of distinct keys newer than the stored versions as a single record
+     * and points the index to them.
+     * <p>
+     * Only the space of the record is reserved under the lock. The record is written outside of it,
+     * and the index is pointed to the entries afterwards unless newer versions have been stored meanwhile.
+     */
+    private void store(@NotNull final List<Cell> cells) throws IOException {
+        final List<Cell> fresh = new ArrayList<>(cells.size());
+        int recordSize = 0;
+        final Segment segment;
+        final long reserved;
+        lock.readLock().lock();
+        try {
+            for (final Cell cell : cells) {
+                final ByteBuffer key = cell.getKey();
+                final Value value = cell.getValue();
+                final int slot = probe(key, BloomFilter.hash(key));
+                // The slot keeps the version, so a stale update costs no reads
+                if (!index.isFree(slot) && compare(value, slot) <= 0) {
+                    if (value.isBlob()) {
+                        blobs.delete(value.blobId());
+                    }
+                    continue;
+                }
+                clock.observe(value.getTimestamp());
+                fresh.add(cell);
+                recordSize += Segment.entrySize(key, value);
+            }
+            if (fresh.isEmpty()) {
+                return;
+            }
+            // The active segment is swapped under the write lock
+            segment = active;
+            reserved = segment.reserve(recordSize);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        final long end;
+        Segment sealed = null;
+        try {
+            final ByteBuffer record = ByteBuffer.allocate(recordSize);
+            final int[] offsets = new int[fresh.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = record.position();
+                Segment.putEntry(record, fresh.get(i).getKey(), fresh.get(i).getValue());
+            }
+            record.flip();
+            final long first = segment.write(reserved, record);
+            end = first + recordSize;
+
+            lock.writeLock().lock();
+            try {
+                index = index.reserve(indexFile, fresh.size());
+                for (int i = 0; i < offsets.length; i++) {
+                    final ByteBuffer key = fresh.get(i).getKey();
+                    final Value value = fresh.get(i).getValue();
+                    final long hash = BloomFilter.hash(key);
+                    final int slot = probe(key, hash);
+                    // Superseded meanwhile, a merge drops the entry along with its blob
+                    if (!index.isFree(slot) && compare(value, slot) <= 0) {
+                        continue;
+                    }
+                    final int size = (i + 1 < offsets.length ? offsets[i + 1] : recordSize) - offsets[i];
+                    index.put(
+                            slot,
+                            hash,
+                            MerkleTree.leafOf(key),
+                            location(segment.id(), first + offsets[i]),
+                            size,
+                            value);
+                }
+
+                if (segment == active && end >= config.segmentSize) {
+                    active = newSegment();
+                    sealed = segment;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            segment.publish();
+        }
+
+        if (config.durability == WriteAheadLog.Durability.ALWAYS) {
+            segment.sync(end);
+        }
+        if (sealed != null) {
+            if (config.durability != WriteAheadLog.Durability.NONE) {
+                sealed.sync();
+            }
+            scheduleMerge();
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Entry> range(
+            @NotNull final byte[] from,
+            @Nullable final byte[] to) {
+        final ByteBuffer start = ByteBuffer.wrap(from);
+        final ByteBuffer end = to == null ? null : ByteBuffer.wrap(to);
+        final long now = System.currentTimeMillis();
+        final List<Entry> entries = new ArrayList<>();
+        try {
+            while (true) {
+                final Locations live = new Locations();
+                lock.readLock().lock();
+                try {
+                    for (int slot = 0; slot < index.capacity(); slot++) {
+                        if (!index.isFree(slot) && !index.isTombstone(slot) && now < index.expiresAt(slot)) {
+                            live.add(index.location(slot), index.size(slot));
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                if (collect(live, start, end, entries)) {
+                    break;
+                }
+                entries.clear();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        entries.sort((a, b) -> Bytes.compare(a.getKey(), b.getKey()));
+        return entries.iterator();
+    }
+
+    /**
+     * Reads the keys of the entries which fall in the range
+     *
+     * @return {@code false} if an entry has been relocated by a merge meanwhile
+     */
+    private boolean collect(
+            @NotNull final Locations locations,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            @NotNull final List<Entry> entries) throws IOException {
+        for (int i = 0; i < locations.count; i++) {
+            final ByteBuffer entry = read(locations.locations[i], locations.sizes[i]);
+            if (entry == null) {
+                return false;
+            }
+            final ByteBuffer key = Segment.keyOf(entry);
+            if (Bytes.compare(key, from) < 0 || to != null && Bytes.compare(key, to) >= 0) {
+                continue;
+            }
+            final byte[] copy = Bytes.toArray(key);
+            final Value value = Segment.valueOf(entry);
+            // Values are read again when opened, so that the range doesn't keep them all in the heap
+            entries.add(new Entry(ByteBuffer.wrap(copy), value.getTimestamp(), value.expiresAt()) {
+                @Nullable
+                @Override
+                public ValueReader open() throws IOException {
+                    final Record record = getWithMeta(copy);
+                    return record == null || record.isTombstone() ? null : record.getValue();
+                }
+            });
+        }
+        return true;
+    }
+
+    @NotNull
+    @Override
+    public MerkleTree merkleTree() {
+        return tree;
+    }
+
+    @NotNull
+    @Override
+    public File directory(@NotNull final String name) throws IOException {
+        if (name.equals(LSMDao.BLOBS)) {
+            throw new IllegalArgumentException("Reserved directory " + name);
+        }
+        final File directory = new File(data, name);
+        Files.createDirectories(directory.toPath());
+        return directory;
+    }
+
+    private void scheduleMerge() {
+        if (!closed && mergeScheduled.compareAndSet(false, true)) {
+            merger.execute(this::merge);
+        }
+    }
+
+    /**
+     * Merges the sealed segments once their superseded entries outweigh the live ones
+     */
+    private void merge() {
+        mergeScheduled.set(false);
+        final List<Segment> inputs = new ArrayList<>();
+        long total = 0;
+        // The active segment is swapped under the write lock
+        lock.readLock().lock();
+        try {
+            for (final Segment segment : segments.values()) {
+                // A record of a sealed segment may still be written, whose entries the scan would take for dead
+                if (segment != active && segment.isPublished()) {
+                    inputs.add(segment);
+                    total += segment.size();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            if (total <= config.segmentSize || total <= 2 * liveBytes(inputs)) {
+                return;
+            }
+            inputs.sort(Comparator.comparingInt(Segment::id));
+            merge(inputs);
+        } catch (InterruptedIOException e) {
+            log.log(Level.FINE, "Merge interrupted", e);
+        } catch (IOException | UncheckedIOException e) {
+            log.log(Level.WARNING, "Merge failed", e);
+        }
+    }
+
+    /**
+     * @return the size of the entries of the segments the index points to
+     */
+    private long liveBytes(@NotNull final List<Segment> segments) {
+        final boolean[] included = new boolean[nextSegment.get()];
+        for (final Segment segment : segments) {
+            included[segment.id()] = true;
+        }
+        long live = 0;
+        for (int from = 0; ; from += SCAN_CHUNK_SLOTS) {
+            lock.readLock().lock();
+            try {
+                // The index may grow meanwhile, which makes the estimate approximate only
+                if (from >= index.capacity()) {
+                    return live;
+                }
+                final int to = Math.min(index.capacity(), from + SCAN_CHUNK_SLOTS);
+                for (int slot = from; slot < to; slot++) {
+                    if (!index.isFree(slot)) {
+                        final int segment = segmentOf(index.location(slot));
+                        if (segment < included.length && included[segment]) {
+                            live += index.size(slot) + Segment.HEADER;
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Copies the live entries of the segments to new ones and removes the former ones.
+     * Expired values become tombstones, which are dropped once the grace period is over.
+     */
+    private void merge(@NotNull final List<Segment> inputs) throws IOException {
+        final long now = System.currentTimeMillis();
+        // Replicas which have missed a delete may still resurrect the value until the grace period ends
+        final long before = (now - config.tombstoneGraceMs) << HybridClock.LOGICAL_BITS;
+        final Merge merge = new Merge();
+        for (final Segment input : inputs) {
+            input.scan((offset, entry) -> {
+                if (closed) {
+                    throw new InterruptedIOException("Storage is closing");
+                }
+                final ByteBuffer key = Segment.keyOf(entry);
+                final long hash = BloomFilter.hash(key);
+                final long location = location(input.id(), offset);
+                final boolean live;
+                lock.readLock().lock();
+                try {
+                    live = slotOf(hash, location) != NONE;
+                } finally {
+                    lock.readLock().unlock();
+                }
+
+                Value value = Segment.valueOf(entry);
+                if (!live) {
+                    if (value.isBlob()) {
+                        merge.deadBlobs.add(new Cell(ByteBuffer.wrap(Bytes.toArray(key)), value));
+                    }
+                    return;
+                }
+                if (value.isExpired(now)) {
+                    if (value.isBlob()) {
+                        merge.deadBlobs.add(new Cell(ByteBuffer.wrap(Bytes.toArray(key)), value));
+                    }
+                    value = Value.tombstone(value.getTimestamp());
+                }
+                if (value.isRemoved() && value.getTimestamp() < before) {
+                    merge.purge(hash, location);
+                } else {
+                    merge.copy(key, hash, location, value);
+                }
+            });
+        }
+        merge.flush();
+
+        // The live entries are durable elsewhere, remove the oldest inputs first,
+        // so that a crash never resurrects superseded entries
+        for (final Segment output : merge.outputs) {
+            output.sync();
+        }
+        for (final Segment input : inputs) {
+            segments.remove(input.id());
+            input.close();
+            Files.delete(input.file().toPath());
+        }
+        for (final Cell cell : merge.deadBlobs) {
+            // An interrupted merge may have left a copy of the entry behind
+            if (!references(cell.getKey(), cell.getValue().blobId())) {
+                blobs.delete(cell.getValue().blobId());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        merger.shutdown();
+        try {
+            merger.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a merge");
+        }
+        lock.writeLock().lock();
+        try {
+            for (final Segment segment : segments.values()) {
+                segment.sync();
+                segment.close();
+            }
+            // The index is valid for the next open only if everything it points to is durable
+            index.markClean(clock.last());
+            index.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void crash() throws IOException {
+        closed = true;
+        try {
+            if (syncer != null) {
+                syncer.shutdownNow();
+                syncer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            merger.shutdownNow();
+            merger.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the background threads");
+        }
+        lock.writeLock().lock();
+        try {
+            // The index stays dirty, so the next open rebuilds it
+            for (final Segment segment : segments.values()) {
+                segment.close();
+            }
+            index.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Locations and sizes of entries
+     */
+    private static final class Locations {
+        long[] locations = new long[1];
+        int[] sizes = new int[1];
+        int count;
+
+        void add(
+                final long location,
+                final int size) {
+            if (count == locations.length) {
+                locations = Arrays.copyOf(locations, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            locations[count] = location;
+            sizes[count] = size;
+            count++;
+        }
+    }
+
+    /**
+     * Output of a merge, the live entries are copied by chunks and the index points to a chunk once
+     * it is appended. The outputs are made durable before the inputs are removed, until then a crash
+     * leaves the index to be rebuilt from both.
+     */
+    private final class Merge {
+        final List<Segment> outputs = new ArrayList<>();
+        /**
+         * Blobs of the superseded and expired entries, removed once the inputs are
+         */
+        final List<Cell> deadBlobs = new ArrayList<>();
+
+        @NotNull
+        private ByteBuffer chunk = ByteBuffer.allocate(MERGE_CHUNK_SIZE);
+        /**
+         * Copies of the chunk: a hash, the location of the original, the offset within the chunk,
+         * the size and whether it is a tombstone
+         */
+        private final List<long[]> copies = new ArrayList<>();
+        /**
+         * Tombstones to drop: a hash and the location each
+         */
+        private final List<long[]> purged = new ArrayList<>();
+        private Segment output;
+
+        void copy(
+                @NotNull final ByteBuffer key,
+                final long hash,
+                final long location,
+                @NotNull final Value value) throws IOException {
+            final int size = Segment.entrySize(key, value);
+            if (chunk.remaining() < size) {
+                flush();
+                if (chunk.capacity() < size) {
+                    chunk = ByteBuffer.allocate(size);
+                }
+            }
+            copies.add(new long[]{hash, location, chunk.position(), size, value.isRemoved() ? 1 : 0});
+            Segment.putEntry(chunk, key, value);
+        }
+
+        void purge(
+                final long hash,
+                final long location) {
+            purged.add(new long[]{hash, location});
+        }
+
+        /**
+         * Appends the chunk to the current output and points the index to the copies
+         * whose originals are still the newest entries of their keys
+         */
+        void flush() throws IOException {
+            long first = 0;
+            if (!copies.isEmpty()) {
+                if (output == null || output.size() >= config.segmentSize) {
+                    output = newSegment();
+                    outputs.add(output);
+                }
+                chunk.flip();
+                first = output.append(chunk);
+                chunk = ByteBuffer.allocate(MERGE_CHUNK_SIZE);
+            }
+
+            lock.writeLock().lock();
+            try {
+                for (final long[] copy : copies) {
+                    final int slot = slotOf(copy[0], copy[1]);
+                    // Unless superseded during the merge
+                    if (slot != NONE) {
+                        index.move(slot, location(output.id(), first + copy[2]), (int) copy[3], copy[4] != 0);
+                    }
+                }
+                for (final long[] tombstone : purged) {
+                    final int slot = slotOf(tombstone[0], tombstone[1]);
+                    if (slot != NONE) {
+                        index.remove(slot);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            copies.clear();
+            purged.clear();
+        }
+    }
+
+    /**
+     * Versions of the leaves are found by a scan of the index, while their digests are kept by the index.
+     * Keys aren't ordered here, so a listing from a key reads all the versions of the leaves.
+     */
+    private final class IndexedVersions implements MerkleTree.Source {
+        @NotNull
+        @Override
+        public Iterator<Cell> cells(
+                @NotNull final BitSet leaves,
+                @NotNull final ByteBuffer from) {
+            try {
+                while (true) {
+                    final Locations versions = new Locations();
+                    lock.readLock().lock();
+                    try {
+                        for (int slot = 0; slot < index.capacity(); slot++) {
+                            if (!index.isFree(slot) && leaves.get(index.leaf(slot))) {
+                                versions.add(index.location(slot), index.size(slot));
+                            }
+                        }
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                    final List<Cell> cells = new ArrayList<>(versions.count);
+                    int read = 0;
+                    for (; read < versions.count; read++) {
+                        final ByteBuffer entry = read(versions.locations[read], versions.sizes[read]);
+                        if (entry == null) {
+                            break;
+                        }
+                        final ByteBuffer key = Segment.keyOf(entry);
+                        if (Bytes.compare(key, from) >= 0) {
+                            cells.add(new Cell(key, Segment.valueOf(entry)));
+                        }
+                    }
+                    if (read == versions.count) {
+                        cells.sort((a, b) -> Bytes.compare(a.getKey(), b.getKey()));
+                        return cells.iterator();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public long digest(final int leaf) {
+            lock.readLock().lock();
+            try {
+                return index.digest(leaf);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Open-addressing hash table of the {@link HashDao} in a memory-mapped file,
+ * so that it takes no heap and survives a restart.
+ * <pre>
+ * index := magic:long capacity:int count:int clean:int pad:int maxTimestamp:long digest:long[LEAVES] slot[capacity]
+ * slot  := hash:long location:long timestamp:long expiresAt:long digest:long size:int leaf:short flags:short
+ * </pre>
+ * A slot points to the newest entry of a key in a {@link Segment}, a zero location marks a free
+ * slot. Collisions are resolved by linear probing, and a removal shifts the following slots back,
+ * so there are no deleted markers to skip. The slot repeats the version of the entry, so an update
+ * is compared with it and an expired or removed key is told without reading the entry. The digests
+ * of the {@link MerkleTree} leaves are maintained along with the slots, which keep the digests of
+ * their versions to drop them.
+ * <p>
+ * The table isn't thread-safe. The file is consistent only once {@link #markClean(long) marked clean},
+ * a dirty one is rebuilt from the segments.
+ */
+final class HashIndex implements Closeable {
+    static final String NAME = "index";
+
+    private static final long MAGIC = 0x4B56484153484932L;
+    private static final int MIN_CAPACITY = 1 << 16;
+    /**
+     * The whole table is a single mapping
+     */
+    private static final int MAX_CAPACITY = 1 << 25;
+
+    private static final int CAPACITY = 8;
+    private static final int COUNT = 12;
+    private static final int CLEAN = 16;
+    private static final int MAX_TIMESTAMP = 24;
+    private static final int DIGESTS = 32;
+    private static final int HEADER = DIGESTS + MerkleTree.LEAVES * Long.BYTES;
+
+    private static final int SLOT = 48;
+    private static final int HASH = 0;
+    private static final int LOCATION = 8;
+    private static final int TIMESTAMP = 16;
+    private static final int EXPIRES_AT = 24;
+    private static final int DIGEST = 32;
+    private static final int SIZE = 40;
+    private static final int LEAF = 44;
+    private static final int FLAGS = 46;
+    private static final short TOMBSTONE = 1;
+
+    private static final long FREE = 0;
+
+    @NotNull
+    private final FileChannel channel;
+    @NotNull
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final int mask;
+
+    private HashIndex(
+            @NotNull final FileChannel channel,
+            final int capacity) throws IOException {
+        this.channel = channel;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * SLOT);
+    }
+
+    /**
+     * @return the index kept in the file or {@code null} if there is no valid one
+     */
+    @Nullable
+    static HashIndex open(@NotNull final File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long size = channel.size();
+        if (size >= HEADER) {
+            final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            final int capacity = header.getInt(CAPACITY);
+            if (header.getLong(0) == MAGIC
+                    && Integer.bitCount(capacity) == 1
+                    && capacity <= MAX_CAPACITY
+                    && size == HEADER + (long) capacity * SLOT) {
+                return new HashIndex(channel, capacity);
+            }
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Replaces the file with an empty index
+     */
+    @NotNull
+    static HashIndex create(@NotNull final File file) throws IOException {
+        return create(file, MIN_CAPACITY);
+    }
+
+    @NotNull
+    private static HashIndex create(
+            @NotNull final File file,
+            final int capacity) throws IOException {
+        final FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Mapping extends the file with zeros, i.e. free slots
+        final HashIndex index = new HashIndex(channel, capacity);
+        index.map.putLong(0, MAGIC);
+        index.map.putInt(CAPACITY, capacity);
+        return index;
+    }
+
+    boolean isClean() {
+        return map.getInt(CLEAN) != 0;
+    }
+
+    /**
+     * Records that the slots are about to diverge from the file
+     */
+    void markDirty() {
+        map.putInt(CLEAN, 0);
+        map.force();
+    }
+
+    /**
+     * Makes the table durable and valid for the next open
+     *
+     * @param maxTimestamp the greatest timestamp stored, the clock starts from it
+     */
+    void markClean(final long maxTimestamp) {
+        map.putLong(MAX_TIMESTAMP, maxTimestamp);
+        map.force();
+        map.putInt(CLEAN, 1);
+        map.force();
+    }
+
+    long maxTimestamp() {
+        return map.getLong(MAX_TIMESTAMP);
+    }
+
+    /**
+     * @return the number of occupied slots
+     */
+    int size() {
+        return map.getInt(COUNT);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Makes sure the keys to be added keep the load under 3/4, replacing the file with a larger table if not
+     *
+     * @return this or the larger table, which supersedes this one
+     */
+    @NotNull
+    HashIndex reserve(
+            @NotNull final File file,
+            final int keys) throws IOException {
+        final long needed = ((long) size() + keys) * 4 / 3 + 1;
+        if (needed <= capacity) {
+            return this;
+        }
+        long newCapacity = capacity;
+        while (newCapacity < needed) {
+            newCapacity <<= 1;
+        }
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IOException("Hash index can't grow beyond " + MAX_CAPACITY + " slots");
+        }
+
+        final File temp = new File(file.getPath() + SSTable.TEMP_SUFFIX);
+        final HashIndex grown = create(temp, (int) newCapacity);
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                if (!isFree(slot)) {
+                    int target = grown.home(hash(slot));
+                    while (!grown.isFree(target)) {
+                        target = grown.next(target);
+                    }
+                    copy(slot, grown, target);
+                }
+            }
+            for (int leaf = 0; leaf < MerkleTree.LEAVES; leaf++) {
+                grown.map.putLong(digestOffset(leaf), digest(leaf));
+            }
+            grown.map.putInt(COUNT, size());
+            grown.map.force();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            grown.close();
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        close();
+        return grown;
+    }
+
+    /**
+     * @return the slot the probe for the hash starts from
+     */
+    int home(final long hash) {
+        return (int) (hash ^ hash >>> 32) & mask;
+    }
+
+    /**
+     * @return the slot the probe continues with
+     */
+    int next(final int slot) {
+        return (slot + 1) & mask;
+    }
+
+    boolean isFree(final int slot) {
+        return location(slot) == FREE;
+    }
+
+    long hash(final int slot) {
+        return map.getLong(slotOffset(slot) + HASH);
+    }
+
+    /**
+     * @return the location of the entry as packed by {@link HashDao}
+     */
+    long location(final int slot) {
+        return map.getLong(slotOffset(slot) + LOCATION);
+    }
+
+    long timestamp(final int slot) {
+        return map.getLong(slotOffset(slot) + TIMESTAMP);
+    }
+
+    long expiresAt(final int slot) {
+        return map.getLong(slotOffset(slot) + EXPIRES_AT);
+    }
+
+    /**
+     * @return the size of the entry
+     */
+    int size(final int slot) {
+        return map.getInt(slotOffset(slot) + SIZE);
+    }
+
+    int leaf(final int slot) {
+        return map.getShort(slotOffset(slot) + LEAF);
+    }
+
+    boolean isTombstone(final int slot) {
+        return (map.getShort(slotOffset(slot) + FLAGS) & TOMBSTONE) != 0;
+    }
+
+    /**
+     * Points the slot to the entry of the version, replacing the former one in the digest of the leaf
+     */
+    void put(
+            final int slot,
+            final long hash,
+            final int leaf,
+            final long location,
+            final int size,
+            @NotNull final Value value) {
+        final int offset = slotOffset(slot);
+        if (isFree(slot)) {
+            map.putInt(COUNT, size() + 1);
+        } else {
+            mix(leaf, map.getLong(offset + DIGEST));
+        }
+        final long digest = MerkleTree.digest(hash, value);
+        mix(leaf, digest);
+        map.putLong(offset + HASH, hash);
+        map.putLong(offset + TIMESTAMP, value.getTimestamp());
+        map.putLong(offset + EXPIRES_AT, value.expiresAt());
+        map.putLong(offset + DIGEST, digest);
+        map.putInt(offset + SIZE, size);
+        map.putShort(offset + LEAF, (short) leaf);
+        map.putShort(offset + FLAGS, value.isRemoved() ? TOMBSTONE : 0);
+        // Free slots are told by the location, so it is the last to change
+        map.putLong(offset + LOCATION, location);
+    }
+
+    /**
+     * Points the slot to a copy of its entry, which may have become a tombstone of the same version.
+     * An expired value has the digest of its tombstone, so the digest stays.
+     */
+    void move(
+            final int slot,
+            final long location,
+            final int size,
+            final boolean tombstone) {
+        final int offset = slotOffset(slot);
+        map.putLong(offset + LOCATION, location);
+        map.putInt(offset + SIZE, size);
+        if (tombstone) {
+            map.putLong(offset + EXPIRES_AT, Value.NEVER);
+            map.putShort(offset + FLAGS, TOMBSTONE);
+        }
+    }
+
+    /**
+     * Frees the slot, dropping its version from the digest, and shifts the following slots
+     * of the probe back, so that they stay reachable
+     */
+    void remove(final int slot) {
+        mix(leaf(slot), map.getLong(slotOffset(slot) + DIGEST));
+        int hole = slot;
+        for (int current = next(hole); !isFree(current); current = next(current)) {
+            final int home = home(hash(current));
+            // The slot may fill the hole unless its probe starts between the hole and itself
+            if (((current - home) & mask) >= ((current - hole) & mask)) {
+                copy(current, this, hole);
+                hole = current;
+            }
+        }
+        map.putLong(slotOffset(hole) + LOCATION, FREE);
+        map.putInt(COUNT, size() - 1);
+    }
+
+    /**
+     * @return the XOR of the digests of the versions of the leaf
+     */
+    long digest(final int leaf) {
+        return map.getLong(digestOffset(leaf));
+    }
+
+    private void mix(
+            final int leaf,
+            final long digest) {
+        map.putLong(digestOffset(leaf), digest(leaf) ^ digest);
+    }
+
+    private void copy(
+            final int slot,
+            @NotNull final HashIndex target,
+            final int targetSlot) {
+        final ByteBuffer destination = target.map.duplicate();
+        destination.position(target.slotOffset(targetSlot));
+        destination.put(Bytes.slice(map, slotOffset(slot), SLOT));
+    }
+
+    private static int digestOffset(final int leaf) {
+        return DIGESTS + leaf * Long.BYTES;
+    }
+
+    private int slotOffset(final int slot) {
+        return HEADER + slot * SLOT;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
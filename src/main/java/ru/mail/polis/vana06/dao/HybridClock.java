@@ -0,0 +1,53 @@
+package ru.mail.polis.vana06.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock issuing version timestamps.
+ * <p>
+ * A timestamp packs the wall clock milliseconds in the high bits and a logical
+ * counter in the low {@link #LOGICAL_BITS} bits. Timestamps issued by a clock
+ * strictly increase and exceed all the timestamps it has {@link #observe(long) observed},
+ * so causally related versions are ordered even if the wall clocks of the nodes drift.
+ */
+final class HybridClock {
+    static final int LOGICAL_BITS = 16;
+
+    private final AtomicLong last = new AtomicLong();
+
+    long now() {
+        while (true) {
+            final long current = last.get();
+            final long next = Math.max(System.currentTimeMillis() << LOGICAL_BITS, current + 1);
+            if (last.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Advances the clock past a timestamp issued elsewhere
+     */
+    void observe(final long timestamp) {
+        while (true) {
+            final long current = last.get();
+            if (current >= timestamp || last.compareAndSet(current, timestamp)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the greatest timestamp issued or observed so far
+     */
+    long last() {
+        return last.get();
+    }
+
+    /**
+     * @return the wall clock milliseconds of the timestamp
+     */
+    static long millis(final long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+}
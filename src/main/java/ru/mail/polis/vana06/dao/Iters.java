@@ -0,0 +1,257 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Combinators for sorted {@link Cell} iterators
+ */
+final class Iters {
+    private Iters() {
+        // Not instantiable
+    }
+
+    /**
+     * Merges sorted iterators leaving a single cell per key.
+     *
+     * @param sources iterators ordered from the newest to the oldest one,
+     *                the newest source wins for equal keys
+     */
+    @NotNull
+    static Iterator<Cell> merge(@NotNull final List<Iterator<Cell>> sources) {
+        return merge(sources, cell -> {
+        });
+    }
+
+    /**
+     * Merges sorted iterators leaving a single cell per key and reports the older versions skipped.
+     */
+    @NotNull
+    static Iterator<Cell> merge(
+            @NotNull final List<Iterator<Cell>> sources,
+            @NotNull final Consumer<Cell> shadowed) {
+        if (sources.size() == 1) {
+            return sources.get(0);
+        }
+        return new MergingIterator(sources, shadowed);
+    }
+
+    /**
+     * Skips tombstones older than the timestamp and reports them
+     */
+    @NotNull
+    static Iterator<Cell> purge(
+            @NotNull final Iterator<Cell> cells,
+            final long before,
+            @NotNull final Consumer<Cell> purged) {
+        return new Iterator<Cell>() {
+            private Cell next = advance();
+
+            private Cell advance() {
+                while (cells.hasNext()) {
+                    final Cell cell = cells.next();
+                    final Value value = cell.getValue();
+                    if (!value.isRemoved() || value.getTimestamp() >= before) {
+                        return cell;
+                    }
+                    purged.accept(cell);
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final Cell result = next;
+                next = advance();
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Replaces the values expired by the time with tombstones of the same timestamps and reports them
+     *
+     * @param now the time in milliseconds since the epoch
+     */
+    @NotNull
+    static Iterator<Cell> expire(
+            @NotNull final Iterator<Cell> cells,
+            final long now,
+            @NotNull final Consumer<Cell> expired) {
+        return new Iterator<Cell>() {
+            @Override
+            public boolean hasNext() {
+                return cells.hasNext();
+            }
+
+            @Override
+            public Cell next() {
+                final Cell cell = cells.next();
+                final Value value = cell.getValue();
+                if (value.isRemoved() || !value.isExpired(now)) {
+                    return cell;
+                }
+                expired.accept(cell);
+                return new Cell(cell.getKey(), Value.tombstone(value.getTimestamp()));
+            }
+        };
+    }
+
+    /**
+     * Skips the cells not matching the predicate
+     */
+    @NotNull
+    static Iterator<Cell> filter(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final Predicate<Cell> predicate) {
+        return new Iterator<Cell>() {
+            private Cell next = advance();
+
+            private Cell advance() {
+                while (cells.hasNext()) {
+                    final Cell cell = cells.next();
+                    if (predicate.test(cell)) {
+                        return cell;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final Cell result = next;
+                next = advance();
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Stops before the first cell whose key is not less than the end
+     */
+    @NotNull
+    static Iterator<Cell> until(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final ByteBuffer end) {
+        return new Iterator<Cell>() {
+            private Cell next = advance();
+
+            private Cell advance() {
+                if (cells.hasNext()) {
+                    final Cell cell = cells.next();
+                    if (Bytes.compare(cell.getKey(), end) < 0) {
+                        return cell;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final Cell result = next;
+                next = advance();
+                return result;
+            }
+        };
+    }
+
+    private static final class MergingIterator implements Iterator<Cell> {
+        private final PriorityQueue<Source> queue;
+        private final Consumer<Cell> shadowed;
+
+        MergingIterator(
+                @NotNull final List<Iterator<Cell>> sources,
+                @NotNull final Consumer<Cell> shadowed) {
+            this.shadowed = shadowed;
+            this.queue = new PriorityQueue<>(Math.max(1, sources.size()));
+            for (int i = 0; i < sources.size(); i++) {
+                final Iterator<Cell> iterator = sources.get(i);
+                if (iterator.hasNext()) {
+                    queue.add(new Source(i, iterator));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Cell next() {
+            final Source top = queue.poll();
+            if (top == null) {
+                throw new NoSuchElementException();
+            }
+            final Cell result = top.current;
+            advance(top);
+
+            // Skip older versions of the same key
+            while (!queue.isEmpty()
+                    && Bytes.compare(queue.peek().current.getKey(), result.getKey()) == 0) {
+                final Source older = queue.poll();
+                shadowed.accept(older.current);
+                advance(older);
+            }
+            return result;
+        }
+
+        private void advance(@NotNull final Source source) {
+            if (source.iterator.hasNext()) {
+                source.current = source.iterator.next();
+                queue.add(source);
+            }
+        }
+    }
+
+    private static final class Source implements Comparable<Source> {
+        private final int priority;
+        private final Iterator<Cell> iterator;
+        private Cell current;
+
+        Source(
+                final int priority,
+                @NotNull final Iterator<Cell> iterator) {
+            this.priority = priority;
+            this.iterator = iterator;
+            this.current = iterator.next();
+        }
+
+        @Override
+        public int compareTo(@NotNull final Source other) {
+            final int cmp = Bytes.compare(current.getKey(), other.current.getKey());
+            return cmp != 0 ? cmp : Integer.compare(priority, other.priority);
+        }
+    }
+}
@@ -0,0 +1,1156 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.KVDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Log-structured {@link KVDao}: writes go to a {@link WriteAheadLog} and a {@link MemTable}
+ * which is swapped for an empty one when full and flushed to an immutable {@link SSTable}
+ * in background, reads look through the memtables and the tables from the newest to the
+ * oldest one. Tables are merged in background by the {@link Compactor}.
+ * <p>
+ * Values larger than the configured threshold or written in chunks are kept in the
+ * {@link BlobStore}, while the tables reference them.
+ * <p>
+ * Versions are stamped by a {@link HybridClock}. An update older than the stored
+ * version is dropped, so a newer table always holds newer versions and reads may
+ * stop at the first table containing the key.
+ * <p>
+ * The {@link MerkleTree} leaves are updated by every write, and every memtable keeps the changes
+ * of the digests it has made. A flush adds them to the digests over the tables.
+ * <p>
+ * The {@link Manifest} is rewritten whenever the tables change, so that opening the storage
+ * costs a read per file rather than per table contents, and records the flushed logs and the
+ * digests over the tables. After a crash only the replayed updates are digested.
+ */
+public final class LSMDao implements StreamingKVDao {
+    private static final Logger log = Logger.getLogger(LSMDao.class.getName());
+    static final String BLOBS = "blobs";
+
+    static final Comparator<SSTable> NEWEST_FIRST =
+            Comparator.comparingInt(SSTable::level)
+                    .thenComparing(Comparator.comparingLong(SSTable::sequence).reversed())
+                    .thenComparing(Comparator.comparingLong(SSTable::generation).reversed());
+
+    @NotNull
+    private final File data;
+    @NotNull
+    private final DaoConfig config;
+
+    /**
+     * Writers hold the read lock while touching the memtable, the write lock
+     * is taken only to swap the table set
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes memtable swaps, writers held back by pending flushes wait on it
+     */
+    private final Object flushLock = new Object();
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile IOException flushFailure;
+    /**
+     * Generation of the newest log whose memtable has been flushed, written by flushes one at a time
+     */
+    private volatile long checkpoint = -1;
+    /**
+     * Serializes the writes of the manifest
+     */
+    private final Object manifestLock = new Object();
+
+    @NotNull
+    private volatile TableSet tables;
+    private final AtomicLong generation = new AtomicLong();
+    @NotNull
+    private final HybridClock clock;
+    @NotNull
+    private final MerkleTree.Leaves leaves;
+    @NotNull
+    private final MerkleTree tree;
+    @NotNull
+    private final BlockCache cache;
+    @NotNull
+    private final BlobStore blobs;
+    @NotNull
+    private final Compactor compactor;
+    private final ScheduledExecutorService syncer;
+
+    public LSMDao(
+            @NotNull final File data,
+            @NotNull final DaoConfig config) throws IOException {
+        this(data, config, new HybridClock(), new BlobStore(new File(data, BLOBS)), null);
+    }
+
+    /**
+     * Opens a part of a larger storage, which shares the clock, the blobs and the digests
+     *
+     * @param leaves digests of the whole storage or {@code null} to keep the digests of this one
+     */
+    LSMDao(
+            @NotNull final File data,
+            @NotNull final DaoConfig config,
+            @NotNull final HybridClock clock,
+            @NotNull final BlobStore blobs,
+            @Nullable final MerkleTree.Leaves leaves) throws IOException {
+        this.data = data;
+        this.config = config;
+        this.clock = clock;
+        // Blocks overflow the target size by up to a single entry
+        this.cache = new BlockCache(config.cacheSize, config.blockSize * 2);
+        this.blobs = blobs;
+
+        final Manifest manifest = Manifest.read(data);
+        if (manifest != null) {
+            generation.set(manifest.nextGeneration());
+            checkpoint = manifest.checkpoint();
+        }
+
+        final List<SSTable> ssTables = new ArrayList<>();
+        final List<File> logs = new ArrayList<>();
+        final File[] files = data.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (file.isDirectory()) {
+                    continue;
+                }
+                if (name.endsWith(Segment.SUFFIX)) {
+                    throw new IllegalStateException("Storage " + data + " is hash-indexed");
+                }
+                if (name.contains(SSTable.TEMP_SUFFIX)) {
+                    // Leftover of an interrupted flush
+                    Files.delete(file.toPath());
+                } else if (name.endsWith(SSTable.SUFFIX)) {
+                    final long gen = generationOf(file, SSTable.SUFFIX);
+                    if (manifest != null && !manifest.describes(gen)) {
+                        // Written right before a crash, or compacted, either way superseded by the manifest
+                        Files.delete(file.toPath());
+                        continue;
+                    }
+                    ssTables.add(SSTable.open(file, gen, manifest == null ? null : manifest.table(gen), cache));
+                    generation.set(Math.max(generation.get(), gen + 1));
+                } else if (name.endsWith(WriteAheadLog.SUFFIX)) {
+                    final long gen = generationOf(file, WriteAheadLog.SUFFIX);
+                    if (gen <= checkpoint) {
+                        // The memtable had been flushed before the log was removed
+                        Files.delete(file.toPath());
+                    } else {
+                        logs.add(file);
+                    }
+                    generation.set(Math.max(generation.get(), gen + 1));
+                }
+            }
+        }
+        if (manifest != null && ssTables.size() != manifest.generations().size()) {
+            throw new IOException("Tables described by the manifest of " + data + " are missing");
+        }
+        ssTables.sort(NEWEST_FIRST);
+
+        // Recover the updates which haven't reached the tables before a crash,
+        // the recorded digests over the tables are advanced by them
+        logs.sort(Comparator.comparingLong(file -> generationOf(file, WriteAheadLog.SUFFIX)));
+        final MerkleTree.Leaves recorded = manifest == null ? null : new MerkleTree.Leaves(manifest.digests());
+        final MemTable[] recovered = {newMemTable()};
+        final List<SSTable> flushed = new ArrayList<>();
+        for (final File log : logs) {
+            WriteAheadLog.replay(log, (key, value) -> {
+                if (stale(flushed, key, value)) {
+                    return;
+                }
+                int node = recovered[0].prepare(key, value);
+                if (node == MemTable.FULL) {
+                    // The logs outgrow a single memtable
+                    flushed.add(0, writeTable(recovered[0]));
+                    deleteBlobs(recovered[0].shadowedBlobs());
+                    recovered[0] = newMemTable();
+                    node = recovered[0].prepare(key, value);
+                }
+                if (recorded != null) {
+                    // The digests follow the newest version over the memtable and all the tables
+                    final Value before = newer(newer(recovered[0].get(key), find(flushed, key)), find(ssTables, key));
+                    recorded.update(key, before, newer(before, value));
+                }
+                recovered[0].link(node);
+            });
+        }
+        if (!recovered[0].isEmpty()) {
+            flushed.add(0, writeTable(recovered[0]));
+            deleteBlobs(recovered[0].shadowedBlobs());
+        }
+        ssTables.addAll(flushed);
+        ssTables.sort(NEWEST_FIRST);
+        final MerkleTree.Leaves digests;
+        if (recorded == null) {
+            // Nothing recorded, so the tables are digested anew
+            digests = new MerkleTree.Leaves();
+            final List<Iterator<Cell>> sources = new ArrayList<>(ssTables.size());
+            for (final SSTable table : ssTables) {
+                sources.add(table.iterator(Bytes.EMPTY));
+            }
+            digests.add(Iters.merge(sources));
+        } else {
+            digests = recorded;
+        }
+        for (final SSTable table : ssTables) {
+            clock.observe(table.maxTimestamp());
+        }
+        if (!logs.isEmpty()) {
+            checkpoint = generationOf(logs.get(logs.size() - 1), WriteAheadLog.SUFFIX);
+        }
+
+        this.tables = new TableSet(newMemTable(), newLog(), Collections.emptyList(), ssTables, digests.toArray());
+        // The replayed logs are removed only once the manifest records their tables
+        writeManifest();
+        for (final File log : logs) {
+            Files.delete(log.toPath());
+        }
+
+        if (leaves == null) {
+            this.leaves = new MerkleTree.Leaves(tables.digests);
+        } else {
+            this.leaves = leaves;
+            leaves.add(tables.digests);
+        }
+        this.tree = MerkleTree.of(this::cells, this.leaves);
+        this.compactor = new Compactor(this, config);
+        compactor.schedule();
+
+        if (config.durability == WriteAheadLog.Durability.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "log-syncer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncLog, config.syncIntervalMs, config.syncIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    private static long generationOf(
+            @NotNull final File file,
+            @NotNull final String suffix) {
+        final String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+    }
+
+    @NotNull
+    private WriteAheadLog newLog() throws IOException {
+        return WriteAheadLog.create(
+                new File(data, generation.getAndIncrement() + WriteAheadLog.SUFFIX),
+                config.durability);
+    }
+
+    /**
+     * Syncs the frozen logs as well, since the writes to them may follow their last sync
+     */
+    private void syncLog() {
+        final TableSet current = tables;
+        try {
+            for (int i = current.flushing.size() - 1; i >= 0; i--) {
+                // A flushed log is closed, which makes its sync a no-op
+                current.flushing.get(i).wal.sync();
+            }
+            current.wal.sync();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can't sync the log", e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+        final Value value = find(tables, ByteBuffer.wrap(key));
+        // The deadline is stored next to the value, so expiry costs no extra reads
+        if (value == null || !value.isLive(System.currentTimeMillis())) {
+            throw new NoSuchElementException();
+        }
+        if (value.isBlob()) {
+            try (ValueReader reader = open(key)) {
+                return ValueReaders.toArray(reader);
+            }
+        }
+        return Bytes.toArray(value.getData());
+    }
+
+    @NotNull
+    @Override
+    public ValueReader open(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+        final Record record = getWithMeta(key);
+        if (record == null || record.isTombstone()) {
+            throw new NoSuchElementException();
+        }
+        return record.getValue();
+    }
+
+    @Nullable
+    @Override
+    public Record getWithMeta(@NotNull final byte[] key) throws IOException {
+        while (true) {
+            final TableSet snapshot = tables;
+            final Value value = find(snapshot, ByteBuffer.wrap(key));
+            if (value == null) {
+                return null;
+            }
+            if (!value.isLive(System.currentTimeMillis())) {
+                return Record.tombstone(value.getTimestamp());
+            }
+            if (!value.isBlob()) {
+                return Record.value(value.getTimestamp(), value.expiresAt(), ValueReaders.of(value.getData()));
+            }
+            try {
+                return Record.value(
+                        value.getTimestamp(),
+                        value.expiresAt(),
+                        ValueReaders.of(blobs.open(value.blobId()), value.blobLength()));
+            } catch (NoSuchFileException e) {
+                // A blob is removed only after its version has been superseded in a newer snapshot
+                if (snapshot == tables) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long timestamp() {
+        return clock.now();
+    }
+
+    @NotNull
+    @Override
+    public ValueWriter create() throws IOException {
+        return writer(blobs.create(), clock, this::store);
+    }
+
+    /**
+     * Stores a version of a key unless a newer one is already stored
+     */
+    @FunctionalInterface
+    interface VersionStore {
+        void store(
+                @NotNull ByteBuffer key,
+                @NotNull Value value) throws IOException;
+    }
+
+    /**
+     * @param target the storage of the key, which shares the blobs and the clock
+     * @return a writer of the blob, which is committed to the storage of the key
+     */
+    @NotNull
+    static ValueWriter writer(
+            @NotNull final BlobStore.Writer writer,
+            @NotNull final HybridClock clock,
+            @NotNull final VersionStore target) {
+        return new ValueWriter() {
+            @Override
+            public void write(@NotNull final ByteBuffer chunk) throws IOException {
+                writer.write(chunk);
+            }
+
+            @Override
+            public long length() {
+                return writer.length();
+            }
+
+            @Override
+            public void commit(@NotNull final byte[] key) throws IOException {
+                commit(key, clock.now());
+            }
+
+            @Override
+            public void commit(
+                    @NotNull final byte[] key,
+                    final long timestamp) throws IOException {
+                commit(key, timestamp, Value.NEVER);
+            }
+
+            @Override
+            public void commit(
+                    @NotNull final byte[] key,
+                    final long timestamp,
+                    final long expiresAt) throws IOException {
+                // The blob is durable before the log references it
+                target.store(Bytes.copyOf(key), expiring(writer.commit(timestamp), expiresAt));
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Racing updates of a key may be logged out of order, which a memtable reconciles.
+     * Once the recovered updates span several tables, a newer table must not get the older version.
+     *
+     * @param flushed tables recovered so far from the newest to the oldest
+     * @return whether a recovered table holds a newer version, the blob of the stale one is removed
+     */
+    private boolean stale(
+            @NotNull final List<SSTable> flushed,
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        for (final SSTable table : flushed) {
+            final Value stored = table.get(key);
+            if (stored != null) {
+                if (value.isNewerThan(stored)) {
+                    return false;
+                }
+                if (value.isBlob()) {
+                    blobs.delete(value.blobId());
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    private MemTable newMemTable() {
+        return new MemTable(newMemTableSize());
+    }
+
+    private int newMemTableSize() {
+        return (int) Math.min(Integer.MAX_VALUE, config.memTableSize);
+    }
+
+    @Nullable
+    private static Value find(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer key) {
+        final Value value = snapshot.memTable.get(key);
+        if (value != null) {
+            return value;
+        }
+        return findFlushed(snapshot, key);
+    }
+
+    /**
+     * @return the newest version below the current memtable
+     */
+    @Nullable
+    private static Value findFlushed(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer key) {
+        for (final Frozen frozen : snapshot.flushing) {
+            final Value value = frozen.memTable.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return find(snapshot.ssTables, key);
+    }
+
+    /**
+     * @param tables from the newest to the oldest one
+     * @return the newest version of the tables
+     */
+    @Nullable
+    private static Value find(
+            @NotNull final List<SSTable> tables,
+            @NotNull final ByteBuffer key) {
+        for (final SSTable table : tables) {
+            final Value value = table.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Value newer(
+            @Nullable final Value value,
+            @Nullable final Value other) {
+        return value == null || other != null && other.isNewerThan(value) ? other : value;
+    }
+
+    /**
+     * @return the changes of the digests made by the oldest memtable having the key or {@code null} if none has it
+     */
+    @Nullable
+    private static MerkleTree.Leaves oldestChanges(
+            @NotNull final TableSet snapshot,
+            @NotNull final ByteBuffer key) {
+        for (int i = snapshot.flushing.size() - 1; i >= 0; i--) {
+            final Frozen frozen = snapshot.flushing.get(i);
+            if (frozen.memTable.get(key) != null) {
+                return frozen.changes;
+            }
+        }
+        return snapshot.memTable.get(key) == null ? null : snapshot.changes;
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value) throws IOException {
+        upsert(key, value, clock.now());
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value,
+            final long timestamp) throws IOException {
+        upsert(key, value, timestamp, Value.NEVER);
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value,
+            final long timestamp,
+            final long expiresAt) throws IOException {
+        if (value.length > config.blobThreshold) {
+            try (ValueWriter writer = create()) {
+                writer.write(ByteBuffer.wrap(value));
+                writer.commit(key, timestamp, expiresAt);
+            }
+            return;
+        }
+        store(Bytes.copyOf(key), expiring(Value.of(Bytes.copyOf(value), timestamp), expiresAt));
+    }
+
+    @NotNull
+    static Value expiring(
+            @NotNull final Value value,
+            final long expiresAt) {
+        return expiresAt == Value.NEVER ? value : value.expiring(expiresAt);
+    }
+
+    @Override
+    public void remove(@NotNull final byte[] key) throws IOException {
+        remove(key, clock.now());
+    }
+
+    @Override
+    public void remove(
+            @NotNull final byte[] key,
+            final long timestamp) throws IOException {
+        store(Bytes.copyOf(key), Value.tombstone(timestamp));
+    }
+
+    @NotNull
+    @Override
+    public MerkleTree merkleTree() {
+        return tree;
+    }
+
+    /**
+     * @return all the versions including tombstones in the order of keys starting from the key
+     */
+    @NotNull
+    Iterator<Cell> cells(@NotNull final ByteBuffer from) {
+        final TableSet snapshot = tables;
+        final List<Iterator<Cell>> sources = new ArrayList<>(snapshot.ssTables.size() + snapshot.flushing.size() + 1);
+        sources.add(snapshot.memTable.iterator(from));
+        for (final Frozen frozen : snapshot.flushing) {
+            sources.add(frozen.memTable.iterator(from));
+        }
+        for (final SSTable table : snapshot.ssTables) {
+            sources.add(table.iterator(from));
+        }
+        return Iters.merge(sources);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Entry> range(
+            @NotNull final byte[] from,
+            @Nullable final byte[] to) {
+        return range(cells(ByteBuffer.wrap(from)), to, key -> this);
+    }
+
+    /**
+     * @param versions all the versions in the order of keys starting from the first key of the range
+     * @param target   the storage of a key, which opens its value
+     * @return the live keys of the range
+     */
+    @NotNull
+    static Iterator<Entry> range(
+            @NotNull final Iterator<Cell> versions,
+            @Nullable final byte[] to,
+            @NotNull final Function<ByteBuffer, LSMDao> target) {
+        Iterator<Cell> cells = versions;
+        if (to != null) {
+            cells = Iters.until(cells, ByteBuffer.wrap(to));
+        }
+        // Every tombstone is older than the end of time
+        final Iterator<Cell> live = Iters.purge(
+                Iters.expire(cells, System.currentTimeMillis(), cell -> {
+                }),
+                Long.MAX_VALUE,
+                cell -> {
+                });
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return live.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                final Cell cell = live.next();
+                return new Entry(cell.getKey(), cell.getValue().getTimestamp(), cell.getValue().expiresAt()) {
+                    @Nullable
+                    @Override
+                    public ValueReader open() throws IOException {
+                        return target.apply(cell.getKey()).open(cell);
+                    }
+                };
+            }
+        };
+    }
+
+    @Nullable
+    private ValueReader open(@NotNull final Cell cell) throws IOException {
+        final Value value = cell.getValue();
+        if (!value.isBlob()) {
+            return ValueReaders.of(value.getData());
+        }
+        try {
+            return ValueReaders.of(blobs.open(value.blobId()), value.blobLength());
+        } catch (NoSuchFileException e) {
+            // The version has been superseded and its blob removed meanwhile
+            final Record record = getWithMeta(Bytes.toArray(cell.getKey()));
+            return record == null || record.isTombstone() ? null : record.getValue();
+        }
+    }
+
+    @NotNull
+    @Override
+    public File directory(@NotNull final String name) throws IOException {
+        if (name.equals(BLOBS)) {
+            throw new IllegalArgumentException("Reserved directory " + name);
+        }
+        final File directory = new File(data, name);
+        Files.createDirectories(directory.toPath());
+        return directory;
+    }
+
+    @Override
+    public void apply(@NotNull final Batch batch) throws IOException {
+        final List<Cell> cells = new ArrayList<>(batch.size());
+        try {
+            for (final Batch.Update update : batch.updates()) {
+                final long timestamp = update.timestamp == Batch.NOW ? clock.now() : update.timestamp;
+                final ByteBuffer key = Bytes.copyOf(update.key);
+                if (update.value == null) {
+                    cells.add(new Cell(key, Value.tombstone(timestamp)));
+                } else if (update.value.length > config.blobThreshold) {
+                    try (BlobStore.Writer writer = blobs.create()) {
+                        writer.write(ByteBuffer.wrap(update.value));
+                        cells.add(new Cell(key, expiring(writer.commit(timestamp), update.expiresAt)));
+                    }
+                } else {
+                    cells.add(new Cell(key, expiring(Value.of(Bytes.copyOf(update.value), timestamp), update.expiresAt)));
+                }
+            }
+            // A batch is logged as a single record, which must fit a memtable, or it would be retried forever
+            if (!MemTable.fits(cells, newMemTableSize())) {
+                throw new IOException("Batch of " + cells.size() + " updates exceeds the memtable");
+            }
+        } catch (IOException e) {
+            // Nothing references the blobs of the batch yet
+            for (final Cell cell : cells) {
+                if (cell.getValue().isBlob()) {
+                    blobs.delete(cell.getValue().blobId());
+                }
+            }
+            throw e;
+        }
+        store(cells);
+    }
+
+    void store(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        store(Collections.singletonList(new Cell(key, value)));
+    }
+
+    private void store(@NotNull final List<Cell> cells) throws IOException {
+        List<Cell> pending = cells;
+        while (true) {
+            final WriteAheadLog wal;
+            final long position;
+            final MemTable memTable;
+            final List<Cell> fresh = new ArrayList<>(pending.size());
+            final List<Value> flushed = new ArrayList<>(pending.size());
+            lock.readLock().lock();
+            try {
+                // The tables can't be swapped meanwhile, and racing updates meet in the same memtable
+                final TableSet current = tables;
+                for (final Cell cell : pending) {
+                    final Value value = cell.getValue();
+                    // The digest of the version below the memtable is replaced unless the memtable has one
+                    final Value below = findFlushed(current, cell.getKey());
+                    final Value stored = current.memTable.get(cell.getKey());
+                    final Value newest = stored == null ? below : stored;
+                    if (newest != null && !value.isNewerThan(newest)) {
+                        if (value.isBlob()) {
+                            blobs.delete(value.blobId());
+                        }
+                        continue;
+                    }
+                    clock.observe(value.getTimestamp());
+                    fresh.add(cell);
+                    flushed.add(below);
+                }
+                if (fresh.isEmpty()) {
+                    return;
+                }
+                // Copy the updates to the memtable first, so that a full one is detected before logging
+                memTable = current.memTable;
+                final int[] nodes = prepare(memTable, fresh);
+                if (nodes == null) {
+                    wal = null;
+                    position = 0;
+                } else {
+                    wal = current.wal;
+                    // Only the position is taken under the log monitor. Racing updates of a key
+                    // may be linked in another order than logged, the memtable orders their versions.
+                    position = wal.append(fresh);
+                    for (int i = 0; i < nodes.length; i++) {
+                        final Cell cell = fresh.get(i);
+                        final Value shadowed = memTable.link(nodes[i]);
+                        final Value old = shadowed == null ? flushed.get(i) : shadowed;
+                        leaves.update(cell.getKey(), old, cell.getValue());
+                        current.changes.update(cell.getKey(), old, cell.getValue());
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (wal == null) {
+                // The updates left in the full memtable are never linked, the next one gets them
+                rotate(memTable);
+                pending = fresh;
+                continue;
+            }
+            wal.commit(position);
+            return;
+        }
+    }
+
+    /**
+     * @return the prepared nodes or {@code null} if the memtable is full
+     */
+    @Nullable
+    private static int[] prepare(
+            @NotNull final MemTable memTable,
+            @NotNull final List<Cell> cells) throws IOException {
+        final int[] nodes = new int[cells.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            final Cell cell = cells.get(i);
+            try {
+                nodes[i] = memTable.prepare(cell.getKey(), cell.getValue());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Can't store the key", e);
+            }
+            if (nodes[i] == MemTable.FULL) {
+                return null;
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Swaps the full memtable for an empty one and schedules its flush.
+     * <p>
+     * Writers are held back only while as many memtables as configured wait for a flush,
+     * i.e. when flushes fall behind the writes.
+     */
+    private void rotate(@NotNull final MemTable full) throws IOException {
+        synchronized (flushLock) {
+            while (tables.memTable == full && tables.flushing.size() >= config.immutableMemTables) {
+                final IOException failure = flushFailure;
+                if (failure != null) {
+                    throw new IOException("Memtables can't be flushed", failure);
+                }
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a flush");
+                }
+            }
+            if (tables.memTable != full) {
+                // Swapped by another writer
+                return;
+            }
+            freeze(newMemTableSize());
+        }
+        flusher.execute(this::flushOldest);
+    }
+
+    /**
+     * Makes the current memtable immutable, so that it can be flushed
+     */
+    private void freeze(final int newMemTableSize) throws IOException {
+        final WriteAheadLog newLog = newLog();
+        final MemTable newMemTable = new MemTable(newMemTableSize);
+        lock.writeLock().lock();
+        try {
+            tables = tables.freeze(newLog, newMemTable);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes memtables in the order they were frozen, so that newer tables hold newer versions.
+     * A memtable which fails to flush stays readable and is retried by the next flush.
+     */
+    private void flushOldest() {
+        final List<Frozen> flushing = tables.flushing;
+        if (flushing.isEmpty()) {
+            return;
+        }
+        try {
+            flush(flushing.get(flushing.size() - 1));
+            flushFailure = null;
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Can't flush a memtable", e);
+            flushFailure = e;
+        } finally {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+        compactor.schedule();
+    }
+
+    /**
+     * Writes the frozen memtable to a new table and removes its log
+     */
+    private void flush(@NotNull final Frozen frozen) throws IOException {
+        final SSTable table = writeTable(frozen.memTable);
+
+        lock.writeLock().lock();
+        try {
+            tables = tables.flushed(frozen, table);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        checkpoint = generationOf(frozen.wal.file(), WriteAheadLog.SUFFIX);
+        writeManifest();
+
+        // The updates are durable in the table now
+        frozen.wal.close();
+        Files.delete(frozen.wal.file().toPath());
+        deleteBlobs(frozen.memTable.shadowedBlobs());
+    }
+
+    @NotNull
+    private SSTable writeTable(@NotNull final MemTable memTable) throws IOException {
+        final long gen = generation.getAndIncrement();
+        final File file = tableFile(gen);
+        SSTableWriter.write(
+                file,
+                memTable.iterator(Bytes.EMPTY),
+                0,
+                gen,
+                Long.MAX_VALUE,
+                config.blockSize,
+                config.bloomBitsPerKey);
+        return SSTable.open(file, gen, cache);
+    }
+
+    @NotNull
+    private File tableFile(final long gen) {
+        return new File(data, gen + SSTable.SUFFIX);
+    }
+
+    @NotNull
+    File newTableFile() {
+        return tableFile(generation.getAndIncrement());
+    }
+
+    /**
+     * @return live tables ordered from the newest to the oldest one
+     */
+    @NotNull
+    List<SSTable> tables() {
+        return tables.ssTables;
+    }
+
+    /**
+     * Atomically substitutes compacted tables with the result of the compaction
+     * and removes the former ones.
+     *
+     * @param purged tombstones the outputs have dropped, which leave the digests unless superseded
+     */
+    void replace(
+            @NotNull final List<SSTable> inputs,
+            @NotNull final List<File> outputs,
+            @NotNull final List<Cell> purged) throws IOException {
+        final List<SSTable> opened = new ArrayList<>(outputs.size());
+        for (final File file : outputs) {
+            opened.add(SSTable.open(file, generationOf(file, SSTable.SUFFIX), cache));
+        }
+
+        lock.writeLock().lock();
+        try {
+            final TableSet current = tables;
+            final long[] digests = current.digests.clone();
+            for (final Cell tombstone : purged) {
+                final ByteBuffer key = tombstone.getKey();
+                final Value newest = find(current.ssTables, key);
+                if (newest == null || newest.getTimestamp() != tombstone.getValue().getTimestamp()) {
+                    continue;
+                }
+                digests[MerkleTree.leafOf(key)] ^= MerkleTree.digest(key, newest);
+                // A memtable having the key has replaced the digest of the tombstone, so the oldest one drops it
+                final MerkleTree.Leaves shadowing = oldestChanges(current, key);
+                (shadowing == null ? leaves : shadowing).update(key, newest, null);
+            }
+            tables = current.replaced(inputs, opened, digests);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writeManifest();
+
+        // Remove the oldest inputs first, so that a crash never resurrects shadowed versions.
+        // Readers of the former snapshot keep using the mappings, which outlive the files.
+        for (int i = inputs.size() - 1; i >= 0; i--) {
+            final SSTable input = inputs.get(i);
+            input.load();
+            Files.delete(input.file().toPath());
+        }
+    }
+
+    /**
+     * Records the current tables, the latest writer records the latest ones
+     */
+    private void writeManifest() throws IOException {
+        synchronized (manifestLock) {
+            // A flush adds its table before it moves the checkpoint,
+            // and a table gets its generation before it is added
+            final long flushed = checkpoint;
+            final TableSet current = tables;
+            Manifest.write(data, generation.get(), flushed, current.ssTables, current.digests);
+        }
+    }
+
+    /**
+     * Removes blobs which aren't referenced by any table any more
+     */
+    void deleteBlobs(@NotNull final Collection<Long> ids) throws IOException {
+        for (final long id : ids) {
+            blobs.delete(id);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        compactor.close();
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a flush");
+        }
+        log.log(Level.FINE, "Block cache hits: {0}, misses: {1}", new Object[]{cache.hits(), cache.misses()});
+        synchronized (flushLock) {
+            if (!tables.memTable.isEmpty()) {
+                // Nothing is written any more, so the new memtable only has to exist
+                freeze(MemTable.MIN_CAPACITY);
+            }
+            // Including the memtables the flusher has failed to flush
+            for (List<Frozen> flushing = tables.flushing; !flushing.isEmpty(); flushing = tables.flushing) {
+                flush(flushing.get(flushing.size() - 1));
+            }
+        }
+        final TableSet current = tables;
+        current.wal.close();
+        // Everything has been flushed, so there is nothing to replay
+        Files.delete(current.wal.file().toPath());
+        checkpoint = generationOf(current.wal.file(), WriteAheadLog.SUFFIX);
+        writeManifest();
+        for (final SSTable table : current.ssTables) {
+            table.close();
+        }
+    }
+
+    @Override
+    public void crash() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+            await(syncer);
+        }
+        compactor.close();
+        flusher.shutdownNow();
+        await(flusher);
+        synchronized (flushLock) {
+            final TableSet current = tables;
+            current.wal.close();
+            for (final Frozen frozen : current.flushing) {
+                frozen.wal.close();
+            }
+            for (final SSTable table : current.ssTables) {
+                table.close();
+            }
+        }
+    }
+
+    private static void await(@NotNull final ExecutorService executor) throws InterruptedIOException {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the background threads");
+        }
+    }
+
+    /**
+     * Full memtable waiting for a flush together with the log which keeps it durable meanwhile
+     */
+    private static final class Frozen {
+        @NotNull
+        final MemTable memTable;
+        @NotNull
+        final WriteAheadLog wal;
+        /**
+         * Changes of the digests made by the memtable over the versions below it
+         */
+        @NotNull
+        final MerkleTree.Leaves changes;
+
+        Frozen(
+                @NotNull final MemTable memTable,
+                @NotNull final WriteAheadLog wal,
+                @NotNull final MerkleTree.Leaves changes) {
+            this.memTable = memTable;
+            this.wal = wal;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the memtables and the tables ordered from the newest to the oldest
+     */
+    private static final class TableSet {
+        @NotNull
+        final MemTable memTable;
+        @NotNull
+        final WriteAheadLog wal;
+        /**
+         * Changes of the digests made by the memtable over the versions below it
+         */
+        @NotNull
+        final MerkleTree.Leaves changes;
+        /**
+         * From the newest to the oldest one
+         */
+        @NotNull
+        final List<Frozen> flushing;
+        @NotNull
+        final List<SSTable> ssTables;
+        /**
+         * Digests of the leaves over the tables alone, never modified
+         */
+        @NotNull
+        final long[] digests;
+
+        TableSet(
+                @NotNull final MemTable memTable,
+                @NotNull final WriteAheadLog wal,
+                @NotNull final List<Frozen> flushing,
+                @NotNull final List<SSTable> ssTables,
+                @NotNull final long[] digests) {
+            this(memTable, wal, new MerkleTree.Leaves(), flushing, ssTables, digests);
+        }
+
+        private TableSet(
+                @NotNull final MemTable memTable,
+                @NotNull final WriteAheadLog wal,
+                @NotNull final MerkleTree.Leaves changes,
+                @NotNull final List<Frozen> flushing,
+                @NotNull final List<SSTable> ssTables,
+                @NotNull final long[] digests) {
+            this.memTable = memTable;
+            this.wal = wal;
+            this.changes = changes;
+            this.flushing = flushing;
+            final List<SSTable> sorted = new ArrayList<>(ssTables);
+            sorted.sort(NEWEST_FIRST);
+            this.ssTables = Collections.unmodifiableList(sorted);
+            this.digests = digests;
+        }
+
+        @NotNull
+        TableSet freeze(
+                @NotNull final WriteAheadLog newLog,
+                @NotNull final MemTable newMemTable) {
+            final List<Frozen> newFlushing = new ArrayList<>(flushing.size() + 1);
+            newFlushing.add(new Frozen(memTable, wal, changes));
+            newFlushing.addAll(flushing);
+            return new TableSet(newMemTable, newLog, Collections.unmodifiableList(newFlushing), ssTables, digests);
+        }
+
+        @NotNull
+        TableSet flushed(
+                @NotNull final Frozen frozen,
+                @NotNull final SSTable table) {
+            final List<Frozen> newFlushing = new ArrayList<>(flushing);
+            newFlushing.remove(frozen);
+            final List<SSTable> newTables = new ArrayList<>(ssTables);
+            newTables.add(table);
+            // The memtable is older than the others, so the versions below it are the tables
+            return new TableSet(
+                    memTable,
+                    wal,
+                    changes,
+                    Collections.unmodifiableList(newFlushing),
+                    newTables,
+                    frozen.changes.xor(digests));
+        }
+
+        @NotNull
+        TableSet replaced(
+                @NotNull final List<SSTable> removed,
+                @NotNull final List<SSTable> added,
+                @NotNull final long[] newDigests) {
+            final List<SSTable> newTables = new ArrayList<>(ssTables);
+            newTables.removeAll(removed);
+            newTables.addAll(added);
+            return new TableSet(memTable, wal, changes, flushing, newTables, newDigests);
+        }
+    }
+}
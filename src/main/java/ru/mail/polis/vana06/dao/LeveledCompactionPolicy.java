@@ -0,0 +1,141 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps tables in levels of exponentially growing size.
+ * <p>
+ * Level 0 consists of freshly flushed overlapping tables, while the tables of
+ * every other level cover disjoint key ranges. When a level outgrows its target
+ * size, one of its tables is merged into the overlapping tables of the next level.
+ * Bounds read and space amplification at the cost of rewriting data more often.
+ */
+final class LeveledCompactionPolicy implements CompactionPolicy {
+    private static final int L0_TRIGGER = 4;
+    private static final int LEVEL_BASE_TABLES = 4;
+    private static final int LEVEL_MULTIPLIER = 10;
+
+    private final long tableSize;
+
+    /**
+     * The max key of the last compacted table per level to rotate through the key space
+     */
+    private final Map<Integer, ByteBuffer> compactPointers = new HashMap<>();
+
+    LeveledCompactionPolicy(final long tableSize) {
+        this.tableSize = tableSize;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<SSTable> tables) {
+        final List<List<SSTable>> levels = new ArrayList<>();
+        for (final SSTable table : tables) {
+            while (levels.size() <= table.level()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(table.level()).add(table);
+        }
+        if (levels.isEmpty()) {
+            return null;
+        }
+
+        final List<SSTable> l0 = levels.get(0);
+        if (l0.size() >= L0_TRIGGER) {
+            return compaction(levels, l0, 1);
+        }
+
+        int bestLevel = -1;
+        double bestScore = 1.0;
+        long target = tableSize * LEVEL_BASE_TABLES;
+        for (int level = 1; level < levels.size(); level++) {
+            long size = 0;
+            for (final SSTable table : levels.get(level)) {
+                size += table.sizeInBytes();
+            }
+            final double score = (double) size / target;
+            if (score > bestScore) {
+                bestScore = score;
+                bestLevel = level;
+            }
+            target *= LEVEL_MULTIPLIER;
+        }
+        if (bestLevel < 0) {
+            return null;
+        }
+
+        final List<SSTable> candidates = new ArrayList<>(levels.get(bestLevel));
+        candidates.sort(Comparator.comparing(SSTable::minKey, Bytes.COMPARATOR));
+        final ByteBuffer pointer = compactPointers.get(bestLevel);
+        SSTable chosen = candidates.get(0);
+        if (pointer != null) {
+            for (final SSTable candidate : candidates) {
+                if (Bytes.compare(candidate.minKey(), pointer) > 0) {
+                    chosen = candidate;
+                    break;
+                }
+            }
+        }
+        compactPointers.put(bestLevel, chosen.maxKey());
+        final List<SSTable> inputs = new ArrayList<>();
+        inputs.add(chosen);
+        return compaction(levels, inputs, bestLevel + 1);
+    }
+
+    @NotNull
+    private Compaction compaction(
+            @NotNull final List<List<SSTable>> levels,
+            @NotNull final List<SSTable> upper,
+            final int outputLevel) {
+        ByteBuffer min = upper.get(0).minKey();
+        ByteBuffer max = upper.get(0).maxKey();
+        for (final SSTable table : upper) {
+            if (Bytes.compare(table.minKey(), min) < 0) {
+                min = table.minKey();
+            }
+            if (Bytes.compare(table.maxKey(), max) > 0) {
+                max = table.maxKey();
+            }
+        }
+
+        final List<SSTable> inputs = new ArrayList<>(upper);
+        if (outputLevel < levels.size()) {
+            for (final SSTable table : levels.get(outputLevel)) {
+                if (overlaps(table, min, max)) {
+                    inputs.add(table);
+                }
+            }
+        }
+
+        boolean bottommost = true;
+        for (int level = outputLevel + 1; level < levels.size() && bottommost; level++) {
+            for (final SSTable table : levels.get(level)) {
+                if (overlaps(table, min, max)) {
+                    bottommost = false;
+                    break;
+                }
+            }
+        }
+
+        long sequence = 0;
+        for (final SSTable table : inputs) {
+            sequence = Math.max(sequence, table.sequence());
+        }
+        return new Compaction(inputs, outputLevel, sequence, tableSize, bottommost);
+    }
+
+    private static boolean overlaps(
+            @NotNull final SSTable table,
+            @NotNull final ByteBuffer min,
+            @NotNull final ByteBuffer max) {
+        return Bytes.compare(table.maxKey(), min) >= 0 && Bytes.compare(table.minKey(), max) <= 0;
+    }
+}
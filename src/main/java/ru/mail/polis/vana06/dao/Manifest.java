@@ -0,0 +1,238 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Description of the live tables of an {@link LSMDao}, so that opening a storage reads a single
+ * file instead of the footers and the indexes of all the tables.
+ * <pre>
+ * manifest := magic:long checksum:int nextGeneration:long checkpoint:long count:int table* digest*
+ * table    := generation:long size:long footer minKeyLength:int minKey maxKeyLength:int maxKey
+ * digest   := long (one per {@link MerkleTree} leaf)
+ * </pre>
+ * The manifest is the authority on which tables are live: a table it doesn't describe, e.g. one
+ * written right before a crash or a compacted one left behind, is removed when the storage is opened.
+ * Only a storage without a valid manifest is read from the directory. A generation is never reused,
+ * since the next one is recorded as well.
+ * <p>
+ * The digests of the {@link MerkleTree} leaves over the tables are recorded too, so that after
+ * a crash only the replayed updates are digested instead of the whole storage.
+ * <p>
+ * The checkpoint is the generation of the newest log whose memtable has been flushed, so that
+ * a log left by a crash right after the flush is removed without a replay.
+ */
+final class Manifest {
+    static final String NAME = "manifest";
+
+    private static final long MAGIC = 0x4B564D414E494633L;
+    private static final int HEADER = Long.BYTES + Integer.BYTES;
+
+    private final long nextGeneration;
+    private final long checkpoint;
+    @NotNull
+    private final Map<Long, Table> tables;
+    @NotNull
+    private final long[] digests;
+
+    /**
+     * Metadata of a table as recorded in its footer and its index
+     */
+    static final class Table {
+        final long sizeInBytes;
+        @NotNull
+        final ByteBuffer footer;
+        @NotNull
+        final ByteBuffer minKey;
+        @NotNull
+        final ByteBuffer maxKey;
+
+        private Table(
+                final long sizeInBytes,
+                @NotNull final ByteBuffer footer,
+                @NotNull final ByteBuffer minKey,
+                @NotNull final ByteBuffer maxKey) {
+            this.sizeInBytes = sizeInBytes;
+            this.footer = footer;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+        }
+    }
+
+    private Manifest(
+            final long nextGeneration,
+            final long checkpoint,
+            @NotNull final Map<Long, Table> tables,
+            @NotNull final long[] digests) {
+        this.nextGeneration = nextGeneration;
+        this.checkpoint = checkpoint;
+        this.tables = tables;
+        this.digests = digests;
+    }
+
+    /**
+     * @return the manifest of the directory or {@code null} if there is no valid one
+     */
+    @Nullable
+    static Manifest read(@NotNull final File dir) throws IOException {
+        final File file = new File(dir, NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        final ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (in.remaining() < HEADER || in.getLong() != MAGIC) {
+            return null;
+        }
+        final int checksum = in.getInt();
+        final CRC32 crc = new CRC32();
+        crc.update(in.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        try {
+            final long nextGeneration = in.getLong();
+            final long checkpoint = in.getLong();
+            final int count = in.getInt();
+            final Map<Long, Table> tables = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final long generation = in.getLong();
+                final long size = in.getLong();
+                final ByteBuffer footer = bytes(in, SSTable.FOOTER_SIZE);
+                final ByteBuffer minKey = bytes(in, in.getInt());
+                final ByteBuffer maxKey = bytes(in, in.getInt());
+                tables.put(generation, new Table(size, footer, minKey, maxKey));
+            }
+            final long[] digests = new long[MerkleTree.LEAVES];
+            for (int i = 0; i < digests.length; i++) {
+                digests[i] = in.getLong();
+            }
+            return new Manifest(nextGeneration, checkpoint, tables, digests);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer bytes(
+            @NotNull final ByteBuffer in,
+            final int length) {
+        final ByteBuffer result = Bytes.slice(in, in.position(), length);
+        in.position(in.position() + length);
+        return result;
+    }
+
+    /**
+     * Atomically replaces the manifest of the directory
+     *
+     * @param digests the digests of the leaves over the tables
+     */
+    static void write(
+            @NotNull final File dir,
+            final long nextGeneration,
+            final long checkpoint,
+            @NotNull final Collection<SSTable> tables,
+            @NotNull final long[] digests) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(MAGIC);
+        out.writeInt(0);
+        out.writeLong(nextGeneration);
+        out.writeLong(checkpoint);
+        out.writeInt(tables.size());
+        for (final SSTable table : tables) {
+            out.writeLong(table.generation());
+            out.writeLong(table.sizeInBytes());
+            write(out, table.footer());
+            final ByteBuffer minKey = table.minKey();
+            out.writeInt(minKey.remaining());
+            write(out, minKey);
+            final ByteBuffer maxKey = table.maxKey();
+            out.writeInt(maxKey.remaining());
+            write(out, maxKey);
+        }
+        for (final long digest : digests) {
+            out.writeLong(digest);
+        }
+        out.flush();
+
+        final ByteBuffer manifest = ByteBuffer.wrap(bytes.toByteArray());
+        final CRC32 crc = new CRC32();
+        crc.update(Bytes.slice(manifest, HEADER, manifest.capacity() - HEADER));
+        manifest.putInt(Long.BYTES, (int) crc.getValue());
+
+        final File file = new File(dir, NAME);
+        final File temp = new File(dir, NAME + SSTable.TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(
+                temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (manifest.hasRemaining()) {
+                channel.write(manifest);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(
+            @NotNull final DataOutputStream out,
+            @NotNull final ByteBuffer buffer) throws IOException {
+        out.write(Bytes.toArray(buffer));
+    }
+
+    long nextGeneration() {
+        return nextGeneration;
+    }
+
+    long checkpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return the digests of the leaves over the tables
+     */
+    @NotNull
+    long[] digests() {
+        return digests;
+    }
+
+    /**
+     * @return whether the table is live
+     */
+    boolean describes(final long generation) {
+        return tables.containsKey(generation);
+    }
+
+    /**
+     * @return the generations of the live tables
+     */
+    @NotNull
+    Collection<Long> generations() {
+        return tables.keySet();
+    }
+
+    /**
+     * @return the recorded metadata of the table or {@code null} if it isn't described
+     */
+    @Nullable
+    Table table(final long generation) {
+        return tables.get(generation);
+    }
+}
@@ -0,0 +1,391 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sorted in-memory write buffer which is flushed to an {@link SSTable} when full.
+ * <p>
+ * A lock-free skip list whose nodes, keys and values live in an off-heap {@link Arena},
+ * so the buffer costs the GC nothing and its size is exactly the arena usage.
+ * Nodes are never removed, which keeps insertion a matter of a CAS per level.
+ * An update is first {@link #prepare(ByteBuffer, Value) prepared} in the arena,
+ * which fails once it is full, and then {@link #link(int) linked}, which can't fail.
+ * <pre>
+ * node  := value:int keyLength:int height:int next:int[height] key
+ * value := timestamp:long expiresAt:long length:int (data | blobId:long blobLength:long)
+ * </pre>
+ * Offsets refer to the arena, the head node is at offset 0 so 0 also marks the end of a level.
+ */
+final class MemTable {
+    static final int FULL = Arena.NONE;
+
+    private static final int MAX_HEIGHT = 16;
+    private static final int HEAD = 0;
+    private static final int END = 0;
+
+    private static final int VALUE = 0;
+    private static final int KEY_LENGTH = 4;
+    private static final int HEIGHT = 8;
+    private static final int NEXT = 12;
+
+    private static final int TIMESTAMP = 0;
+    private static final int EXPIRES_AT = 8;
+    private static final int LENGTH = 16;
+    private static final int DATA = 20;
+    private static final int TOMBSTONE = -1;
+    private static final int BLOB = -2;
+
+    /**
+     * Fits the head node only
+     */
+    static final int MIN_CAPACITY = nodeSize(MAX_HEIGHT, 0);
+
+    @NotNull
+    private final Arena arena;
+    @NotNull
+    private final ByteBuffer memory;
+    private volatile boolean full;
+
+    /**
+     * Blobs referenced by overwritten versions, which may be removed once the memtable is flushed
+     */
+    private final Queue<Long> shadowedBlobs = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param capacity size of the arena in bytes, at least {@link #MIN_CAPACITY}
+     */
+    MemTable(final int capacity) {
+        if (capacity < MIN_CAPACITY) {
+            throw new IllegalArgumentException("Too small memtable: " + capacity);
+        }
+        this.arena = new Arena(capacity);
+        this.memory = arena.memory();
+        final int head = arena.allocate(nodeSize(MAX_HEIGHT, 0));
+        assert head == HEAD;
+        memory.putInt(head + HEIGHT, MAX_HEIGHT);
+    }
+
+    /**
+     * Keeps the newest of the current and the specified versions of the key
+     *
+     * @return {@code false} if the memtable is full
+     */
+    boolean upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        final int node = prepare(key, value);
+        if (node == FULL) {
+            return false;
+        }
+        link(node);
+        return true;
+    }
+
+    /**
+     * Copies the update to the arena without making it visible
+     *
+     * @return the node to {@link #link(int)} or {@link #FULL} if it doesn't fit any more
+     */
+    int prepare(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        final int height = randomHeight();
+        final int nodeSize = nodeSize(height, key.remaining());
+        final int size = nodeSize + valueSize(value);
+        if (size > arena.capacity() - nodeSize(MAX_HEIGHT, 0)) {
+            throw new IllegalArgumentException("Update of " + size + " bytes exceeds the memtable");
+        }
+        final int node = arena.allocate(size);
+        if (node == Arena.NONE) {
+            full = true;
+            return FULL;
+        }
+
+        memory.putInt(node + VALUE, node + nodeSize);
+        memory.putInt(node + KEY_LENGTH, key.remaining());
+        memory.putInt(node + HEIGHT, height);
+        arena.put(keyOffset(node), key);
+
+        final int record = node + nodeSize;
+        memory.putLong(record + TIMESTAMP, value.getTimestamp());
+        memory.putLong(record + EXPIRES_AT, value.expiresAt());
+        if (value.isRemoved()) {
+            memory.putInt(record + LENGTH, TOMBSTONE);
+        } else if (value.isBlob()) {
+            memory.putInt(record + LENGTH, BLOB);
+            memory.putLong(record + DATA, value.blobId());
+            memory.putLong(record + DATA + Long.BYTES, value.blobLength());
+        } else {
+            final ByteBuffer data = value.getData();
+            memory.putInt(record + LENGTH, data.remaining());
+            arena.put(record + DATA, data);
+        }
+        return node;
+    }
+
+    /**
+     * @return whether the updates fit together into an empty memtable of the capacity,
+     * whatever the heights of their nodes
+     */
+    static boolean fits(
+            @NotNull final List<Cell> cells,
+            final int capacity) {
+        long size = 0;
+        for (final Cell cell : cells) {
+            size += nodeSize(MAX_HEIGHT, cell.getKey().remaining()) + valueSize(cell.getValue());
+        }
+        return size <= capacity - MIN_CAPACITY;
+    }
+
+    /**
+     * @return the capacity fitting an update of the sizes into an empty memtable, whatever the height of its node
+     */
+    static long capacityFor(
+            final int keyLength,
+            final int valueLength) {
+        return (long) MIN_CAPACITY + nodeSize(MAX_HEIGHT, keyLength) + DATA + valueLength;
+    }
+
+    /**
+     * Makes the prepared update visible, or only its version if the key is already there
+     *
+     * @return the older of the two versions of the key, which is shadowed now,
+     * or {@code null} if the key is new to the memtable
+     */
+    @Nullable
+    Value link(final int node) {
+        final ByteBuffer key = keyOf(node);
+        final int height = memory.getInt(node + HEIGHT);
+        final int[] preds = new int[MAX_HEIGHT];
+        final int[] succs = new int[MAX_HEIGHT];
+        while (true) {
+            search(key, preds, succs);
+            if (succs[0] != END && compare(succs[0], key) == 0) {
+                return valueOf(replace(succs[0], memory.getInt(node + VALUE)));
+            }
+            for (int level = 0; level < height; level++) {
+                memory.putInt(nextOffset(node, level), succs[level]);
+            }
+            // The node is in the list once linked at the bottom level, the rest are shortcuts
+            if (arena.compareAndSet(nextOffset(preds[0], 0), succs[0], node)) {
+                break;
+            }
+        }
+        for (int level = 1; level < height; level++) {
+            while (!arena.compareAndSet(nextOffset(preds[level], level), succs[level], node)) {
+                search(key, preds, succs);
+                memory.putInt(nextOffset(node, level), succs[level]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Swaps the version of the node for the newer one of the two
+     *
+     * @return the record of the older one
+     */
+    private int replace(
+            final int node,
+            final int record) {
+        while (true) {
+            final int current = arena.getIntVolatile(node + VALUE);
+            if (compareVersions(record, current) <= 0) {
+                shadow(record);
+                return record;
+            }
+            if (arena.compareAndSet(node + VALUE, current, record)) {
+                shadow(current);
+                return current;
+            }
+        }
+    }
+
+    /**
+     * @see Value#compareVersion(Value)
+     */
+    private int compareVersions(
+            final int record,
+            final int other) {
+        final int cmp = Long.compare(memory.getLong(record + TIMESTAMP), memory.getLong(other + TIMESTAMP));
+        // Ties are rare, so they are broken by the values themselves
+        return cmp != 0 ? cmp : valueOf(record).compareVersion(valueOf(other));
+    }
+
+    private void shadow(final int record) {
+        if (memory.getInt(record + LENGTH) == BLOB) {
+            shadowedBlobs.add(memory.getLong(record + DATA));
+        }
+    }
+
+    /**
+     * Finds the last node before the key and the one following it at every level
+     */
+    private void search(
+            @NotNull final ByteBuffer key,
+            @NotNull final int[] preds,
+            @NotNull final int[] succs) {
+        int node = HEAD;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            int next = next(node, level);
+            while (next != END && compare(next, key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            preds[level] = node;
+            succs[level] = next;
+        }
+    }
+
+    /**
+     * @return the first node not less than the key or {@link #END}
+     */
+    private int ceiling(@NotNull final ByteBuffer key) {
+        int node = HEAD;
+        int next = END;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = next(node, level);
+            while (next != END && compare(next, key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+        }
+        return next;
+    }
+
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        final int node = ceiling(key);
+        if (node == END || compare(node, key) != 0) {
+            return null;
+        }
+        return valueOf(arena.getIntVolatile(node + VALUE));
+    }
+
+    @NotNull
+    Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        final int first = ceiling(from);
+        return new Iterator<Cell>() {
+            private int next = first;
+
+            @Override
+            public boolean hasNext() {
+                return next != END;
+            }
+
+            @Override
+            public Cell next() {
+                if (next == END) {
+                    throw new NoSuchElementException();
+                }
+                final int node = next;
+                next = MemTable.this.next(node, 0);
+                return new Cell(keyOf(node), valueOf(arena.getIntVolatile(node + VALUE)));
+            }
+        };
+    }
+
+    /**
+     * @return the exact number of bytes taken in the arena
+     */
+    long sizeInBytes() {
+        return arena.used();
+    }
+
+    /**
+     * @return whether an update hasn't fit in the arena
+     */
+    boolean isFull() {
+        return full;
+    }
+
+    @NotNull
+    Collection<Long> shadowedBlobs() {
+        return shadowedBlobs;
+    }
+
+    boolean isEmpty() {
+        return next(HEAD, 0) == END;
+    }
+
+    private int next(
+            final int node,
+            final int level) {
+        return arena.getIntVolatile(nextOffset(node, level));
+    }
+
+    private int compare(
+            final int node,
+            @NotNull final ByteBuffer key) {
+        return Bytes.compare(memory, keyOffset(node), memory.getInt(node + KEY_LENGTH), key);
+    }
+
+    @NotNull
+    private ByteBuffer keyOf(final int node) {
+        return arena.slice(keyOffset(node), memory.getInt(node + KEY_LENGTH));
+    }
+
+    @NotNull
+    private Value valueOf(final int record) {
+        final long timestamp = memory.getLong(record + TIMESTAMP);
+        final int length = memory.getInt(record + LENGTH);
+        if (length == TOMBSTONE) {
+            return Value.tombstone(timestamp);
+        }
+        final Value value = length == BLOB
+                ? Value.blob(memory.getLong(record + DATA), memory.getLong(record + DATA + Long.BYTES), timestamp)
+                : Value.of(arena.slice(record + DATA, length), timestamp);
+        final long expiresAt = memory.getLong(record + EXPIRES_AT);
+        return expiresAt == Value.NEVER ? value : value.expiring(expiresAt);
+    }
+
+    private int keyOffset(final int node) {
+        return nextOffset(node, memory.getInt(node + HEIGHT));
+    }
+
+    private static int nextOffset(
+            final int node,
+            final int level) {
+        return node + NEXT + level * Integer.BYTES;
+    }
+
+    private static int nodeSize(
+            final int height,
+            final int keyLength) {
+        // Aligned, so that the longs of the value record following the node are
+        return Arena.align(NEXT + height * Integer.BYTES + keyLength);
+    }
+
+    private static int valueSize(@NotNull final Value value) {
+        if (value.isRemoved()) {
+            return DATA;
+        }
+        if (value.isBlob()) {
+            return DATA + 2 * Long.BYTES;
+        }
+        return DATA + value.getData().remaining();
+    }
+
+    /**
+     * @return a height of a new node, every next level holds about a quarter of the nodes
+     */
+    private static int randomHeight() {
+        int random = ThreadLocalRandom.current().nextInt();
+        int height = 1;
+        while (height < MAX_HEIGHT && (random & 3) == 0) {
+            height++;
+            random >>>= 2;
+        }
+        return height;
+    }
+}
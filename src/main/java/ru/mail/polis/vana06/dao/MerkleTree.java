@@ -0,0 +1,271 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.function.Function;
+
+/**
+ * Digests of the versions stored, so that replicas may find the keys
+ * they disagree on by exchanging a few hashes.
+ * <p>
+ * Keys are spread over {@link #LEAVES} leaves by the top {@link #DEPTH} bits
+ * of a hash of the key, see {@link #leafOf(ByteBuffer)}. A leaf is the XOR of
+ * the digests of the newest versions of its keys, an inner node combines its
+ * children. Nodes are numbered from the root {@code 1}, the children of
+ * {@code n} are {@code 2n} and {@code 2n + 1}, so the leaves are
+ * {@code LEAVES..2 * LEAVES - 1}.
+ * <p>
+ * A leaf is updated in place by every write, {@code leaf ^= digest(old) ^ digest(new)},
+ * so a hash never scans the versions.
+ */
+public final class MerkleTree {
+    public static final int DEPTH = 12;
+    public static final int LEAVES = 1 << DEPTH;
+    public static final int ROOT = 1;
+
+    /**
+     * Decorrelates the leaf of a key from the other bits derived from the same hash
+     */
+    private static final long LEAF_SEED = 0x632BE59BD9B4E019L;
+    private static final long TOMBSTONE = 0x3C6EF372FE94F82BL;
+
+    @NotNull
+    private final Source source;
+
+    MerkleTree(@NotNull final Source source) {
+        this.source = source;
+    }
+
+    /**
+     * @param versions all the versions including tombstones in the order of keys starting from a key
+     * @param digests  the digests of the leaves of the versions
+     */
+    @NotNull
+    static MerkleTree of(
+            @NotNull final Function<ByteBuffer, Iterator<Cell>> versions,
+            @NotNull final Leaves digests) {
+        return new MerkleTree(new Source() {
+            @NotNull
+            @Override
+            public Iterator<Cell> cells(
+                    @NotNull final BitSet leaves,
+                    @NotNull final ByteBuffer from) {
+                return Iters.filter(versions.apply(from), cell -> leaves.get(leafOf(cell.getKey())));
+            }
+
+            @Override
+            public long digest(final int leaf) {
+                return digests.get(leaf);
+            }
+        });
+    }
+
+    /**
+     * @return the hash of the node
+     */
+    public long hash(final int node) {
+        return hash(node, null);
+    }
+
+    /**
+     * @param shared the leaves to cover or {@code null} for all of them, the others count as empty
+     * @return the hash of the node over the shared leaves below it
+     */
+    public long hash(
+            final int node,
+            @Nullable final BitSet shared) {
+        if (node < ROOT || node >= LEAVES * 2) {
+            throw new IllegalArgumentException("No node " + node);
+        }
+        if (node >= LEAVES) {
+            final int leaf = node - LEAVES;
+            return shared == null || shared.get(leaf) ? source.digest(leaf) : 0;
+        }
+        return mix(hash(node * 2, shared) * 31 + hash(node * 2 + 1, shared));
+    }
+
+    /**
+     * Leaves don't make ranges of keys, so the versions are listed by a single scan in the order of keys,
+     * which may be resumed from the key following the last one listed
+     *
+     * @return the versions of the keys of the leaves including tombstones in the order of keys starting from a key
+     */
+    @NotNull
+    public Iterator<Cell> cells(
+            @NotNull final BitSet leaves,
+            @NotNull final ByteBuffer from) {
+        return source.cells(leaves, from);
+    }
+
+    /**
+     * @return the leaf of the key
+     */
+    public static int leafOf(@NotNull final ByteBuffer key) {
+        return (int) (mix(BloomFilter.hash(key) ^ LEAF_SEED) >>> (Long.SIZE - DEPTH));
+    }
+
+    /**
+     * @return the first of the 64-bit hashes whose top bits make the leaf
+     */
+    public static long token(final int leaf) {
+        return (long) leaf << (Long.SIZE - DEPTH);
+    }
+
+    /**
+     * Digest of the version of the key, a leaf is the XOR of the digests of its versions.
+     * <p>
+     * An inline value is digested by a hash of its contents, so that replicas which have got different
+     * values of the same timestamp disagree. A blob is digested by its length only, since it isn't read
+     * to compute it, so such replicas of a blob agree unless the lengths differ. The values are stored
+     * inline or as blobs by their sizes, so the nodes are expected to share the blob threshold.
+     * An expiring value is digested as the tombstone it turns into, so that expiry doesn't change the digests.
+     *
+     * @param hash the {@link BloomFilter#hash(ByteBuffer)} of the key
+     */
+    public static long digest(
+            final long hash,
+            @NotNull final Value value) {
+        final long content;
+        if (value.isRemoved() || value.expiresAt() != Value.NEVER) {
+            content = TOMBSTONE;
+        } else if (value.isBlob()) {
+            content = value.blobLength();
+        } else {
+            content = BloomFilter.hash(value.getData());
+        }
+        return mix(hash ^ mix(value.getTimestamp() ^ mix(content)));
+    }
+
+    /**
+     * @param value the version or {@code null} if there is none
+     * @return the digest of the version of the key, zero for none
+     */
+    public static long digest(
+            @NotNull final ByteBuffer key,
+            @Nullable final Value value) {
+        return value == null ? 0 : digest(BloomFilter.hash(key), value);
+    }
+
+    /**
+     * Versions the digests are computed of
+     */
+    interface Source {
+        /**
+         * @return the versions of the keys of the leaves including tombstones in the order of keys starting from a key
+         */
+        @NotNull
+        Iterator<Cell> cells(
+                @NotNull BitSet leaves,
+                @NotNull ByteBuffer from);
+
+        /**
+         * @return the XOR of the digests of the versions of the leaf
+         */
+        long digest(int leaf);
+    }
+
+    /**
+     * Digests of the leaves kept in memory, for the storages which don't keep them along with the versions
+     */
+    static final class Leaves {
+        /**
+         * Guarded by {@code this}
+         */
+        private final long[] digests;
+
+        Leaves() {
+            this.digests = new long[LEAVES];
+        }
+
+        /**
+         * @param digests the digests of all the leaves, which are copied
+         */
+        Leaves(@NotNull final long[] digests) {
+            if (digests.length != LEAVES) {
+                throw new IllegalArgumentException("Digests of " + digests.length + " leaves");
+            }
+            this.digests = digests.clone();
+        }
+
+        synchronized long get(final int leaf) {
+            return digests[leaf];
+        }
+
+        /**
+         * Replaces the digest of the version of the key
+         *
+         * @param old   the superseded version or {@code null} if there was none
+         * @param value the new version or {@code null} if the key is dropped
+         */
+        void update(
+                @NotNull final ByteBuffer key,
+                @Nullable final Value old,
+                @Nullable final Value value) {
+            final long delta = digest(key, old) ^ digest(key, value);
+            if (delta != 0) {
+                xor(leafOf(key), delta);
+            }
+        }
+
+        private synchronized void xor(
+                final int leaf,
+                final long delta) {
+            digests[leaf] ^= delta;
+        }
+
+        /**
+         * Adds the digests of the versions
+         *
+         * @param versions the newest versions of the keys
+         */
+        void add(@NotNull final Iterator<Cell> versions) {
+            while (versions.hasNext()) {
+                final Cell cell = versions.next();
+                update(cell.getKey(), null, cell.getValue());
+            }
+        }
+
+        /**
+         * Adds the digests of other versions of distinct keys
+         */
+        synchronized void add(@NotNull final long[] digests) {
+            for (int i = 0; i < LEAVES; i++) {
+                this.digests[i] ^= digests[i];
+            }
+        }
+
+        /**
+         * @return the digests combined with the given ones
+         */
+        @NotNull
+        synchronized long[] xor(@NotNull final long[] digests) {
+            final long[] result = digests.clone();
+            for (int i = 0; i < LEAVES; i++) {
+                result[i] ^= this.digests[i];
+            }
+            return result;
+        }
+
+        @NotNull
+        synchronized long[] toArray() {
+            return digests.clone();
+        }
+    }
+
+    /**
+     * MurmurHash3 finalizer
+     */
+    static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,77 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The newest version of a key together with its timestamp, obtained by
+ * {@link StreamingKVDao#getWithMeta(byte[])}, so that versions of different
+ * replicas can be compared
+ */
+public final class Record implements Closeable {
+    private final long timestamp;
+    private final long expiresAt;
+    @Nullable
+    private final ValueReader value;
+
+    private Record(
+            final long timestamp,
+            final long expiresAt,
+            @Nullable final ValueReader value) {
+        this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
+        this.value = value;
+    }
+
+    @NotNull
+    static Record value(
+            final long timestamp,
+            final long expiresAt,
+            @NotNull final ValueReader value) {
+        return new Record(timestamp, expiresAt, value);
+    }
+
+    /**
+     * A removed or an expired value
+     */
+    @NotNull
+    static Record tombstone(final long timestamp) {
+        return new Record(timestamp, Value.NEVER, null);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch the value expires at or {@link Value#NEVER}
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isTombstone() {
+        return value == null;
+    }
+
+    /**
+     * @return the value, which is closed together with the record
+     */
+    @NotNull
+    public ValueReader getValue() {
+        if (value == null) {
+            throw new IllegalStateException("Tombstone has no value");
+        }
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (value != null) {
+            value.close();
+        }
+    }
+}
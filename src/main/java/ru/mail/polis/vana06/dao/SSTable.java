@@ -0,0 +1,490 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted table persisted to a file and read through memory mappings.
+ * <p>
+ * File layout:
+ * <pre>
+ * data         := block* (zero padded, so that no block crosses a segment boundary)
+ * block        := entry* entryOffset:int * entryCount entryCount:int
+ * entry        := keyLength:int key timestamp:long deadline? value
+ * deadline     := -3:int expiresAt:long
+ * value        := valueLength:int data  (valueLength is -1 for tombstones)
+ *               | -2:int blobId:long blobLength:long
+ * index        := indexEntry * blockCount maxKeyLength:int maxKey indexEntryOffset:int * blockCount
+ * indexEntry   := firstKeyLength:int firstKey blockOffset:long blockSize:int
+ * bloom        := word:long * (bloomBytes / 8)
+ * footer       := level:int sequence:long count:long blockCount:int
+ *                 indexStart:long indexSize:int bloomStart:long hashFunctions:int bloomBytes:long
+ *                 maxTimestamp:long
+ * </pre>
+ * A lookup is a binary search over the sparse block index followed by a binary
+ * search within a single block, both run over the mapped file without copying.
+ * <p>
+ * Tables are ordered by level and then by sequence: a table with a greater
+ * sequence within the same level contains newer versions.
+ * <p>
+ * A table described by the {@link Manifest} is opened without reading the file,
+ * it is mapped and its filter is loaded by the first lookup or scan.
+ */
+final class SSTable implements Closeable {
+    static final String SUFFIX = ".sst";
+    static final String TEMP_SUFFIX = ".tmp";
+    static final int TOMBSTONE_LENGTH = -1;
+    static final int BLOB_LENGTH = -2;
+    static final int EXPIRING = -3;
+
+    /**
+     * Data is mapped by segments, since a single mapping can't exceed 2 GB
+     */
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    static final int FOOTER_SIZE = Integer.BYTES * 4 + Long.BYTES * 6;
+
+    @NotNull
+    private final File file;
+    private final long generation;
+    private final long sizeInBytes;
+    @NotNull
+    private final ByteBuffer footer;
+    private final int level;
+    private final long sequence;
+    private final long count;
+    private final int blockCount;
+    private final long indexStart;
+    private final long bloomStart;
+    private final int hashFunctions;
+    private final long bloomBytes;
+    private final long maxTimestamp;
+    @NotNull
+    private final BlockCache cache;
+    @NotNull
+    private final ByteBuffer minKey;
+    @NotNull
+    private final ByteBuffer maxKey;
+
+    /**
+     * The file until the table is mapped, guarded by {@code this}
+     */
+    @Nullable
+    private FileChannel channel;
+    @Nullable
+    private volatile Mapping mapping;
+
+    /**
+     * @param described metadata recorded in the {@link Manifest}, the table is mapped on first access then,
+     *                  or {@code null} to map it right away
+     */
+    private SSTable(
+            @NotNull final File file,
+            final long generation,
+            @NotNull final FileChannel channel,
+            @NotNull final ByteBuffer footer,
+            @Nullable final Manifest.Table described,
+            @NotNull final BlockCache cache) throws IOException {
+        this.file = file;
+        this.generation = generation;
+        this.cache = cache;
+        this.sizeInBytes = channel.size();
+        this.footer = footer;
+
+        final ByteBuffer in = footer.duplicate();
+        this.level = in.getInt();
+        this.sequence = in.getLong();
+        this.count = in.getLong();
+        this.blockCount = in.getInt();
+        this.indexStart = in.getLong();
+        final int indexSize = in.getInt();
+        this.bloomStart = in.getLong();
+        this.hashFunctions = in.getInt();
+        this.bloomBytes = in.getLong();
+        this.maxTimestamp = in.getLong();
+
+        if (described != null) {
+            this.channel = channel;
+            this.minKey = described.minKey;
+            this.maxKey = described.maxKey;
+            return;
+        }
+        final Mapping mapped = new Mapping(channel);
+        this.mapping = mapped;
+        if (count == 0) {
+            this.minKey = Bytes.EMPTY;
+            this.maxKey = Bytes.EMPTY;
+        } else {
+            final ByteBuffer index = mapped.index;
+            final int firstEntry = mapped.indexEntry(0);
+            this.minKey = Bytes.slice(index, firstEntry + Integer.BYTES, index.getInt(firstEntry));
+            this.maxKey = Bytes.slice(index, indexSize + Integer.BYTES, index.getInt(indexSize));
+        }
+    }
+
+    /**
+     * Maps the table and closes the file right away: the mappings stay valid
+     * even after the file is removed, so readers never race with compaction.
+     */
+    @NotNull
+    static SSTable open(
+            @NotNull final File file,
+            final long generation,
+            @NotNull final BlockCache cache) throws IOException {
+        return open(file, generation, null, cache);
+    }
+
+    /**
+     * Opens the table as described by the {@link Manifest}, which costs no reads until it is accessed.
+     * The file is kept open until then, so that it may be removed meanwhile.
+     *
+     * @param described the recorded metadata or {@code null} to read and map the table right away
+     */
+    @NotNull
+    static SSTable open(
+            @NotNull final File file,
+            final long generation,
+            @Nullable final Manifest.Table described,
+            @NotNull final BlockCache cache) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (described != null && described.sizeInBytes == channel.size()) {
+                return new SSTable(file, generation, channel, described.footer, described, cache);
+            }
+            final SSTable table = new SSTable(file, generation, channel, readFooter(channel), null, cache);
+            channel.close();
+            return table;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer readFooter(@NotNull final FileChannel channel) throws IOException {
+        final long start = channel.size() - FOOTER_SIZE;
+        if (start < 0) {
+            throw new IOException("Truncated table");
+        }
+        final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        while (footer.hasRemaining()) {
+            if (channel.read(footer, start + footer.position()) < 0) {
+                throw new IOException("Truncated table");
+            }
+        }
+        footer.flip();
+        return footer;
+    }
+
+    /**
+     * @return the mappings of the table, which is mapped by the first caller
+     */
+    @NotNull
+    private Mapping mapping() {
+        Mapping result = mapping;
+        if (result == null) {
+            synchronized (this) {
+                result = mapping;
+                if (result == null) {
+                    try {
+                        result = new Mapping(channel);
+                        channel.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Can't map " + file, e);
+                    }
+                    channel = null;
+                    mapping = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Maps the table unless it is mapped already, so that it stays readable once the file is removed
+     */
+    void load() {
+        mapping();
+    }
+
+    /**
+     * Closes the file of a table which has never been accessed, the mappings are left to the GC
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @NotNull
+    File file() {
+        return file;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    int level() {
+        return level;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * @return the timestamp of the newest version in the table
+     */
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    @NotNull
+    ByteBuffer footer() {
+        return footer.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer minKey() {
+        return minKey.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer maxKey() {
+        return maxKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Looks the key up in the single block which may contain it, preferably a cached copy.
+     *
+     * @return the stored version or {@code null} if the key is absent in the table
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        if (count == 0
+                || Bytes.compare(key, minKey) < 0
+                || Bytes.compare(key, maxKey) > 0) {
+            return null;
+        }
+        final Mapping mapping = mapping();
+        if (!mapping.bloom.mightContain(key)) {
+            return null;
+        }
+        final int blockIndex = mapping.floorBlock(key);
+        BlockCache.Block cached = cache.get(generation, blockIndex);
+        if (cached == null) {
+            cached = cache.put(generation, blockIndex, mapping.block(blockIndex));
+        }
+        if (cached == null) {
+            return find(mapping.block(blockIndex), key);
+        }
+        try {
+            final Value value = find(cached.data(), key);
+            if (value == null || value.isRemoved() || value.isBlob()) {
+                return value;
+            }
+            // The slot may be reused as soon as it is released
+            final Value copy = Value.of(ByteBuffer.wrap(Bytes.toArray(value.getData())), value.getTimestamp());
+            return value.isExpiring() ? copy.expiring(value.expiresAt()) : copy;
+        } finally {
+            cached.release();
+        }
+    }
+
+    @Nullable
+    private static Value find(
+            @NotNull final ByteBuffer block,
+            @NotNull final ByteBuffer key) {
+        final int entry = lowerBound(block, key);
+        if (entry >= entryCount(block)) {
+            return null;
+        }
+        final int offset = entryOffset(block, entry);
+        final int keyLength = block.getInt(offset);
+        if (Bytes.compare(block, offset + Integer.BYTES, keyLength, key) != 0) {
+            return null;
+        }
+        return valueAt(block, offset + Integer.BYTES + keyLength);
+    }
+
+    /**
+     * Lazily iterates block by block starting from the first key which is not less than {@code from}.
+     * <p>
+     * Scans bypass the {@link BlockCache}, so that compaction doesn't evict the hot blocks.
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        if (count == 0 || Bytes.compare(from, maxKey) > 0) {
+            return Collections.emptyIterator();
+        }
+        final Mapping mapping = mapping();
+        final int firstBlock = Math.max(0, mapping.floorBlock(from));
+        return new Iterator<Cell>() {
+            private int blockIndex = firstBlock;
+            private ByteBuffer block = mapping.block(firstBlock);
+            private int entry = lowerBound(block, from);
+
+            @Override
+            public boolean hasNext() {
+                while (entry >= entryCount(block)) {
+                    if (blockIndex + 1 >= blockCount) {
+                        return false;
+                    }
+                    block = mapping.block(++blockIndex);
+                    entry = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int offset = entryOffset(block, entry++);
+                final int keyLength = block.getInt(offset);
+                final ByteBuffer key = Bytes.slice(block, offset + Integer.BYTES, keyLength);
+                return new Cell(key, valueAt(block, offset + Integer.BYTES + keyLength));
+            }
+        };
+    }
+
+    private static int entryCount(@NotNull final ByteBuffer block) {
+        return block.getInt(block.limit() - Integer.BYTES);
+    }
+
+    private static int entryOffset(
+            @NotNull final ByteBuffer block,
+            final int entry) {
+        return block.getInt(block.limit() - Integer.BYTES * (1 + entryCount(block) - entry));
+    }
+
+    /**
+     * @return index of the first entry in the block whose key is not less than the specified one
+     */
+    private static int lowerBound(
+            @NotNull final ByteBuffer block,
+            @NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = entryCount(block);
+        while (left < right) {
+            final int mid = (left + right) >>> 1;
+            final int offset = entryOffset(block, mid);
+            if (Bytes.compare(block, offset + Integer.BYTES, block.getInt(offset), key) < 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        return left;
+    }
+
+    @NotNull
+    private static Value valueAt(
+            @NotNull final ByteBuffer block,
+            final int offset) {
+        final long timestamp = block.getLong(offset);
+        int lengthOffset = offset + Long.BYTES;
+        long expiresAt = Value.NEVER;
+        if (block.getInt(lengthOffset) == EXPIRING) {
+            expiresAt = block.getLong(lengthOffset + Integer.BYTES);
+            lengthOffset += Integer.BYTES + Long.BYTES;
+        }
+        final int length = block.getInt(lengthOffset);
+        if (length == TOMBSTONE_LENGTH) {
+            return Value.tombstone(timestamp);
+        }
+        final Value value;
+        if (length == BLOB_LENGTH) {
+            value = Value.blob(
+                    block.getLong(lengthOffset + Integer.BYTES),
+                    block.getLong(lengthOffset + Integer.BYTES + Long.BYTES),
+                    timestamp);
+        } else {
+            value = Value.of(Bytes.slice(block, lengthOffset + Integer.BYTES, length), timestamp);
+        }
+        return expiresAt == Value.NEVER ? value : value.expiring(expiresAt);
+    }
+
+    /**
+     * Mappings of the data, the index and the filter of the table
+     */
+    private final class Mapping {
+        @NotNull
+        private final MappedByteBuffer[] segments;
+        @NotNull
+        private final ByteBuffer index;
+        private final int indexOffsetsStart;
+        @NotNull
+        private final BloomFilter bloom;
+
+        Mapping(@NotNull final FileChannel channel) throws IOException {
+            final int segmentCount = (int) ((indexStart + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            this.segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                final long start = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, indexStart - start));
+            }
+
+            this.index = channel.map(FileChannel.MapMode.READ_ONLY, indexStart, bloomStart - indexStart);
+            this.indexOffsetsStart = index.capacity() - blockCount * Integer.BYTES;
+
+            // The filter is touched by every lookup, so it is preloaded
+            final MappedByteBuffer bloomWords = channel.map(FileChannel.MapMode.READ_ONLY, bloomStart, bloomBytes);
+            bloomWords.load();
+            this.bloom = BloomFilter.wrap(bloomWords, hashFunctions);
+        }
+
+        /**
+         * @return index of the last block whose first key is not greater than the key, or -1
+         */
+        int floorBlock(@NotNull final ByteBuffer key) {
+            int left = 0;
+            int right = blockCount - 1;
+            while (left <= right) {
+                final int mid = (left + right) >>> 1;
+                final int entry = indexEntry(mid);
+                if (Bytes.compare(index, entry + Integer.BYTES, index.getInt(entry), key) <= 0) {
+                    left = mid + 1;
+                } else {
+                    right = mid - 1;
+                }
+            }
+            return right;
+        }
+
+        int indexEntry(final int blockIndex) {
+            return index.getInt(indexOffsetsStart + blockIndex * Integer.BYTES);
+        }
+
+        /**
+         * @return the mapped block, which never crosses a segment boundary
+         */
+        @NotNull
+        ByteBuffer block(final int blockIndex) {
+            final int entry = indexEntry(blockIndex);
+            final int blockOffsetPosition = entry + Integer.BYTES + index.getInt(entry);
+            final long start = index.getLong(blockOffsetPosition);
+            final int size = index.getInt(blockOffsetPosition + Long.BYTES);
+            return Bytes.slice(segments[(int) (start / SEGMENT_SIZE)], (int) (start % SEGMENT_SIZE), size);
+        }
+    }
+}
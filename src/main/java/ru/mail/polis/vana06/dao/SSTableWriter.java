@@ -0,0 +1,293 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Writes sorted cells in the {@link SSTable} format.
+ * <p>
+ * Only the current block is buffered in memory, the sparse index and the
+ * key hashes for the Bloom filter are spooled to side files and appended
+ * after the data.
+ */
+final class SSTableWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SSTableWriter() {
+        // Not instantiable
+    }
+
+    /**
+     * Writes sorted cells to a temporary file and atomically moves it to the destination.
+     * <p>
+     * Stops at a key boundary once the data exceeds {@code maxBytes}, so the
+     * rest of the cells may be written to the next table.
+     */
+    static void write(
+            @NotNull final File file,
+            @NotNull final Iterator<Cell> cells,
+            final int level,
+            final long sequence,
+            final long maxBytes,
+            final int blockSize,
+            final int bloomBitsPerKey) throws IOException {
+        final File temp = sideFile(file, SSTable.TEMP_SUFFIX);
+        final File indexEntries = sideFile(temp, ".idx");
+        final File indexOffsets = sideFile(temp, ".ioff");
+        final File hashes = sideFile(temp, ".hash");
+
+        long count = 0;
+        long maxTimestamp = 0;
+        ByteBuffer lastKey = Bytes.EMPTY;
+        final BlockBuilder block = new BlockBuilder(blockSize);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+             DataOutputStream index = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(indexEntries), BUFFER_SIZE));
+             DataOutputStream offsets = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(indexOffsets), BUFFER_SIZE));
+             DataOutputStream keyHashes = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(hashes), BUFFER_SIZE))) {
+            long offset = 0;
+            while (offset + block.size() < maxBytes && cells.hasNext()) {
+                final Cell cell = cells.next();
+                final ByteBuffer key = cell.getKey();
+                block.add(cell);
+                maxTimestamp = Math.max(maxTimestamp, cell.getValue().getTimestamp());
+                keyHashes.writeLong(BloomFilter.hash(key));
+                lastKey = key;
+                count++;
+
+                if (block.size() >= blockSize) {
+                    offset = flushBlock(out, block, offset, index, offsets);
+                }
+            }
+            if (!block.isEmpty()) {
+                flushBlock(out, block, offset, index, offsets);
+            }
+            index.writeInt(lastKey.remaining());
+            write(index, lastKey);
+        }
+        final int blockCount = block.blockCount;
+        final int indexSize = block.indexSize;
+
+        final long indexStart = temp.length();
+        append(temp, indexEntries);
+        append(temp, indexOffsets);
+
+        // The number of keys is known only now, so the filter is built from the saved hashes
+        final long bloomStart = temp.length();
+        final int hashFunctions = BloomFilter.hashFunctions(bloomBitsPerKey);
+        final long bloomBytes = BloomFilter.sizeInBytes(count, bloomBitsPerKey);
+        if (bloomBytes > 0) {
+            writeBloom(temp, hashes, count, hashFunctions, bloomStart, bloomBytes);
+        }
+        Files.delete(hashes.toPath());
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp, true))) {
+            out.writeInt(level);
+            out.writeLong(sequence);
+            out.writeLong(count);
+            out.writeInt(blockCount);
+            out.writeLong(indexStart);
+            out.writeInt(indexSize);
+            out.writeLong(bloomStart);
+            out.writeInt(hashFunctions);
+            out.writeLong(bloomBytes);
+            out.writeLong(maxTimestamp);
+        }
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the block, so that it doesn't cross a segment boundary, and adds it to the index.
+     *
+     * @return offset of the next block
+     */
+    private static long flushBlock(
+            @NotNull final DataOutputStream out,
+            @NotNull final BlockBuilder block,
+            final long offset,
+            @NotNull final DataOutputStream index,
+            @NotNull final DataOutputStream indexOffsets) throws IOException {
+        final ByteBuffer firstKey = block.firstKey;
+        final ByteBuffer bytes = block.finish();
+        final int size = bytes.remaining();
+        if (size > SSTable.SEGMENT_SIZE) {
+            throw new IOException("Block of " + size + " bytes is too big");
+        }
+        long position = offset;
+        final long segmentRemaining = SSTable.SEGMENT_SIZE - position % SSTable.SEGMENT_SIZE;
+        if (size > segmentRemaining) {
+            for (long i = 0; i < segmentRemaining; i++) {
+                out.write(0);
+            }
+            position += segmentRemaining;
+        }
+        write(out, bytes);
+
+        indexOffsets.writeInt(block.indexSize);
+        index.writeInt(firstKey.remaining());
+        write(index, firstKey);
+        index.writeLong(position);
+        index.writeInt(size);
+        block.indexSize += Integer.BYTES * 2 + firstKey.remaining() + Long.BYTES;
+        block.blockCount++;
+
+        block.reset();
+        return position + size;
+    }
+
+    @NotNull
+    private static File sideFile(
+            @NotNull final File file,
+            @NotNull final String suffix) {
+        return new File(file.getParentFile(), file.getName() + suffix);
+    }
+
+    private static void append(
+            @NotNull final File target,
+            @NotNull final File source) throws IOException {
+        try (FileChannel to = FileChannel.open(target.toPath(), StandardOpenOption.APPEND);
+             FileChannel from = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            final long size = from.size();
+            while (position < size) {
+                position += from.transferTo(position, size - position, to);
+            }
+        }
+        Files.delete(source.toPath());
+    }
+
+    private static void writeBloom(
+            @NotNull final File target,
+            @NotNull final File hashes,
+            final long count,
+            final int hashFunctions,
+            final long bloomStart,
+            final long bloomBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(new FileInputStream(hashes), BUFFER_SIZE))) {
+            final MappedByteBuffer words = channel.map(FileChannel.MapMode.READ_WRITE, bloomStart, bloomBytes);
+            for (long i = 0; i < count; i++) {
+                BloomFilter.add(words, hashFunctions, in.readLong());
+            }
+            words.force();
+        }
+    }
+
+    private static void write(
+            @NotNull final DataOutputStream out,
+            @NotNull final ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            out.write(Bytes.toArray(buffer));
+        }
+    }
+
+    /**
+     * Accumulates entries of a single block together with their offsets
+     */
+    private static final class BlockBuilder {
+        private ByteBuffer entries;
+        private int[] offsets = new int[64];
+        private int count;
+        private ByteBuffer firstKey;
+
+        /**
+         * Totals of the finished blocks
+         */
+        private int blockCount;
+        private int indexSize;
+
+        BlockBuilder(final int blockSize) {
+            this.entries = ByteBuffer.allocate(blockSize * 2);
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        int size() {
+            return entries.position() + count * Integer.BYTES + Integer.BYTES;
+        }
+
+        void add(@NotNull final Cell cell) {
+            final ByteBuffer key = cell.getKey();
+            final Value value = cell.getValue();
+            final ByteBuffer data = value.isRemoved() || value.isBlob() ? Bytes.EMPTY : value.getData();
+            ensureCapacity(Integer.BYTES * 3 + Long.BYTES * 2 + key.remaining() + Math.max(data.remaining(), Long.BYTES * 2));
+            if (count == 0) {
+                firstKey = key;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = entries.position();
+            entries.putInt(key.remaining());
+            entries.put(key.duplicate());
+            entries.putLong(value.getTimestamp());
+            if (value.isExpiring()) {
+                entries.putInt(SSTable.EXPIRING);
+                entries.putLong(value.expiresAt());
+            }
+            if (value.isRemoved()) {
+                entries.putInt(SSTable.TOMBSTONE_LENGTH);
+            } else if (value.isBlob()) {
+                entries.putInt(SSTable.BLOB_LENGTH);
+                entries.putLong(value.blobId());
+                entries.putLong(value.blobLength());
+            } else {
+                entries.putInt(data.remaining());
+                entries.put(data.duplicate());
+            }
+        }
+
+        private void ensureCapacity(final int bytes) {
+            final int required = size() + bytes + Integer.BYTES;
+            if (required > entries.capacity()) {
+                final ByteBuffer grown = ByteBuffer.allocate(Math.max(required, entries.capacity() * 2));
+                entries.flip();
+                grown.put(entries);
+                entries = grown;
+            }
+        }
+
+        @NotNull
+        ByteBuffer finish() {
+            for (int i = 0; i < count; i++) {
+                entries.putInt(offsets[i]);
+            }
+            entries.putInt(count);
+            entries.flip();
+            return entries;
+        }
+
+        void reset() {
+            entries.clear();
+            count = 0;
+            firstKey = null;
+        }
+    }
+}
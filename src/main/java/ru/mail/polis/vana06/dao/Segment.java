@@ -0,0 +1,424 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only data file of the {@link HashDao}.
+ * <pre>
+ * record  := checksum:int length:int entry+
+ * entry   := type:byte timestamp:long expiresAt:long keyLength:int key payload
+ * payload := valueLength:int value | blobId:long blobLength:long | (nothing for a tombstone)
+ * </pre>
+ * Entries of a record survive a crash together, so a record is the unit of atomicity
+ * while an entry is what the index points to and what a lookup reads at once. A record
+ * with a wrong checksum marks a torn tail, which is cut off when the segment is scanned.
+ * <p>
+ * The space of a record may be reserved first and written afterwards, so concurrent
+ * writers don't wait for each other's I/O. Records are made durable only once every
+ * record before them has been written, so a crash never leaves a hole before a synced record.
+ */
+final class Segment implements Closeable {
+    static final String SUFFIX = ".data";
+    static final int HEADER = 2 * Integer.BYTES;
+
+    private static final byte VALUE = 0;
+    private static final byte BLOB = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int ENTRY_HEADER = 1 + Long.BYTES * 2 + Integer.BYTES;
+
+    private final int id;
+    @NotNull
+    private final File file;
+    @NotNull
+    private final FileChannel channel;
+
+    /**
+     * The end of the records reserved, guarded by {@code this}
+     */
+    private long size;
+    /**
+     * The end of the records written with no hole before it, guarded by {@code this}
+     */
+    private long written;
+    /**
+     * Ends of the records written past a hole by their offsets, guarded by {@code this}
+     */
+    private final Map<Long, Long> writtenAhead = new HashMap<>();
+    /**
+     * Reserved records the index doesn't point to yet, guarded by {@code this}
+     */
+    private int unpublished;
+
+    private final Object syncMonitor = new Object();
+    /**
+     * Guarded by {@link #syncMonitor}
+     */
+    private long synced;
+
+    private Segment(
+            final int id,
+            @NotNull final File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.size = channel.size();
+        this.written = size;
+        this.synced = size;
+    }
+
+    @NotNull
+    static Segment open(
+            @NotNull final File dir,
+            final int id) throws IOException {
+        return new Segment(id, new File(dir, id + SUFFIX));
+    }
+
+    static int idOf(@NotNull final File file) {
+        final String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    int id() {
+        return id;
+    }
+
+    @NotNull
+    File file() {
+        return file;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Frames the entries as a record and appends it
+     *
+     * @param entries the entries from the position to the limit
+     * @return the offset of the first entry
+     */
+    long append(@NotNull final ByteBuffer entries) throws IOException {
+        final long offset;
+        synchronized (this) {
+            offset = size;
+            size += HEADER + entries.remaining();
+        }
+        return write(offset, entries);
+    }
+
+    /**
+     * Reserves the space of a record, which stays unpublished until {@link #publish()}
+     *
+     * @return the offset to {@link #write(long, ByteBuffer)} the record at
+     */
+    synchronized long reserve(final int entries) {
+        final long offset = size;
+        size += HEADER + entries;
+        unpublished++;
+        return offset;
+    }
+
+    /**
+     * Marks a reserved record as pointed to by the index or dropped
+     */
+    synchronized void publish() {
+        unpublished--;
+    }
+
+    /**
+     * @return whether every record reserved is published, so that the entries the index points to are final
+     */
+    synchronized boolean isPublished() {
+        return unpublished == 0;
+    }
+
+    /**
+     * Frames the entries as a record and writes it to the space reserved at the offset
+     *
+     * @param entries the entries from the position to the limit
+     * @return the offset of the first entry
+     */
+    long write(
+            final long offset,
+            @NotNull final ByteBuffer entries) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(entries.duplicate());
+        final ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt((int) crc.getValue());
+        header.putInt(entries.remaining());
+        header.flip();
+        final long end = offset + HEADER + entries.remaining();
+        long position = offset;
+        try {
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+            while (entries.hasRemaining()) {
+                position += channel.write(entries, position);
+            }
+        } finally {
+            // A failed record is left as a torn one rather than holding back the syncs forever
+            written(offset, end);
+        }
+        return offset + HEADER;
+    }
+
+    private synchronized void written(
+            final long offset,
+            final long end) {
+        if (offset != written) {
+            writtenAhead.put(offset, end);
+            return;
+        }
+        written = end;
+        for (Long next = writtenAhead.remove(written); next != null; next = writtenAhead.remove(written)) {
+            written = next;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the end of the records written with no hole before it, which is not less than the position
+     */
+    private synchronized long awaitWritten(final long position) throws InterruptedIOException {
+        while (written < position) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the records to be written");
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @throws ClosedChannelException if the segment has been merged and removed meanwhile
+     */
+    @NotNull
+    ByteBuffer read(
+            final long offset,
+            final int length) throws IOException {
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining()) {
+            if (channel.read(result, offset + result.position()) < 0) {
+                throw new EOFException("Entry beyond the end of " + file);
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Reads no more of the entry than its key
+     *
+     * @return whether the entry of the size at the offset is an entry of the key
+     */
+    boolean hasKey(
+            final long offset,
+            final int size,
+            @NotNull final ByteBuffer key) throws IOException {
+        final int length = ENTRY_HEADER + key.remaining();
+        if (size < length) {
+            return false;
+        }
+        final ByteBuffer head = read(offset, length);
+        return head.getInt(ENTRY_HEADER - Integer.BYTES) == key.remaining()
+                && Bytes.compare(head, ENTRY_HEADER, key.remaining(), key) == 0;
+    }
+
+    /**
+     * Makes the segment durable up to the position, concurrent callers share an {@code fsync}
+     */
+    void sync(final long position) throws IOException {
+        synchronized (syncMonitor) {
+            if (synced >= position) {
+                return;
+            }
+            // A crash must not leave a hole before a synced record, which would cut it off
+            final long target = awaitWritten(position);
+            try {
+                channel.force(false);
+                synced = target;
+            } catch (ClosedChannelException e) {
+                // Merged segments are removed only once their entries are durable elsewhere
+                synced = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    void sync() throws IOException {
+        sync(size());
+    }
+
+    /**
+     * Receives the entries of a segment in the order they were appended
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        /**
+         * @param entry the bytes of the entry, valid until the next one
+         */
+        void accept(
+                long offset,
+                @NotNull ByteBuffer entry) throws IOException;
+    }
+
+    /**
+     * Reads the entries in order and cuts off a torn tail
+     */
+    void scan(@NotNull final EntryConsumer consumer) throws IOException {
+        final long length = size();
+        long offset = 0;
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        final CRC32 crc = new CRC32();
+        while (offset < length) {
+            final int checksum;
+            final byte[] entries;
+            try {
+                checksum = in.readInt();
+                final int entriesLength = in.readInt();
+                if (entriesLength <= 0 || entriesLength > length - offset - HEADER) {
+                    break;
+                }
+                entries = new byte[entriesLength];
+                in.readFully(entries);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(entries, 0, entries.length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            final ByteBuffer record = ByteBuffer.wrap(entries);
+            while (record.hasRemaining()) {
+                final int size = entrySize(record);
+                consumer.accept(offset + HEADER + record.position(), Bytes.slice(record, record.position(), size));
+                record.position(record.position() + size);
+            }
+            offset += HEADER + entries.length;
+        }
+        if (offset < length) {
+            truncate(offset);
+        }
+    }
+
+    private synchronized void truncate(final long offset) throws IOException {
+        channel.truncate(offset);
+        size = offset;
+        written = offset;
+    }
+
+    /**
+     * @return the size of the entry of the version
+     */
+    static int entrySize(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        final int payload;
+        if (value.isRemoved()) {
+            payload = 0;
+        } else if (value.isBlob()) {
+            payload = Long.BYTES * 2;
+        } else {
+            payload = Integer.BYTES + value.getData().remaining();
+        }
+        return ENTRY_HEADER + key.remaining() + payload;
+    }
+
+    /**
+     * @return the size of the entry starting at the position of the buffer
+     */
+    private static int entrySize(@NotNull final ByteBuffer entries) {
+        final int start = entries.position();
+        final int keyLength = entries.getInt(start + ENTRY_HEADER - Integer.BYTES);
+        final int payload = start + ENTRY_HEADER + keyLength;
+        switch (entries.get(start)) {
+            case VALUE:
+                return ENTRY_HEADER + keyLength + Integer.BYTES + entries.getInt(payload);
+            case BLOB:
+                return ENTRY_HEADER + keyLength + Long.BYTES * 2;
+            default:
+                return ENTRY_HEADER + keyLength;
+        }
+    }
+
+    static void putEntry(
+            @NotNull final ByteBuffer target,
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        if (value.isRemoved()) {
+            target.put(TOMBSTONE);
+        } else {
+            target.put(value.isBlob() ? BLOB : VALUE);
+        }
+        target.putLong(value.getTimestamp());
+        target.putLong(value.expiresAt());
+        target.putInt(key.remaining());
+        target.put(key.duplicate());
+        if (value.isBlob()) {
+            target.putLong(value.blobId());
+            target.putLong(value.blobLength());
+        } else if (!value.isRemoved()) {
+            final ByteBuffer data = value.getData();
+            target.putInt(data.remaining());
+            target.put(data);
+        }
+    }
+
+    @NotNull
+    static ByteBuffer keyOf(@NotNull final ByteBuffer entry) {
+        final int start = entry.position();
+        return Bytes.slice(entry, start + ENTRY_HEADER, entry.getInt(start + ENTRY_HEADER - Integer.BYTES));
+    }
+
+    /**
+     * @return the version of the entry, inline data refers to the entry
+     */
+    @NotNull
+    static Value valueOf(@NotNull final ByteBuffer entry) {
+        final int start = entry.position();
+        final long timestamp = entry.getLong(start + 1);
+        final long expiresAt = entry.getLong(start + 1 + Long.BYTES);
+        final int payload = start + ENTRY_HEADER + entry.getInt(start + ENTRY_HEADER - Integer.BYTES);
+        final Value value;
+        switch (entry.get(start)) {
+            case VALUE:
+                value = Value.of(Bytes.slice(entry, payload + Integer.BYTES, entry.getInt(payload)), timestamp);
+                break;
+            case BLOB:
+                value = Value.blob(entry.getLong(payload), entry.getLong(payload + Long.BYTES), timestamp);
+                break;
+            default:
+                return Value.tombstone(timestamp);
+        }
+        return expiresAt == Value.NEVER ? value : value.expiring(expiresAt);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,263 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link StreamingKVDao} spreading the keys across independent {@link LSMDao} shards by a hash of the key,
+ * so that the writers of different shards share neither a lock nor a memtable, a log or a flusher.
+ * <p>
+ * Every shard lives in a subdirectory of its own and gets its share of the memory. The shards
+ * share the blobs, so that a value uploaded before its key is known may be committed to any
+ * of them, the clock, so that {@link #timestamp()} exceeds the versions of all of them, and
+ * the digests, which cover the whole key space.
+ * <p>
+ * A batch is split by the shards and is atomic within each of them only. The number of
+ * shards is recorded when the storage is created and can't change afterwards.
+ */
+public final class ShardedDao implements StreamingKVDao {
+    private static final String SHARD = "shard-";
+    private static final String SHARDS = "shards";
+
+    /**
+     * Decorrelates the shard of a key from the bloom filter bits derived from the same hash
+     */
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    @NotNull
+    private final File data;
+    private final HybridClock clock = new HybridClock();
+    @NotNull
+    private final BlobStore blobs;
+    private final MerkleTree.Leaves leaves = new MerkleTree.Leaves();
+    @NotNull
+    private final MerkleTree tree;
+    @NotNull
+    private final LSMDao[] shards;
+
+    public ShardedDao(
+            @NotNull final File data,
+            @NotNull final DaoConfig config) throws IOException {
+        this.data = data;
+        checkLayout(data, config.shards);
+        this.blobs = new BlobStore(new File(data, LSMDao.BLOBS));
+        this.tree = MerkleTree.of(this::cells, leaves);
+
+        final DaoConfig shardConfig = config.shard();
+        this.shards = new LSMDao[config.shards];
+        for (int i = 0; i < shards.length; i++) {
+            final File directory = new File(data, SHARD + i);
+            try {
+                Files.createDirectories(directory.toPath());
+                shards[i] = new LSMDao(directory, shardConfig, clock, blobs, leaves);
+            } catch (IOException e) {
+                for (int j = 0; j < i; j++) {
+                    try {
+                        shards[j].close();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Records the number of shards of a new storage or makes sure it is the same as recorded
+     */
+    private static void checkLayout(
+            @NotNull final File data,
+            final int count) throws IOException {
+        final File file = new File(data, SHARDS);
+        if (file.exists()) {
+            final String recorded = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            if (Integer.parseInt(recorded.trim()) != count) {
+                throw new IllegalStateException("Storage " + data + " has " + recorded.trim() + " shards, not " + count);
+            }
+            return;
+        }
+
+        final File[] files = data.listFiles();
+        if (files != null) {
+            for (final File existing : files) {
+                final String name = existing.getName();
+                if (name.endsWith(SSTable.SUFFIX) || name.endsWith(WriteAheadLog.SUFFIX)) {
+                    throw new IllegalStateException("Storage " + data + " isn't sharded");
+                }
+            }
+        }
+        Files.write(file.toPath(), Integer.toString(count).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int index(@NotNull final ByteBuffer key) {
+        final long hash = MerkleTree.mix(BloomFilter.hash(key) ^ SEED);
+        return (int) Math.floorMod(hash, (long) shards.length);
+    }
+
+    @NotNull
+    private LSMDao shard(@NotNull final ByteBuffer key) {
+        return shards[index(key)];
+    }
+
+    @NotNull
+    private LSMDao shard(@NotNull final byte[] key) {
+        return shard(ByteBuffer.wrap(key));
+    }
+
+    /**
+     * @return all the versions including tombstones in the order of keys starting from the key
+     */
+    @NotNull
+    private Iterator<Cell> cells(@NotNull final ByteBuffer from) {
+        final List<Iterator<Cell>> sources = new ArrayList<>(shards.length);
+        for (final LSMDao shard : shards) {
+            sources.add(shard.cells(from));
+        }
+        // The shards hold disjoint keys
+        return Iters.merge(sources);
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+        return shard(key).get(key);
+    }
+
+    @NotNull
+    @Override
+    public ValueReader open(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+        return shard(key).open(key);
+    }
+
+    @Nullable
+    @Override
+    public Record getWithMeta(@NotNull final byte[] key) throws IOException {
+        return shard(key).getWithMeta(key);
+    }
+
+    @Override
+    public long timestamp() {
+        return clock.now();
+    }
+
+    @NotNull
+    @Override
+    public ValueWriter create() throws IOException {
+        return LSMDao.writer(blobs.create(), clock, (key, value) -> shard(key).store(key, value));
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value) throws IOException {
+        shard(key).upsert(key, value);
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value,
+            final long timestamp) throws IOException {
+        shard(key).upsert(key, value, timestamp);
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final byte[] key,
+            @NotNull final byte[] value,
+            final long timestamp,
+            final long expiresAt) throws IOException {
+        shard(key).upsert(key, value, timestamp, expiresAt);
+    }
+
+    @Override
+    public void remove(@NotNull final byte[] key) throws IOException {
+        shard(key).remove(key);
+    }
+
+    @Override
+    public void remove(
+            @NotNull final byte[] key,
+            final long timestamp) throws IOException {
+        shard(key).remove(key, timestamp);
+    }
+
+    @Override
+    public void apply(@NotNull final Batch batch) throws IOException {
+        final Batch[] parts = new Batch[shards.length];
+        for (final Batch.Update update : batch.updates()) {
+            final int shard = index(ByteBuffer.wrap(update.key));
+            if (parts[shard] == null) {
+                parts[shard] = new Batch();
+            }
+            parts[shard].add(update);
+        }
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) {
+                shards[i].apply(parts[i]);
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Entry> range(
+            @NotNull final byte[] from,
+            @Nullable final byte[] to) {
+        return LSMDao.range(cells(ByteBuffer.wrap(from)), to, this::shard);
+    }
+
+    @NotNull
+    @Override
+    public MerkleTree merkleTree() {
+        return tree;
+    }
+
+    @NotNull
+    @Override
+    public File directory(@NotNull final String name) throws IOException {
+        if (name.equals(LSMDao.BLOBS) || name.startsWith(SHARD)) {
+            throw new IllegalArgumentException("Reserved directory " + name);
+        }
+        final File directory = new File(data, name);
+        Files.createDirectories(directory.toPath());
+        return directory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (final LSMDao shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void crash() throws IOException {
+        for (final LSMDao shard : shards) {
+            shard.crash();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges runs of similarly sized tables into a single table.
+ * <p>
+ * Only adjacent (in terms of recency) tables are merged, so the result takes
+ * the place of its newest input and the order of versions is preserved.
+ * Good for write-heavy workloads, but a key may reside in many tables.
+ */
+final class SizeTieredCompactionPolicy implements CompactionPolicy {
+    private static final int MIN_THRESHOLD = 4;
+    private static final int MAX_THRESHOLD = 32;
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    /**
+     * Tables smaller than this are considered to be of the same size
+     */
+    private final long minTableSize;
+
+    SizeTieredCompactionPolicy(final long minTableSize) {
+        this.minTableSize = minTableSize;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<SSTable> tables) {
+        for (int start = 0; start + MIN_THRESHOLD <= tables.size(); start++) {
+            double average = tables.get(start).sizeInBytes();
+            int end = start + 1;
+            while (end < tables.size()
+                    && end - start < MAX_THRESHOLD
+                    && similar(tables.get(end).sizeInBytes(), average)) {
+                average += (tables.get(end).sizeInBytes() - average) / (end - start + 1);
+                end++;
+            }
+            if (end - start >= MIN_THRESHOLD) {
+                final SSTable newest = tables.get(start);
+                return new Compaction(
+                        new ArrayList<>(tables.subList(start, end)),
+                        newest.level(),
+                        newest.sequence(),
+                        Long.MAX_VALUE,
+                        end == tables.size());
+            }
+        }
+        return null;
+    }
+
+    private boolean similar(
+            final long size,
+            final double average) {
+        return size < minTableSize && average < minTableSize
+                || BUCKET_LOW * average <= size && size <= BUCKET_HIGH * average;
+    }
+}
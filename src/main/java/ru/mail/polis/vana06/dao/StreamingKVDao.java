@@ -0,0 +1,107 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.KVDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link KVDao} which can read and write values in chunks, so that a value
+ * doesn't have to fit in the heap.
+ * <p>
+ * Every update is a version stamped with a timestamp, and the version with the
+ * greatest timestamp wins regardless of the order the updates arrive in, so that
+ * replicas receiving the same updates converge.
+ */
+public interface StreamingKVDao extends KVDao {
+    /**
+     * Opens the current value of the key for reading
+     */
+    @NotNull
+    ValueReader open(@NotNull byte[] key) throws NoSuchElementException, IOException;
+
+    /**
+     * Starts a new value which replaces the value of a key once {@link ValueWriter#commit(byte[]) committed}
+     */
+    @NotNull
+    ValueWriter create() throws IOException;
+
+    /**
+     * @return the newest version of the key including a tombstone, or {@code null} if the key is unknown
+     */
+    @Nullable
+    Record getWithMeta(@NotNull byte[] key) throws IOException;
+
+    /**
+     * @return a timestamp greater than the timestamps of all the versions stored so far
+     */
+    long timestamp();
+
+    /**
+     * Stores the version unless a newer version of the key is already stored
+     */
+    void upsert(
+            @NotNull byte[] key,
+            @NotNull byte[] value,
+            long timestamp) throws IOException;
+
+    /**
+     * Stores the version which expires at the deadline unless a newer version of the key is already stored
+     *
+     * @param expiresAt the time in milliseconds since the epoch or {@link Value#NEVER}
+     */
+    void upsert(
+            @NotNull byte[] key,
+            @NotNull byte[] value,
+            long timestamp,
+            long expiresAt) throws IOException;
+
+    /**
+     * Stores a tombstone unless a newer version of the key is already stored
+     */
+    void remove(
+            @NotNull byte[] key,
+            long timestamp) throws IOException;
+
+    /**
+     * Stores the updates of the batch with a single log record, so that all or
+     * none of them survive a crash. Updates older than the stored versions are skipped.
+     */
+    void apply(@NotNull Batch batch) throws IOException;
+
+    /**
+     * Lazily merges the memtable and the tables keeping a single position in each of them,
+     * so a range of any size is scanned in constant memory. Updates made during the scan
+     * may be seen or not.
+     *
+     * @param from the first key, inclusive
+     * @param to   the last key, exclusive, or {@code null} to scan to the end
+     * @return the live keys of the range in the order of keys
+     */
+    @NotNull
+    Iterator<Entry> range(
+            @NotNull byte[] from,
+            @Nullable byte[] to);
+
+    /**
+     * @return digests of the versions stored
+     */
+    @NotNull
+    MerkleTree merkleTree();
+
+    /**
+     * @return a directory within the storage for the files of the service, created if absent
+     */
+    @NotNull
+    File directory(@NotNull String name) throws IOException;
+
+    /**
+     * Stops the background threads and releases the files without flushing or syncing
+     * anything, like {@code kill -9} does. Meant for the tests, the storage is unusable afterwards.
+     */
+    void crash() throws IOException;
+}
@@ -0,0 +1,37 @@
+package ru.mail.polis.vana06.dao;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of background I/O in bytes per second, so that compactions
+ * don't steal disk bandwidth from foreground requests
+ */
+final class Throttle {
+    private final long bytesPerSecond;
+    private long windowStart = System.nanoTime();
+    private long bytesInWindow;
+
+    /**
+     * @param bytesPerSecond rate limit, non positive means unlimited
+     */
+    Throttle(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void acquire(final long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        bytesInWindow += bytes;
+        final long elapsed = System.nanoTime() - windowStart;
+        final long expected = TimeUnit.SECONDS.toNanos(bytesInWindow) / bytesPerSecond;
+        if (expected > elapsed) {
+            TimeUnit.NANOSECONDS.sleep(expected - elapsed);
+        }
+        if (elapsed > TimeUnit.SECONDS.toNanos(1)) {
+            // Don't let an idle period accumulate a burst credit
+            windowStart = System.nanoTime();
+            bytesInWindow = 0;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A stored version of a key: inline data, a reference to a blob or a tombstone,
+ * stamped with the {@link HybridClock} timestamp of the update.
+ * <p>
+ * A value may expire at a deadline, after which it reads as a tombstone of the same timestamp.
+ */
+public final class Value {
+    /**
+     * Deadline of a value which never expires
+     */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private static final long NO_BLOB = -1;
+
+    @Nullable
+    private final ByteBuffer data;
+    private final long blobId;
+    private final long blobLength;
+    private final long timestamp;
+    private final long expiresAt;
+
+    private Value(
+            @Nullable final ByteBuffer data,
+            final long blobId,
+            final long blobLength,
+            final long timestamp,
+            final long expiresAt) {
+        this.data = data;
+        this.blobId = blobId;
+        this.blobLength = blobLength;
+        this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
+    }
+
+    @NotNull
+    public static Value of(
+            @NotNull final ByteBuffer data,
+            final long timestamp) {
+        return new Value(data, NO_BLOB, 0, timestamp, NEVER);
+    }
+
+    /**
+     * A large value stored separately in a {@link BlobStore}
+     */
+    @NotNull
+    static Value blob(
+            final long id,
+            final long length,
+            final long timestamp) {
+        return new Value(null, id, length, timestamp, NEVER);
+    }
+
+    @NotNull
+    public static Value tombstone(final long timestamp) {
+        return new Value(null, NO_BLOB, 0, timestamp, NEVER);
+    }
+
+    /**
+     * @param expiresAt the time in milliseconds since the epoch the value expires at
+     * @return the same value expiring at the deadline
+     */
+    @NotNull
+    public Value expiring(final long expiresAt) {
+        if (isRemoved()) {
+            throw new IllegalStateException("Tombstone can't expire");
+        }
+        return new Value(data, blobId, blobLength, timestamp, expiresAt);
+    }
+
+    /**
+     * Every replica derives the same deadline from the same version
+     *
+     * @param timestamp version of the value
+     * @param ttl       time to live in milliseconds since the version was issued
+     * @return the time in milliseconds since the epoch the value expires at
+     */
+    public static long expiresAfter(
+            final long timestamp,
+            final long ttl) {
+        final long issued = HybridClock.millis(timestamp);
+        return ttl >= NEVER - issued ? NEVER - 1 : issued + ttl;
+    }
+
+    public boolean isRemoved() {
+        return data == null && blobId == NO_BLOB;
+    }
+
+    public boolean isBlob() {
+        return blobId != NO_BLOB;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch the value expires at or {@link #NEVER}
+     */
+    public long expiresAt() {
+        return expiresAt;
+    }
+
+    boolean isExpiring() {
+        return expiresAt != NEVER;
+    }
+
+    /**
+     * @param now the time in milliseconds since the epoch
+     */
+    boolean isExpired(final long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * @param now the time in milliseconds since the epoch
+     * @return whether the value is neither removed nor expired
+     */
+    boolean isLive(final long now) {
+        return !isRemoved() && !isExpired(now);
+    }
+
+    /**
+     * @return whether this version supersedes the other one, see {@link #compareVersion(Value)}
+     */
+    boolean isNewerThan(@NotNull final Value other) {
+        return compareVersion(other) > 0;
+    }
+
+    /**
+     * Orders the versions of a key by the timestamps. A tie, e.g. of the versions written by
+     * different coordinators at once, is broken by the contents rather than by the order of
+     * arrival, so that every replica keeps the same version: a tombstone wins, then the later
+     * deadline, the longer value and the greater bytes. Blobs aren't read, so the ones of the
+     * same length tie, and the stored one stays.
+     *
+     * @return zero for the same version
+     */
+    int compareVersion(@NotNull final Value other) {
+        int cmp = Long.compare(timestamp, other.timestamp);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = Boolean.compare(isRemoved(), other.isRemoved());
+        if (cmp != 0 || isRemoved()) {
+            return cmp;
+        }
+        cmp = Long.compare(expiresAt, other.expiresAt);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = Long.compare(length(), other.length());
+        if (cmp != 0 || isBlob() || other.isBlob()) {
+            return cmp;
+        }
+        return Bytes.compare(getData(), other.getData());
+    }
+
+    private long length() {
+        return isBlob() ? blobLength : getData().remaining();
+    }
+
+    @NotNull
+    public ByteBuffer getData() {
+        if (data == null) {
+            throw new IllegalStateException("No inline data");
+        }
+        return data.asReadOnlyBuffer();
+    }
+
+    long blobId() {
+        return blobId;
+    }
+
+    /**
+     * @return length of the referenced blob
+     */
+    long blobLength() {
+        return blobLength;
+    }
+
+    /**
+     * @return approximate number of bytes the value occupies in a table
+     */
+    int sizeInBytes() {
+        final int deadline = isExpiring() ? Long.BYTES : 0;
+        if (isBlob()) {
+            return Long.BYTES * 3 + deadline;
+        }
+        return Long.BYTES + deadline + (data == null ? 0 : data.remaining());
+    }
+}
@@ -0,0 +1,23 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Positional access to a stored value obtained by {@link StreamingKVDao#open(byte[])}
+ */
+public interface ValueReader extends Closeable {
+    long length();
+
+    /**
+     * Reads the bytes of the value starting at the position to the buffer.
+     *
+     * @return the number of bytes read, 0 at the end of the value
+     */
+    int read(
+            @NotNull ByteBuffer target,
+            long position) throws IOException;
+}
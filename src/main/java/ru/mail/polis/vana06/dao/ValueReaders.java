@@ -0,0 +1,82 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link ValueReader}s over inline values and blobs
+ */
+public final class ValueReaders {
+    private ValueReaders() {
+        // Not instantiable
+    }
+
+    @NotNull
+    static ValueReader of(@NotNull final ByteBuffer data) {
+        return new ValueReader() {
+            @Override
+            public long length() {
+                return data.remaining();
+            }
+
+            @Override
+            public int read(
+                    @NotNull final ByteBuffer target,
+                    final long position) {
+                final int count = (int) Math.min(target.remaining(), Math.max(0, data.remaining() - position));
+                target.put(Bytes.slice(data, data.position() + (int) position, count));
+                return count;
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release
+            }
+        };
+    }
+
+    @NotNull
+    static ValueReader of(
+            @NotNull final FileChannel channel,
+            final long length) {
+        return new ValueReader() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public int read(
+                    @NotNull final ByteBuffer target,
+                    final long position) throws IOException {
+                return Math.max(0, channel.read(target, position));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Reads the whole value into the heap
+     */
+    @NotNull
+    public static byte[] toArray(@NotNull final ValueReader reader) throws IOException {
+        final long length = reader.length();
+        if (length > Integer.MAX_VALUE - Long.BYTES) {
+            throw new IOException("Value of " + length + " bytes doesn't fit in an array, read it in chunks");
+        }
+        final ByteBuffer result = ByteBuffer.allocate((int) length);
+        while (result.hasRemaining()) {
+            if (reader.read(result, result.position()) == 0) {
+                throw new IOException("Unexpected end of value");
+            }
+        }
+        return result.array();
+    }
+}
@@ -0,0 +1,45 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A value being written in chunks, obtained by {@link StreamingKVDao#create()}.
+ * <p>
+ * Closing the writer before {@link #commit(byte[])} discards the value.
+ */
+public interface ValueWriter extends Closeable {
+    void write(@NotNull ByteBuffer chunk) throws IOException;
+
+    /**
+     * @return the number of bytes written so far
+     */
+    long length();
+
+    /**
+     * Atomically stores the written bytes as the value of the key
+     */
+    void commit(@NotNull byte[] key) throws IOException;
+
+    /**
+     * Atomically stores the written bytes as the version of the key with the
+     * timestamp unless a newer version is already stored
+     */
+    void commit(
+            @NotNull byte[] key,
+            long timestamp) throws IOException;
+
+    /**
+     * Atomically stores the written bytes as the version of the key with the timestamp
+     * which expires at the deadline unless a newer version is already stored
+     *
+     * @param expiresAt the time in milliseconds since the epoch or {@link Value#NEVER}
+     */
+    void commit(
+            @NotNull byte[] key,
+            long timestamp,
+            long expiresAt) throws IOException;
+}
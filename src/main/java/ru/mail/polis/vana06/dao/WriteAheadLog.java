@@ -0,0 +1,388 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the updates applied to a {@link MemTable}, replayed after a crash.
+ * <p>
+ * Record layout:
+ * <pre>
+ * record  := length:int crc:int payload
+ * payload := version keyLength:int key value | BATCH:byte count:int entry*
+ * entry   := version keyLength:int key valueLength:int value
+ * version := type:byte timestamp:long expiresAt:long?  (expiresAt follows types with the EXPIRING flag)
+ * value   := data | blobId:long blobLength:long
+ * </pre>
+ * A record with a wrong checksum marks a torn tail and ends the replay, so the
+ * updates of a batch are recovered all together or not at all.
+ * <p>
+ * Concurrent writers waiting for durability are served by a single {@code fsync}
+ * issued by whichever of them comes first (group commit). A record is written
+ * before its update returns, so writers build records in their own reused buffers.
+ */
+final class WriteAheadLog implements Closeable {
+    static final String SUFFIX = ".log";
+
+    private static final byte UPSERT = 0;
+    private static final byte REMOVE = 1;
+    private static final byte BLOB = 2;
+    private static final byte BATCH = 3;
+
+    /**
+     * Flag of the type of a value which expires
+     */
+    private static final byte EXPIRING = 0x10;
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    /**
+     * Records up to this size are built in a buffer reused by the writer thread
+     */
+    private static final int MAX_REUSED_RECORD_SIZE = 128 * 1024;
+    private static final ThreadLocal<ByteBuffer> records = new ThreadLocal<>();
+    private static final ThreadLocal<CRC32> checksums = ThreadLocal.withInitial(CRC32::new);
+
+    /**
+     * When an acknowledged update reaches the disk
+     */
+    enum Durability {
+        /**
+         * Before the update returns, concurrent updates share an {@code fsync}
+         */
+        ALWAYS,
+        /**
+         * Within the configured interval, the log is synced in background
+         */
+        PERIODIC,
+        /**
+         * Whenever the OS decides to write the page cache back
+         */
+        NONE
+    }
+
+    @NotNull
+    private final File file;
+    @NotNull
+    private final FileChannel channel;
+    @NotNull
+    private final Durability durability;
+
+    /**
+     * Guarded by {@code this}
+     */
+    private long written;
+
+    private final Object syncMonitor = new Object();
+    /**
+     * Guarded by {@link #syncMonitor}
+     */
+    private long synced;
+
+    private WriteAheadLog(
+            @NotNull final File file,
+            @NotNull final Durability durability) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        this.channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+    }
+
+    @NotNull
+    static WriteAheadLog create(
+            @NotNull final File file,
+            @NotNull final Durability durability) throws IOException {
+        return new WriteAheadLog(file, durability);
+    }
+
+    @NotNull
+    File file() {
+        return file;
+    }
+
+    /**
+     * Appends the updates to the log as a single record. Racing updates may be applied
+     * in another order than logged, the versions of a key are ordered by themselves.
+     *
+     * @return the log position to pass to {@link #commit(long)}
+     */
+    long append(@NotNull final List<Cell> cells) throws IOException {
+        if (cells.size() == 1) {
+            final Cell cell = cells.get(0);
+            final ByteBuffer key = cell.getKey();
+            final ByteBuffer data = dataOf(cell.getValue());
+            final int payloadSize = versionSize(cell.getValue()) + Integer.BYTES + key.remaining() + data.remaining();
+            final ByteBuffer record = allocate(HEADER_SIZE + payloadSize);
+            record.position(HEADER_SIZE);
+            putVersion(record, cell.getValue());
+            record.putInt(key.remaining());
+            record.put(key);
+            record.put(data.duplicate());
+            return write(seal(record, payloadSize));
+        }
+
+        int payloadSize = 1 + Integer.BYTES;
+        for (final Cell cell : cells) {
+            payloadSize += versionSize(cell.getValue()) + Integer.BYTES * 2 + cell.getKey().remaining()
+                    + dataOf(cell.getValue()).remaining();
+        }
+        final ByteBuffer record = allocate(HEADER_SIZE + payloadSize);
+        record.position(HEADER_SIZE);
+        record.put(BATCH);
+        record.putInt(cells.size());
+        for (final Cell cell : cells) {
+            final ByteBuffer key = cell.getKey();
+            final ByteBuffer data = dataOf(cell.getValue());
+            putVersion(record, cell.getValue());
+            record.putInt(key.remaining());
+            record.put(key);
+            record.putInt(data.remaining());
+            record.put(data.duplicate());
+        }
+        return write(seal(record, payloadSize));
+    }
+
+    /**
+     * @return a buffer with the size as the limit, valid until the next record of this thread
+     */
+    @NotNull
+    private static ByteBuffer allocate(final int size) {
+        if (size > MAX_REUSED_RECORD_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer record = records.get();
+        if (record == null || record.capacity() < size) {
+            // Grow by powers of two, so that a few large records don't cause reallocations
+            record = ByteBuffer.allocate(Integer.highestOneBit(size - 1) << 1);
+            records.set(record);
+        }
+        record.clear();
+        record.limit(size);
+        return record;
+    }
+
+    /**
+     * @return the size of the type, the timestamp and the deadline of the value
+     */
+    private static int versionSize(@NotNull final Value value) {
+        return 1 + Long.BYTES + (value.isExpiring() ? Long.BYTES : 0);
+    }
+
+    private static void putVersion(
+            @NotNull final ByteBuffer record,
+            @NotNull final Value value) {
+        if (value.isExpiring()) {
+            record.put((byte) (typeOf(value) | EXPIRING));
+            record.putLong(value.getTimestamp());
+            record.putLong(value.expiresAt());
+        } else {
+            record.put(typeOf(value));
+            record.putLong(value.getTimestamp());
+        }
+    }
+
+    private static byte typeOf(@NotNull final Value value) {
+        if (value.isRemoved()) {
+            return REMOVE;
+        }
+        return value.isBlob() ? BLOB : UPSERT;
+    }
+
+    @NotNull
+    private static ByteBuffer dataOf(@NotNull final Value value) {
+        if (value.isRemoved()) {
+            return Bytes.EMPTY;
+        }
+        if (value.isBlob()) {
+            // A reference to a durable blob
+            final ByteBuffer data = ByteBuffer.allocate(Long.BYTES * 2);
+            data.putLong(value.blobId());
+            data.putLong(value.blobLength());
+            data.flip();
+            return data;
+        }
+        return value.getData();
+    }
+
+    /**
+     * Fills in the header of the record
+     */
+    @NotNull
+    private static ByteBuffer seal(
+            @NotNull final ByteBuffer record,
+            final int payloadSize) {
+        final CRC32 crc = checksums.get();
+        crc.reset();
+        crc.update(record.array(), HEADER_SIZE, payloadSize);
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.rewind();
+        return record;
+    }
+
+    private synchronized long write(@NotNull final ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            written += channel.write(record);
+        }
+        return written;
+    }
+
+    /**
+     * Waits until the log is durable up to the position according to the {@link Durability}
+     */
+    void commit(final long position) throws IOException {
+        if (durability == Durability.ALWAYS) {
+            sync(position);
+        }
+    }
+
+    /**
+     * Makes everything written so far durable
+     */
+    void sync() throws IOException {
+        final long position;
+        synchronized (this) {
+            position = written;
+        }
+        sync(position);
+    }
+
+    private void sync(final long position) throws IOException {
+        // Writers queue up here while the current fsync is in progress
+        synchronized (syncMonitor) {
+            if (synced >= position) {
+                // Somebody has already synced our record on behalf of the group
+                return;
+            }
+            final long target;
+            synchronized (this) {
+                target = written;
+            }
+            force(target);
+        }
+    }
+
+    private void force(final long target) throws IOException {
+        try {
+            channel.force(false);
+            synced = Math.max(synced, target);
+        } catch (ClosedChannelException e) {
+            // The log is closed only after the memtable has been flushed to a durable table
+            synced = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Receives the logged updates in the order they were logged
+     */
+    @FunctionalInterface
+    interface UpdateConsumer {
+        void accept(
+                @NotNull ByteBuffer key,
+                @NotNull Value value) throws IOException;
+    }
+
+    /**
+     * Passes the logged updates to the consumer.
+     */
+    static void replay(
+            @NotNull final File file,
+            @NotNull final UpdateConsumer consumer) throws IOException {
+        final long size = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                final int checksum;
+                final byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > size) {
+                        // Garbage instead of a record header
+                        return;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    // Torn tail
+                    return;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+
+                final ByteBuffer record = ByteBuffer.wrap(payload);
+                if (record.get(0) != BATCH) {
+                    final byte type = record.get();
+                    final long timestamp = record.getLong();
+                    final long expiresAt = (type & EXPIRING) == 0 ? Value.NEVER : record.getLong();
+                    final ByteBuffer key = slice(record, record.getInt());
+                    consumer.accept(key, valueOf(type, timestamp, expiresAt, record.slice()));
+                    continue;
+                }
+                record.get();
+                for (int count = record.getInt(); count > 0; count--) {
+                    final byte type = record.get();
+                    final long timestamp = record.getLong();
+                    final long expiresAt = (type & EXPIRING) == 0 ? Value.NEVER : record.getLong();
+                    final ByteBuffer key = slice(record, record.getInt());
+                    consumer.accept(key, valueOf(type, timestamp, expiresAt, slice(record, record.getInt())));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next {@code length} bytes of the record
+     */
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer record,
+            final int length) {
+        final ByteBuffer result = Bytes.slice(record, record.position(), length);
+        record.position(record.position() + length);
+        return result;
+    }
+
+    @NotNull
+    private static Value valueOf(
+            final byte type,
+            final long timestamp,
+            final long expiresAt,
+            @NotNull final ByteBuffer data) {
+        final Value value;
+        switch (type & ~EXPIRING) {
+            case UPSERT:
+                value = Value.of(data, timestamp);
+                break;
+            case BLOB:
+                value = Value.blob(data.getLong(), data.getLong(), timestamp);
+                break;
+            default:
+                return Value.tombstone(timestamp);
+        }
+        return expiresAt == Value.NEVER ? value : value.expiring(expiresAt);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,334 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vana06.dao.Bytes;
+import ru.mail.polis.vana06.dao.Cell;
+import ru.mail.polis.vana06.dao.MerkleTree;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background reconciliation of the replicas by the {@link MerkleTree}s of their versions.
+ * <p>
+ * The {@link Placement} assigns whole leaves to the replicas, so a node and a peer
+ * share the leaves both of them are default replicas of. Every round the node compares
+ * the tree of the leaves it shares with the next peer from the root down to the leaves
+ * which differ, so matching ranges cost a single hash. Then it lists the versions of the
+ * differing leaves of the peer and pulls the keys it misses or stores an older or a
+ * different version of. The peer pulls the other way round in its own rounds.
+ * <p>
+ * The keys of a leaf are spread over the whole key space, so the differing leaves are listed
+ * together by a single scan in the order of keys. The listing comes in pages of about
+ * {@link #PAGE_BYTES}, each one resumed from the key following the last one of the previous page,
+ * and the keys of a page are pulled before the next one is requested.
+ * <p>
+ * Internal requests:
+ * <pre>
+ * PUT /v0/tree     shared:long[LEAVES / 64] node:int*   -> hash:long*
+ * PUT /v0/leaves   leaves:long[LEAVES / 64] from        -> (keyLength:int key timestamp:long digest:long)* in the order of keys
+ * PUT /v0/fetch    (keyLength:int key)*                 -> {@link Versions} batch
+ * </pre>
+ * An empty page ends the listing.
+ */
+final class AntiEntropy implements Closeable {
+    static final String TREE_PATH = "/v0/tree";
+    static final String LEAVES_PATH = "/v0/leaves";
+
+    private static final Logger log = Logger.getLogger(AntiEntropy.class.getName());
+
+    /**
+     * A page of the listing ends with the first key past this size
+     */
+    private static final int PAGE_BYTES = 256 * 1024;
+    private static final int SHARED_BYTES = MerkleTree.LEAVES / Byte.SIZE;
+
+    @NotNull
+    private final StreamingKVDao dao;
+    @NotNull
+    private final List<String> peers;
+    /**
+     * The leaves shared with the peer with the same index
+     */
+    @NotNull
+    private final List<BitSet> shared;
+    @NotNull
+    private final Coordinator coordinator;
+    @NotNull
+    private final ScheduledExecutorService executor;
+    private int nextPeer;
+
+    /**
+     * @param from the number of the replicas of a key by default
+     */
+    AntiEntropy(
+            @NotNull final StreamingKVDao dao,
+            @NotNull final Placement placement,
+            @NotNull final String me,
+            final int from,
+            @NotNull final List<String> peers,
+            @NotNull final Coordinator coordinator,
+            @NotNull final ServiceConfig config) {
+        this.dao = dao;
+        this.peers = new ArrayList<>(peers);
+        this.shared = new ArrayList<>(peers.size());
+        for (final String peer : peers) {
+            shared.add(placement.shared(me, peer, from));
+        }
+        this.coordinator = coordinator;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "anti-entropy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (config.antiEntropyIntervalMs > 0 && !peers.isEmpty()) {
+            // Nodes of a cluster start at once, so the first round is randomly delayed
+            final long delay = config.antiEntropyIntervalMs
+                    + ThreadLocalRandom.current().nextLong(config.antiEntropyIntervalMs);
+            executor.scheduleWithFixedDelay(this::run, delay, config.antiEntropyIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void run() {
+        final String peer = peers.get(nextPeer);
+        final BitSet leaves = shared.get(nextPeer);
+        nextPeer = (nextPeer + 1) % peers.size();
+        try {
+            sync(peer, leaves);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            log.log(Level.FINE, "Can't sync with " + peer, e);
+        }
+    }
+
+    private void sync(
+            @NotNull final String peer,
+            @NotNull final BitSet shared) throws IOException, InterruptedException, ExecutionException {
+        if (shared.isEmpty()) {
+            return;
+        }
+        final MerkleTree tree = dao.merkleTree();
+        final BitSet leaves = new BitSet(MerkleTree.LEAVES);
+        List<Integer> nodes = Collections.singletonList(MerkleTree.ROOT);
+        while (!nodes.isEmpty()) {
+            final ByteBuffer remote = ByteBuffer.wrap(call(peer, TREE_PATH, treeRequest(shared, nodes)));
+            final List<Integer> children = new ArrayList<>();
+            for (final int node : nodes) {
+                if (tree.hash(node, shared) == remote.getLong()) {
+                    continue;
+                }
+                if (node >= MerkleTree.LEAVES) {
+                    leaves.set(node - MerkleTree.LEAVES);
+                } else {
+                    children.add(node * 2);
+                    children.add(node * 2 + 1);
+                }
+            }
+            nodes = children;
+        }
+
+        if (leaves.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer from = Bytes.EMPTY;
+        while (true) {
+            final ByteBuffer page = ByteBuffer.wrap(call(peer, LEAVES_PATH, leavesRequest(leaves, from)));
+            if (!page.hasRemaining()) {
+                return;
+            }
+            final List<byte[]> stale = new ArrayList<>();
+            from = stale(leaves, from, page, stale);
+            for (final List<byte[]> keys : Versions.chunks(stale)) {
+                pull(peer, keys);
+            }
+        }
+    }
+
+    /**
+     * Fetches the versions of the keys by as many bounded batches as it takes. Versions too large
+     * for a batch are skipped, they are left to the reads and the next writes of their keys.
+     */
+    private void pull(
+            @NotNull final String peer,
+            @NotNull final List<byte[]> keys) throws IOException, InterruptedException, ExecutionException {
+        List<byte[]> rest = keys;
+        while (!rest.isEmpty()) {
+            final byte[] fetched = call(peer, Versions.FETCH_PATH, Versions.frame(rest));
+            final List<Versions.Version> versions = Versions.decode(fetched);
+            if (versions == null) {
+                throw new IOException("Malformed versions from " + peer);
+            }
+            Versions.apply(versions, dao);
+            rest = Versions.rest(rest, versions);
+        }
+    }
+
+    /**
+     * Joins the local versions of the leaves with a page of the listing of the peer
+     *
+     * @param from  the first key of the page
+     * @param stale receives the keys missing here or whose versions differ from the newer or equally new ones
+     *              of the peer
+     * @return the key the next page starts from
+     */
+    @NotNull
+    private ByteBuffer stale(
+            @NotNull final BitSet leaves,
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer remote,
+            @NotNull final List<byte[]> stale) {
+        final Iterator<Cell> local = dao.merkleTree().cells(leaves, from);
+        Cell cell = local.hasNext() ? local.next() : null;
+        ByteBuffer key = from;
+        while (remote.hasRemaining()) {
+            key = Bytes.slice(remote, remote.position() + Integer.BYTES, remote.getInt());
+            remote.position(remote.position() + key.remaining());
+            final long timestamp = remote.getLong();
+            final long digest = remote.getLong();
+            while (cell != null && Bytes.compare(cell.getKey(), key) < 0) {
+                cell = local.hasNext() ? local.next() : null;
+            }
+            if (cell == null || Bytes.compare(cell.getKey(), key) != 0) {
+                stale.add(Bytes.toArray(key));
+                continue;
+            }
+            final long stored = cell.getValue().getTimestamp();
+            if (stored < timestamp || stored == timestamp && MerkleTree.digest(key, cell.getValue()) != digest) {
+                stale.add(Bytes.toArray(key));
+            }
+        }
+        return successor(key);
+    }
+
+    /**
+     * @return the smallest key following the key
+     */
+    @NotNull
+    private static ByteBuffer successor(@NotNull final ByteBuffer key) {
+        final ByteBuffer result = ByteBuffer.allocate(key.remaining() + 1);
+        result.put(key.duplicate());
+        result.rewind();
+        return result;
+    }
+
+    @NotNull
+    private byte[] call(
+            @NotNull final String peer,
+            @NotNull final String path,
+            @NotNull final byte[] body) throws IOException, InterruptedException, ExecutionException {
+        final Response response = coordinator.put(peer, path, body).get();
+        if (response.getStatus() != 200) {
+            throw new IOException("Unexpected status " + response.getStatus() + " of " + path);
+        }
+        return response.getBody();
+    }
+
+    @NotNull
+    private static byte[] treeRequest(
+            @NotNull final BitSet shared,
+            @NotNull final List<Integer> nodes) {
+        final ByteBuffer result = ByteBuffer.allocate(SHARED_BYTES + nodes.size() * Integer.BYTES);
+        putLeaves(result, shared);
+        for (final int node : nodes) {
+            result.putInt(node);
+        }
+        return result.array();
+    }
+
+    @NotNull
+    private static byte[] leavesRequest(
+            @NotNull final BitSet leaves,
+            @NotNull final ByteBuffer from) {
+        final ByteBuffer result = ByteBuffer.allocate(SHARED_BYTES + from.remaining());
+        putLeaves(result, leaves);
+        result.put(from.duplicate());
+        return result.array();
+    }
+
+    private static void putLeaves(
+            @NotNull final ByteBuffer target,
+            @NotNull final BitSet leaves) {
+        final long[] words = leaves.toLongArray();
+        for (int i = 0; i < SHARED_BYTES / Long.BYTES; i++) {
+            target.putLong(i < words.length ? words[i] : 0);
+        }
+    }
+
+    @NotNull
+    private static BitSet getLeaves(@NotNull final ByteBuffer source) {
+        final long[] words = new long[SHARED_BYTES / Long.BYTES];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = source.getLong();
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Serves {@link #TREE_PATH}
+     */
+    @NotNull
+    Response tree(@NotNull final byte[] body) {
+        if (body.length < SHARED_BYTES) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        final ByteBuffer request = ByteBuffer.wrap(body);
+        final BitSet shared = getLeaves(request);
+        final ByteBuffer hashes = ByteBuffer.allocate(request.remaining() / Integer.BYTES * Long.BYTES);
+        try {
+            while (hashes.hasRemaining()) {
+                hashes.putLong(dao.merkleTree().hash(request.getInt(), shared));
+            }
+        } catch (IllegalArgumentException e) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        return Response.ok(hashes.array());
+    }
+
+    /**
+     * Serves a page of {@link #LEAVES_PATH}
+     */
+    @NotNull
+    Response leaves(@NotNull final byte[] body) throws IOException {
+        if (body.length < SHARED_BYTES) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        final ByteBuffer request = ByteBuffer.wrap(body);
+        final BitSet leaves = getLeaves(request);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final Iterator<Cell> cells = dao.merkleTree().cells(leaves, request.slice());
+        while (cells.hasNext() && bytes.size() < PAGE_BYTES) {
+            final Cell cell = cells.next();
+            final byte[] key = Bytes.toArray(cell.getKey());
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeLong(cell.getValue().getTimestamp());
+            out.writeLong(MerkleTree.digest(cell.getKey(), cell.getValue()));
+        }
+        return Response.ok(bytes.toByteArray());
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,125 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Response body produced chunk by chunk into a pooled buffer as the socket accepts it.
+ * <p>
+ * The headers of the response may be put ahead of the first chunk, so that
+ * a small response is sent with a single write and without any copies of its body.
+ */
+abstract class BodyQueueItem extends Session.QueueItem {
+    private static final Logger log = Logger.getLogger(BodyQueueItem.class.getName());
+
+    @NotNull
+    private final BufferPool pool;
+
+    /**
+     * Bytes ready to be sent, {@code null} once released
+     */
+    @Nullable
+    private ByteBuffer buffer;
+
+    BodyQueueItem(@NotNull final BufferPool pool) {
+        this.pool = pool;
+        this.buffer = pool.acquire();
+        buffer.flip();
+    }
+
+    /**
+     * @return whether there are bytes of the body not put to the buffer yet
+     */
+    abstract boolean hasMore();
+
+    /**
+     * Puts as many of the next bytes of the body as fit in the buffer
+     */
+    abstract void fill(@NotNull ByteBuffer buffer) throws IOException;
+
+    /**
+     * Releases the source of the body
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Puts the headers ahead of the body, must be called before the first write
+     *
+     * @return whether the headers fit in the first chunk
+     */
+    boolean head(@NotNull final byte[] header) throws IOException {
+        final ByteBuffer chunk = buffer();
+        if (header.length > chunk.capacity()) {
+            return false;
+        }
+        chunk.clear();
+        chunk.put(header);
+        fill(chunk);
+        chunk.flip();
+        return true;
+    }
+
+    @Override
+    public int remaining() {
+        // The total size may be unknown until the body ends
+        return buffer != null && (buffer.hasRemaining() || hasMore()) ? 1 : 0;
+    }
+
+    @Override
+    public int write(@NotNull final Socket socket) throws IOException {
+        final ByteBuffer chunk = buffer();
+        int total = 0;
+        while (chunk.hasRemaining() || next(chunk)) {
+            final int written = socket.write(chunk.array(), chunk.position(), chunk.remaining(), 0);
+            if (written <= 0) {
+                // The socket buffer is full, the selector resumes us later
+                break;
+            }
+            chunk.position(chunk.position() + written);
+            total += written;
+        }
+        return total;
+    }
+
+    /**
+     * @return whether there are new bytes to send
+     */
+    private boolean next(@NotNull final ByteBuffer chunk) throws IOException {
+        if (!hasMore()) {
+            return false;
+        }
+        chunk.clear();
+        fill(chunk);
+        chunk.flip();
+        return chunk.hasRemaining();
+    }
+
+    @NotNull
+    private ByteBuffer buffer() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Body is released");
+        }
+        return buffer;
+    }
+
+    @Override
+    public void release() {
+        try {
+            close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can't close body", e);
+        } finally {
+            if (buffer != null) {
+                pool.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
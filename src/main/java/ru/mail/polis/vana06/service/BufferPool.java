@@ -0,0 +1,49 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Heap buffers of the same size reused across responses, so that sending a value
+ * doesn't allocate a buffer of its size.
+ * <p>
+ * A buffer is acquired by one thread and may be released by another, e.g. a
+ * selector finishing a response started by a worker. The pool allocates a new
+ * buffer when it runs out of them and retains at most {@code capacity} of them.
+ */
+final class BufferPool {
+    private final int bufferSize;
+    @NotNull
+    private final BlockingQueue<ByteBuffer> free;
+
+    BufferPool(
+            final int bufferSize,
+            final int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return a cleared buffer to be {@link #release(ByteBuffer) released} once not needed
+     */
+    @NotNull
+    ByteBuffer acquire() {
+        final ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * The buffer must not be used afterwards
+     */
+    void release(@NotNull final ByteBuffer buffer) {
+        // Extra buffers are left to the GC
+        free.offer(buffer);
+    }
+}
@@ -0,0 +1,280 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.HttpException;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import one.nio.pool.PoolException;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vana06.dao.Value;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Sends requests to the replicas in parallel over pooled keep-alive connections.
+ * <p>
+ * A request to every replica runs in its own task with the configured timeout,
+ * and the coordinator is notified as soon as enough replicas have answered,
+ * without waiting for the stragglers.
+ * <p>
+ * The {@link HttpClient} of one-nio is blocking and there is no asynchronous one to replace it,
+ * so the fan-out is asynchronous only to the callers: a request in flight to a replica occupies
+ * a thread of the pool and a pooled connection until the answer or the timeout. Hence at most
+ * {@code kv.cluster.threads} replica requests are in flight, further ones wait in a bounded queue
+ * and fail right away once it is full, and an unavailable replica holds a thread for the whole
+ * {@code kv.cluster.timeout} of every request sent to it.
+ */
+final class Coordinator implements Closeable {
+    /**
+     * Marks a request sent by a coordinator to a replica, which serves it locally
+     */
+    static final String PROXIED = "X-Proxied: ";
+    static final String PROXIED_HEADER = PROXIED + "true";
+    static final String CONTENT_RANGE = "Content-Range: ";
+    static final String CONTENT_LENGTH = "Content-Length: ";
+    static final String STATUS_PATH = "/v0/status";
+
+    /**
+     * Version of the value assigned by the coordinator of an update or stored by a replica
+     */
+    static final String TIMESTAMP = "X-Timestamp: ";
+
+    /**
+     * Deadline of an expiring value stored by a replica
+     */
+    static final String EXPIRES = "X-Expires: ";
+
+    /**
+     * Timestamp of a response without a version
+     */
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    @NotNull
+    private final Map<String, HttpClient> clients;
+    @NotNull
+    private final ThreadPoolExecutor executor;
+
+    Coordinator(
+            @NotNull final Collection<String> nodes,
+            @NotNull final ServiceConfig config) {
+        this.clients = new HashMap<>();
+        for (final String node : nodes) {
+            clients.put(node, new HttpClient(new ConnectionString(node + "?timeout=" + config.replicaTimeoutMs)));
+        }
+
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                config.replicationThreads,
+                config.replicationThreads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.queueSize),
+                r -> {
+                    final Thread thread = new Thread(r, "replicator-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Sends the update to the replica, which stores it with the specified timestamp.
+     *
+     * @return the future response, which fails if the replica is unavailable
+     */
+    @NotNull
+    CompletableFuture<Response> send(
+            @NotNull final String node,
+            @NotNull final Request request,
+            @NotNull final byte[] body,
+            final long timestamp) {
+        return submit(node, client -> invoke(client, request, body, timestamp));
+    }
+
+    /**
+     * Reads the value stored by the replica
+     */
+    @NotNull
+    CompletableFuture<Response> get(
+            @NotNull final String node,
+            @NotNull final String uri) {
+        return submit(node, client -> client.get(uri, PROXIED_HEADER));
+    }
+
+    /**
+     * Reads the version stored by the replica without the value
+     */
+    @NotNull
+    CompletableFuture<Response> head(
+            @NotNull final String node,
+            @NotNull final String uri) {
+        return submit(node, client -> client.head(uri, PROXIED_HEADER));
+    }
+
+    /**
+     * Sends an internal {@code PUT} request to the node
+     */
+    @NotNull
+    CompletableFuture<Response> put(
+            @NotNull final String node,
+            @NotNull final String uri,
+            @NotNull final byte[] body) {
+        return submit(node, client -> client.put(uri, body, PROXIED_HEADER));
+    }
+
+    /**
+     * Checks whether the node is up
+     */
+    @NotNull
+    CompletableFuture<Response> status(@NotNull final String node) {
+        return submit(node, client -> client.get(STATUS_PATH));
+    }
+
+    @NotNull
+    private CompletableFuture<Response> submit(
+            @NotNull final String node,
+            @NotNull final Call call) {
+        final HttpClient client = clients.get(node);
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(call.invoke(client));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.completeExceptionally(e);
+                } catch (PoolException | IOException | HttpException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @NotNull
+    private static Response invoke(
+            @NotNull final HttpClient client,
+            @NotNull final Request request,
+            @NotNull final byte[] body,
+            final long timestamp) throws InterruptedException, PoolException, IOException, HttpException {
+        final String uri = request.getURI();
+        final String version = TIMESTAMP + timestamp;
+        switch (request.getMethod()) {
+            case Request.METHOD_PUT:
+                final String contentRange = request.getHeader(CONTENT_RANGE);
+                if (contentRange == null) {
+                    return client.put(uri, body, PROXIED_HEADER, version);
+                }
+                return client.put(uri, body, PROXIED_HEADER, version, CONTENT_RANGE + contentRange);
+            case Request.METHOD_DELETE:
+                return client.delete(uri, PROXIED_HEADER, version);
+            default:
+                throw new IOException("Can't proxy method " + request.getMethod());
+        }
+    }
+
+    /**
+     * @return the timestamp of the version reported by a replica or {@link #NO_TIMESTAMP}
+     */
+    static long timestampOf(@NotNull final Response response) {
+        final String header = response.getHeader(TIMESTAMP);
+        if (header == null) {
+            return NO_TIMESTAMP;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return NO_TIMESTAMP;
+        }
+    }
+
+    /**
+     * @return the length of the value reported by a replica or {@code -1} if it is unknown
+     */
+    static long lengthOf(@NotNull final Response response) {
+        final String header = response.getHeader(CONTENT_LENGTH);
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the deadline of the value reported by a replica or {@link Value#NEVER}
+     */
+    static long expiresOf(@NotNull final Response response) {
+        final String header = response.getHeader(EXPIRES);
+        if (header == null) {
+            return Value.NEVER;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return Value.NEVER;
+        }
+    }
+
+    /**
+     * Completes as soon as {@code ack} of the responses are successful, or fails
+     * as soon as that becomes impossible.
+     *
+     * @return the first {@code ack} successful responses
+     */
+    @NotNull
+    static CompletableFuture<List<Response>> ack(
+            @NotNull final List<CompletableFuture<Response>> responses,
+            final int ack,
+            @NotNull final Predicate<Response> success) {
+        final CompletableFuture<List<Response>> result = new CompletableFuture<>();
+        final List<Response> acks = new ArrayList<>(ack);
+        final AtomicInteger failures = new AtomicInteger();
+        final int tolerated = responses.size() - ack;
+        for (final CompletableFuture<Response> response : responses) {
+            response.whenComplete((r, error) -> {
+                if (error == null && success.test(r)) {
+                    synchronized (acks) {
+                        if (acks.size() < ack && acks.add(r) && acks.size() == ack) {
+                            result.complete(new ArrayList<>(acks));
+                        }
+                    }
+                } else if (failures.incrementAndGet() > tolerated) {
+                    result.completeExceptionally(new IOException("Not enough replicas"));
+                }
+            });
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (final HttpClient client : clients.values()) {
+            client.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call {
+        @NotNull
+        Response invoke(@NotNull HttpClient client) throws InterruptedException, PoolException, IOException, HttpException;
+    }
+}
@@ -0,0 +1,458 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.vana06.dao.Batch;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
+import ru.mail.polis.vana06.dao.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Multi-key requests: {@code PUT /v0/entities} stores a batch of values and
+ * {@code POST /v0/entities} reads the values of a batch of keys, while
+ * {@code GET /v0/entities?start=&end=} scans the range of the keys stored by the node.
+ * <p>
+ * The batch is split by the replica sets of its keys, so that every node gets a
+ * single sub-batch with all the keys it stores, and a replica applies it with a
+ * single log record. The response is sent once every node has answered or timed
+ * out, and the batch succeeds if every key has been acknowledged by {@code ack}
+ * of its replicas. Replicas which miss a sub-batch get hints.
+ * <p>
+ * Layout:
+ * <pre>
+ * PUT  request  := (keyLength:int key valueLength:int value)*  (valueLength is -1 to remove the key)
+ * POST request  := (keyLength:int key)*
+ * POST response := (keyLength:int key valueLength:int value)*  in the order of the request, -1 for absent keys
+ * </pre>
+ * A read buffers the values in the heap, so it is bounded: the versions are fetched from a replica
+ * by batches of up to {@link Versions#MAX_BATCH_BYTES}, and a value too large for a batch isn't read.
+ * The read fails with {@code 413} if the newest version of a key is such a value, which is read by
+ * {@code GET /v0/entity} instead, or if the values add up to more than {@link #MAX_RESPONSE_BYTES}.
+ */
+final class Entities {
+    static final String PATH = "/v0/entities";
+
+    private static final Logger log = Logger.getLogger(Entities.class.getName());
+    private static final int ABSENT = -1;
+
+    /**
+     * Values buffered for a read from a single replica and sent in a single response
+     */
+    private static final int MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    @NotNull
+    private final StreamingKVDao dao;
+    @NotNull
+    private final Placement placement;
+    @NotNull
+    private final String me;
+    @NotNull
+    private final Coordinator coordinator;
+    @NotNull
+    private final HintedHandoff handoff;
+
+    Entities(
+            @NotNull final StreamingKVDao dao,
+            @NotNull final Placement placement,
+            @NotNull final String me,
+            @NotNull final Coordinator coordinator,
+            @NotNull final HintedHandoff handoff) {
+        this.dao = dao;
+        this.placement = placement;
+        this.me = me;
+        this.coordinator = coordinator;
+        this.handoff = handoff;
+    }
+
+    /**
+     * Stores the values of the batch on the replicas of every key
+     */
+    void put(
+            @NotNull final byte[] body,
+            @NotNull final Replicas replicas,
+            @NotNull final HttpSession session) throws IOException {
+        final List<Versions.Version> versions = parseUpdates(body);
+        if (versions == null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final List<byte[]> keys = new ArrayList<>(versions.size());
+        for (final Versions.Version version : versions) {
+            keys.add(version.key);
+        }
+        final List<List<String>> targets = targets(keys, replicas);
+        final Map<String, List<Integer>> byNode = byNode(targets);
+
+        final Map<String, CompletableFuture<Boolean>> results = new HashMap<>();
+        for (final Map.Entry<String, List<Integer>> entry : byNode.entrySet()) {
+            final String node = entry.getKey();
+            if (node.equals(me)) {
+                continue;
+            }
+            final List<byte[]> encoded = new ArrayList<>(entry.getValue().size());
+            for (final int i : entry.getValue()) {
+                final Versions.Version version = versions.get(i);
+                encoded.add(Versions.encode(version.key, version.timestamp, version.value, version.expiresAt));
+            }
+            final List<CompletableFuture<Boolean>> batches = new ArrayList<>();
+            for (final byte[] batch : Versions.batches(encoded)) {
+                batches.add(coordinator.put(node, Versions.PATH, batch).thenApply(r -> r.getStatus() == 201));
+            }
+            final CompletableFuture<Boolean> result = all(batches);
+            result.thenAccept(success -> {
+                if (!success) {
+                    for (final int i : entry.getValue()) {
+                        final Versions.Version version = versions.get(i);
+                        handoff.hint(node, version.key, version.timestamp, version.value, version.expiresAt);
+                    }
+                }
+            });
+            results.put(node, result);
+        }
+
+        // Meanwhile apply the local sub-batch in this thread
+        final List<Integer> local = byNode.get(me);
+        if (local != null) {
+            final Batch batch = new Batch();
+            for (final int i : local) {
+                final Versions.Version version = versions.get(i);
+                if (version.value == null) {
+                    batch.remove(version.key, version.timestamp);
+                } else {
+                    batch.upsert(version.key, version.value, version.timestamp, version.expiresAt);
+                }
+            }
+            boolean success = true;
+            try {
+                dao.apply(batch);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Can't apply a batch", e);
+                success = false;
+            }
+            results.put(me, CompletableFuture.completedFuture(success));
+        }
+
+        CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            for (final List<String> nodes : targets) {
+                int acks = 0;
+                for (final String node : nodes) {
+                    if (results.get(node).join()) {
+                        acks++;
+                    }
+                }
+                if (acks < replicas.ack) {
+                    send(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+                    return;
+                }
+            }
+            send(session, new Response(Response.CREATED, Response.EMPTY));
+        });
+    }
+
+    /**
+     * Reads the newest versions of the keys of the batch acknowledged by the replicas
+     */
+    void get(
+            @NotNull final byte[] body,
+            @NotNull final Replicas replicas,
+            @NotNull final HttpSession session) throws IOException {
+        final List<byte[]> keys = parseKeys(body);
+        if (keys == null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final List<List<String>> targets = targets(keys, replicas);
+        final Map<String, List<Integer>> byNode = byNode(targets);
+
+        final AtomicBoolean tooLarge = new AtomicBoolean();
+        final Map<String, CompletableFuture<Map<ByteBuffer, Versions.Version>>> results = new HashMap<>();
+        for (final Map.Entry<String, List<Integer>> entry : byNode.entrySet()) {
+            final String node = entry.getKey();
+            if (node.equals(me)) {
+                continue;
+            }
+            final List<byte[]> own = new ArrayList<>(entry.getValue().size());
+            for (final int i : entry.getValue()) {
+                own.add(keys.get(i));
+            }
+            final List<CompletableFuture<List<Versions.Version>>> batches = new ArrayList<>();
+            // The chunks of a node share its bound
+            final AtomicInteger size = new AtomicInteger();
+            for (final List<byte[]> chunk : Versions.chunks(own)) {
+                batches.add(fetch(node, chunk, new ArrayList<>(), size, tooLarge));
+            }
+            results.put(node, collect(batches));
+        }
+
+        // Meanwhile read the local versions in this thread
+        final List<Integer> local = byNode.get(me);
+        if (local != null) {
+            final List<byte[]> own = new ArrayList<>(local.size());
+            for (final int i : local) {
+                own.add(keys.get(i));
+            }
+            Map<ByteBuffer, Versions.Version> versions = new HashMap<>();
+            try {
+                int size = 0;
+                List<byte[]> rest = own;
+                while (!rest.isEmpty()) {
+                    final byte[] fetched = Versions.fetch(Versions.frame(rest), dao);
+                    final List<Versions.Version> decoded = fetched == null ? null : Versions.decode(fetched);
+                    if (decoded == null) {
+                        throw new IOException("Malformed batch");
+                    }
+                    size += fetched.length;
+                    if (size > MAX_RESPONSE_BYTES) {
+                        tooLarge.set(true);
+                        break;
+                    }
+                    index(versions, decoded);
+                    rest = Versions.rest(rest, decoded);
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Can't read a batch", e);
+                versions = null;
+            }
+            results.put(me, CompletableFuture.completedFuture(versions));
+        }
+
+        CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            if (tooLarge.get()) {
+                send(session, tooLarge("Values of the batch exceed " + MAX_RESPONSE_BYTES + " bytes"));
+                return;
+            }
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            for (int i = 0; i < keys.size(); i++) {
+                final ByteBuffer key = ByteBuffer.wrap(keys.get(i));
+                int acks = 0;
+                Versions.Version newest = null;
+                for (final String node : targets.get(i)) {
+                    final Map<ByteBuffer, Versions.Version> versions = results.get(node).join();
+                    if (versions == null) {
+                        continue;
+                    }
+                    acks++;
+                    final Versions.Version version = versions.get(key);
+                    if (version != null && (newest == null || version.timestamp > newest.timestamp)) {
+                        newest = version;
+                    }
+                }
+                if (acks < replicas.ack) {
+                    send(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+                    return;
+                }
+                if (newest != null && newest.oversized) {
+                    send(session, tooLarge("Value of a key of the batch is too large, GET it alone"));
+                    return;
+                }
+                final byte[] value = newest == null ? null : newest.value;
+                final ByteBuffer entry = ByteBuffer.allocate(
+                        Integer.BYTES * 2 + key.remaining() + (value == null ? 0 : value.length));
+                entry.putInt(key.remaining());
+                entry.put(key);
+                if (value == null) {
+                    entry.putInt(ABSENT);
+                } else {
+                    entry.putInt(value.length);
+                    entry.put(value);
+                }
+                if (response.size() + entry.capacity() > MAX_RESPONSE_BYTES) {
+                    send(session, tooLarge("Values of the batch exceed " + MAX_RESPONSE_BYTES + " bytes"));
+                    return;
+                }
+                response.write(entry.array(), 0, entry.capacity());
+            }
+            send(session, Response.ok(response.toByteArray()));
+        });
+    }
+
+    @NotNull
+    private static Response tooLarge(@NotNull final String message) {
+        return new Response(Response.REQUEST_ENTITY_TOO_LARGE, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Fetches the versions of the keys from the node by as many bounded batches as it takes
+     *
+     * @param fetched  the versions fetched so far
+     * @param size     the bytes fetched from the node so far, shared by its chunks
+     * @param tooLarge set once the node has sent over {@link #MAX_RESPONSE_BYTES}
+     * @return the versions or {@code null} if any batch fails or the versions are too large
+     */
+    @NotNull
+    private CompletableFuture<List<Versions.Version>> fetch(
+            @NotNull final String node,
+            @NotNull final List<byte[]> keys,
+            @NotNull final List<Versions.Version> fetched,
+            @NotNull final AtomicInteger size,
+            @NotNull final AtomicBoolean tooLarge) {
+        return coordinator.put(node, Versions.FETCH_PATH, Versions.frame(keys)).thenCompose(response -> {
+            final List<Versions.Version> versions =
+                    response.getStatus() == 200 ? Versions.decode(response.getBody()) : null;
+            if (versions == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (size.addAndGet(response.getBody().length) > MAX_RESPONSE_BYTES) {
+                tooLarge.set(true);
+                return CompletableFuture.completedFuture(null);
+            }
+            fetched.addAll(versions);
+            final List<byte[]> rest = Versions.rest(keys, versions);
+            return rest.isEmpty()
+                    ? CompletableFuture.completedFuture(fetched)
+                    : fetch(node, rest, fetched, size, tooLarge);
+        });
+    }
+
+    /**
+     * @return the first {@code from} replicas of every key
+     */
+    @NotNull
+    private List<List<String>> targets(
+            @NotNull final List<byte[]> keys,
+            @NotNull final Replicas replicas) {
+        final List<List<String>> targets = new ArrayList<>(keys.size());
+        for (final byte[] key : keys) {
+            targets.add(Arrays.asList(placement.replicas(key)).subList(0, replicas.from));
+        }
+        return targets;
+    }
+
+    /**
+     * @return the indices of the keys stored by every node
+     */
+    @NotNull
+    private static Map<String, List<Integer>> byNode(@NotNull final List<List<String>> targets) {
+        final Map<String, List<Integer>> byNode = new LinkedHashMap<>();
+        for (int i = 0; i < targets.size(); i++) {
+            for (final String node : targets.get(i)) {
+                byNode.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
+            }
+        }
+        return byNode;
+    }
+
+    /**
+     * @return whether every batch has succeeded, never fails
+     */
+    @NotNull
+    private static CompletableFuture<Boolean> all(@NotNull final List<CompletableFuture<Boolean>> batches) {
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            if (error != null) {
+                return false;
+            }
+            for (final CompletableFuture<Boolean> batch : batches) {
+                if (!batch.join()) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * @return the versions of all the batches by key or {@code null} if any of them fails, never fails
+     */
+    @NotNull
+    private static CompletableFuture<Map<ByteBuffer, Versions.Version>> collect(
+            @NotNull final List<CompletableFuture<List<Versions.Version>>> batches) {
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            if (error != null) {
+                return null;
+            }
+            final Map<ByteBuffer, Versions.Version> versions = new HashMap<>();
+            for (final CompletableFuture<List<Versions.Version>> batch : batches) {
+                final List<Versions.Version> decoded = batch.join();
+                if (decoded == null) {
+                    return null;
+                }
+                index(versions, decoded);
+            }
+            return versions;
+        });
+    }
+
+    private static void index(
+            @NotNull final Map<ByteBuffer, Versions.Version> index,
+            @NotNull final List<Versions.Version> versions) {
+        for (final Versions.Version version : versions) {
+            index.put(ByteBuffer.wrap(version.key), version);
+        }
+    }
+
+    /**
+     * @return the updates stamped with new timestamps or {@code null} if the body is malformed
+     */
+    @Nullable
+    private List<Versions.Version> parseUpdates(@NotNull final byte[] body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final List<Versions.Version> versions = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                final byte[] key = new byte[buffer.getInt()];
+                if (key.length == 0) {
+                    return null;
+                }
+                buffer.get(key);
+                final int length = buffer.getInt();
+                byte[] value = null;
+                if (length != ABSENT) {
+                    value = new byte[length];
+                    buffer.get(value);
+                }
+                versions.add(new Versions.Version(key, dao.timestamp(), value, Value.NEVER));
+            }
+            return versions;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static List<byte[]> parseKeys(@NotNull final byte[] body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final List<byte[]> keys = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                final byte[] key = new byte[buffer.getInt()];
+                if (key.length == 0) {
+                    return null;
+                }
+                buffer.get(key);
+                keys.add(key);
+            }
+            return keys;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    private static void send(
+            @NotNull final HttpSession session,
+            @NotNull final Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Can't send response", e);
+            session.close();
+        }
+    }
+}
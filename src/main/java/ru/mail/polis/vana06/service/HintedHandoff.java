@@ -0,0 +1,327 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Updates which a replica has missed, kept on the disk of the coordinator and
+ * replayed as {@link Versions} batches once the replica answers {@code /v0/status} again.
+ * <p>
+ * Hints for every node are appended to segment files in a directory of their own.
+ * Hints over the per node limit are dropped and left to anti-entropy, and the
+ * replay is rate limited, so that a recovering node is not flooded.
+ * <p>
+ * Record layout:
+ * <pre>
+ * record := length:int crc:int version
+ * </pre>
+ * A record with a wrong checksum marks a torn tail and ends the segment.
+ * <p>
+ * A hint isn't synced before the update returns: the current segment is forced every
+ * {@link #SYNC_INTERVAL_MS} and when it is sealed, so a crash of the coordinator loses
+ * at most the hints of the last interval, which are left to anti-entropy as well.
+ */
+final class HintedHandoff implements Closeable {
+    private static final Logger log = Logger.getLogger(HintedHandoff.class.getName());
+    private static final String SUFFIX = ".hint";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    @NotNull
+    private final Coordinator coordinator;
+    private final long maxBytes;
+    private final long bytesPerSecond;
+    @NotNull
+    private final Map<String, Hints> hints;
+    @NotNull
+    private final ScheduledExecutorService executor;
+
+    HintedHandoff(
+            @NotNull final File root,
+            @NotNull final Collection<String> nodes,
+            @NotNull final Coordinator coordinator,
+            @NotNull final ServiceConfig config) throws IOException {
+        this.coordinator = coordinator;
+        this.maxBytes = config.hintsMaxBytes;
+        this.bytesPerSecond = config.hintsRate;
+        this.hints = new HashMap<>();
+        for (final String node : nodes) {
+            hints.put(node, new Hints(node, new File(root, node.replaceAll("[^A-Za-z0-9.-]", "_"))));
+        }
+        // A replay waits for the replica, so the segments are synced by a thread of their own
+        this.executor = Executors.newScheduledThreadPool(2, r -> {
+            final Thread thread = new Thread(r, "hints");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::replay, config.hintsIntervalMs, config.hintsIntervalMs, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps the version missed by the node
+     *
+     * @param value     the value or {@code null} for a tombstone
+     * @param expiresAt the deadline of the value, see {@link Versions#encode(byte[], long, byte[], long)}
+     */
+    void hint(
+            @NotNull final String node,
+            @NotNull final byte[] key,
+            final long timestamp,
+            @Nullable final byte[] value,
+            final long expiresAt) {
+        final byte[] version = Versions.encode(key, timestamp, value, expiresAt);
+        if (version.length > Versions.MAX_BATCH_BYTES) {
+            log.fine("Version is too large to hint");
+            return;
+        }
+        try {
+            if (!hints.get(node).append(version)) {
+                log.log(Level.FINE, "Too many hints for {0}, dropping one", node);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can't store a hint for " + node, e);
+        }
+    }
+
+    private void replay() {
+        for (final Hints node : hints.values()) {
+            if (node.isEmpty() || !isAvailable(node.node)) {
+                continue;
+            }
+            try {
+                node.replay();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | ExecutionException e) {
+                // The rest is replayed the next time
+                log.log(Level.FINE, "Can't replay hints to " + node.node, e);
+            }
+        }
+    }
+
+    private void sync() {
+        for (final Hints node : hints.values()) {
+            try {
+                node.sync();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Can't sync hints for " + node.node, e);
+            }
+        }
+    }
+
+    private boolean isAvailable(@NotNull final String node) {
+        try {
+            return coordinator.status(node).get().getStatus() == 200;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final Hints node : hints.values()) {
+            try {
+                node.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Can't close hints for " + node.node, e);
+            }
+        }
+    }
+
+    /**
+     * Segments of the hints for a single node
+     */
+    private final class Hints implements Closeable {
+        @NotNull
+        private final String node;
+        @NotNull
+        private final File directory;
+
+        /**
+         * Guarded by {@code this}
+         */
+        private long sizeInBytes;
+        private long nextSegment;
+        @Nullable
+        private FileChannel current;
+        private long currentSize;
+        private boolean dirty;
+
+        Hints(
+                @NotNull final String node,
+                @NotNull final File directory) throws IOException {
+            this.node = node;
+            this.directory = directory;
+            Files.createDirectories(directory.toPath());
+            for (final File segment : segments()) {
+                sizeInBytes += segment.length();
+                nextSegment = Math.max(nextSegment, sequenceOf(segment) + 1);
+            }
+        }
+
+        synchronized boolean isEmpty() {
+            return sizeInBytes == 0;
+        }
+
+        /**
+         * @return whether the hint fits in the limit
+         */
+        synchronized boolean append(@NotNull final byte[] version) throws IOException {
+            final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + version.length);
+            if (sizeInBytes + record.capacity() > maxBytes) {
+                return false;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(version, 0, version.length);
+            record.putInt(version.length);
+            record.putInt((int) crc.getValue());
+            record.put(version);
+            record.flip();
+
+            if (current == null || currentSize >= SEGMENT_SIZE) {
+                seal();
+                current = FileChannel.open(
+                        new File(directory, nextSegment++ + SUFFIX).toPath(),
+                        StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+                currentSize = 0;
+            }
+            while (record.hasRemaining()) {
+                currentSize += current.write(record);
+            }
+            sizeInBytes += record.capacity();
+            dirty = true;
+            return true;
+        }
+
+        /**
+         * Forces the hints appended to the current segment since the last sync
+         */
+        synchronized void sync() throws IOException {
+            if (current != null && dirty) {
+                current.force(false);
+                dirty = false;
+            }
+        }
+
+        /**
+         * Syncs and closes the current segment, so that new hints go to the next one
+         */
+        private synchronized void seal() throws IOException {
+            if (current != null) {
+                sync();
+                current.close();
+                current = null;
+            }
+        }
+
+        /**
+         * Sends the segments from the oldest one and removes the delivered ones
+         */
+        void replay() throws IOException, InterruptedException, ExecutionException {
+            seal();
+            for (final File segment : segments()) {
+                for (final byte[] body : Versions.batches(read(segment))) {
+                    final Response response = coordinator.put(node, Versions.PATH, body).get();
+                    if (response.getStatus() != 201) {
+                        throw new IOException("Unexpected status " + response.getStatus());
+                    }
+                    if (bytesPerSecond > 0) {
+                        TimeUnit.MILLISECONDS.sleep(body.length * 1000L / bytesPerSecond);
+                    }
+                }
+                synchronized (this) {
+                    sizeInBytes -= segment.length();
+                    Files.delete(segment.toPath());
+                }
+            }
+        }
+
+        /**
+         * @return sealed segments from the oldest to the newest one
+         */
+        @NotNull
+        private synchronized List<File> segments() {
+            final List<File> result = new ArrayList<>();
+            final File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (files != null) {
+                for (final File file : files) {
+                    // The current segment is still being written
+                    if (current == null || sequenceOf(file) != nextSegment - 1) {
+                        result.add(file);
+                    }
+                }
+            }
+            result.sort(Comparator.comparingLong(HintedHandoff::sequenceOf));
+            return result;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            seal();
+        }
+    }
+
+    private static long sequenceOf(@NotNull final File segment) {
+        final String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    @NotNull
+    private static List<byte[]> read(@NotNull final File segment) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+        final List<byte[]> versions = new ArrayList<>();
+        final CRC32 crc = new CRC32();
+        while (bytes.remaining() >= HEADER_SIZE) {
+            final int length = bytes.getInt();
+            final int checksum = bytes.getInt();
+            if (length <= 0 || length > bytes.remaining()) {
+                // Torn tail
+                break;
+            }
+            final byte[] version = new byte[length];
+            bytes.get(version);
+            crc.reset();
+            crc.update(version, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            versions.add(version);
+        }
+        return versions;
+    }
+}
@@ -0,0 +1,758 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.http.HttpServer;
+import one.nio.http.HttpServerConfig;
+import one.nio.http.HttpSession;
+import one.nio.http.Path;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import one.nio.server.AcceptorConfig;
+import one.nio.server.SelectorThread;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.KVService;
+import ru.mail.polis.vana06.dao.Entry;
+import ru.mail.polis.vana06.dao.Record;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
+import ru.mail.polis.vana06.dao.Value;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link KVService} on top of the one-nio {@link HttpServer}.
+ * <p>
+ * Selector threads only parse requests and write responses, while the requests
+ * themselves are served by a bounded pool of workers, so a slow disk or a slow
+ * replica never stalls the selectors. Requests which don't fit in the worker
+ * queue are rejected with {@code 503}. Replicas are queried in parallel by the
+ * {@link Coordinator}, and a response is sent from whichever thread completes it.
+ * <p>
+ * The coordinator of an update stamps it with a timestamp which every replica
+ * stores, and replicas report the timestamps of their versions, so a read
+ * returns the newest of the versions acknowledged, tombstones included.
+ * A read probes the versions with {@code HEAD} and transfers only the newest value,
+ * which is streamed if this node has it.
+ * Stale replicas are fixed by the {@link ReadRepair} afterwards, and updates
+ * missed by unavailable replicas are kept by the {@link HintedHandoff}.
+ * Whatever is left diverged is reconciled by the {@link AntiEntropy} in background.
+ * <p>
+ * Batches of keys are served by {@link Entities} with a single sub-batch per replica.
+ * Ranges of the keys stored by a node are streamed in chunks, see {@link RangeQueueItem}.
+ * <p>
+ * Values are sent from pooled buffers straight from the storage, so serving a
+ * key copies its value neither into the heap nor into the response. Keys are
+ * decoded right from the URI, see {@link Parameters}. Large values are uploaded
+ * in parts, see {@link Uploads}.
+ */
+public final class KVServiceImpl extends HttpServer implements KVService {
+    private static final Logger log = Logger.getLogger(KVServiceImpl.class.getName());
+    private static final String ID = "id=";
+    private static final String REPLICAS = "replicas=";
+    private static final String START = "start=";
+    private static final String END = "end=";
+    private static final String TTL = "ttl=";
+    private static final String EXPIRES = "expires=";
+
+    /**
+     * Deadline of a request with a malformed {@code ttl} or {@code expires}
+     */
+    private static final long INVALID_DEADLINE = Long.MIN_VALUE;
+    private static final String HINTS = "hints";
+
+    @NotNull
+    private final StreamingKVDao dao;
+    @NotNull
+    private final Uploads uploads;
+    @NotNull
+    private final ThreadPoolExecutor workers;
+
+    @NotNull
+    private final Placement placement;
+    private final int nodes;
+    @NotNull
+    private final String me;
+    @NotNull
+    private final Coordinator coordinator;
+    @NotNull
+    private final ReadRepair readRepair;
+    @NotNull
+    private final HintedHandoff handoff;
+    @NotNull
+    private final AntiEntropy antiEntropy;
+    @NotNull
+    private final Entities entities;
+
+    public KVServiceImpl(
+            final int port,
+            @NotNull final StreamingKVDao dao,
+            @NotNull final Set<String> topology,
+            @NotNull final ServiceConfig config) throws IOException {
+        super(serverConfig(port, config));
+        this.dao = dao;
+        this.uploads = new Uploads(dao);
+
+        final AtomicInteger threads = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(
+                config.workers,
+                config.workers,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.queueSize),
+                r -> {
+                    final Thread thread = new Thread(r, "worker-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        this.placement = new Placement(topology);
+        this.nodes = topology.size();
+        String self = null;
+        final List<String> others = new ArrayList<>();
+        for (final String node : topology) {
+            if (self == null && new ConnectionString(node).getPort() == port) {
+                self = node;
+            } else {
+                others.add(node);
+            }
+        }
+        if (self == null) {
+            throw new IllegalArgumentException("Topology doesn't contain port " + port);
+        }
+        this.me = self;
+        this.coordinator = new Coordinator(others, config);
+        this.readRepair = new ReadRepair(dao, me, coordinator, config);
+        this.handoff = new HintedHandoff(dao.directory(HINTS), others, coordinator, config);
+        this.antiEntropy = new AntiEntropy(dao, placement, me, Replicas.quorum(nodes).from, others, coordinator, config);
+        this.entities = new Entities(dao, placement, me, coordinator, handoff);
+    }
+
+    @NotNull
+    private static HttpServerConfig serverConfig(
+            final int port,
+            @NotNull final ServiceConfig config) {
+        final AcceptorConfig acceptor = new AcceptorConfig();
+        acceptor.port = port;
+        final HttpServerConfig server = new HttpServerConfig();
+        server.acceptors = new AcceptorConfig[]{acceptor};
+        server.selectors = config.selectors;
+        server.keepAlive = config.keepAliveSeconds;
+        return server;
+    }
+
+    @Override
+    public HttpSession createSession(@NotNull final Socket socket) {
+        return new StreamingSession(socket, this);
+    }
+
+    @Override
+    public void handleRequest(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) throws IOException {
+        try {
+            workers.execute(() -> {
+                try {
+                    super.handleRequest(request, session);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Can't process " + request.getURI(), e);
+                    session.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+        }
+    }
+
+    @Path(Coordinator.STATUS_PATH)
+    public Response status() {
+        return Response.ok(Response.EMPTY);
+    }
+
+    /**
+     * Applies the {@link Versions} pushed by another node
+     */
+    @Path(Versions.PATH)
+    public Response versions(@NotNull final Request request) throws IOException {
+        if (request.getMethod() != Request.METHOD_PUT) {
+            return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+        }
+        if (!Versions.apply(body(request), dao)) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        return new Response(Response.CREATED, Response.EMPTY);
+    }
+
+    @Path(AntiEntropy.TREE_PATH)
+    public Response tree(@NotNull final Request request) {
+        if (request.getMethod() != Request.METHOD_PUT) {
+            return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+        }
+        return antiEntropy.tree(body(request));
+    }
+
+    @Path(AntiEntropy.LEAVES_PATH)
+    public Response leaves(@NotNull final Request request) throws IOException {
+        if (request.getMethod() != Request.METHOD_PUT) {
+            return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+        }
+        return antiEntropy.leaves(body(request));
+    }
+
+    @Path(Versions.FETCH_PATH)
+    public Response fetch(@NotNull final Request request) throws IOException {
+        if (request.getMethod() != Request.METHOD_PUT) {
+            return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+        }
+        final byte[] versions = Versions.fetch(body(request), dao);
+        if (versions == null) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        return Response.ok(versions);
+    }
+
+    @Path(Entities.PATH)
+    public void entities(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) throws IOException {
+        if (request.getMethod() == Request.METHOD_GET) {
+            range(request, session);
+            return;
+        }
+        final Replicas replicas = Replicas.parse(request.getParameter(REPLICAS), nodes);
+        if (replicas == null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        try {
+            switch (request.getMethod()) {
+                case Request.METHOD_PUT:
+                    entities.put(body(request), replicas, session);
+                    break;
+                case Request.METHOD_POST:
+                    entities.get(body(request), replicas, session);
+                    break;
+                default:
+                    session.sendResponse(new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can't process " + request.getURI(), e);
+            session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+        }
+    }
+
+    /**
+     * Streams the keys of this node from {@code start} inclusive to {@code end} exclusive or to the last one
+     */
+    private void range(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) throws IOException {
+        final byte[] start = Parameters.bytes(request.getURI(), START);
+        if (start == null || start.length == 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final byte[] end = Parameters.bytes(request.getURI(), END);
+        if (end == null && request.getParameter(END) != null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final Iterator<Entry> entries = dao.range(start, end == null || end.length == 0 ? null : end);
+        session.sendResponse(StreamingResponse.chunked(entries));
+    }
+
+    @Path("/v0/entity")
+    public void entity(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) throws IOException {
+        final byte[] key = Parameters.bytes(request.getURI(), ID);
+        if (key == null || key.length == 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        try {
+            if (request.getHeader(Coordinator.PROXIED) != null) {
+                session.sendResponse(local(request, key, timestamp(request)));
+                return;
+            }
+
+            final Replicas replicas = Replicas.parse(request.getParameter(REPLICAS), nodes);
+            if (replicas == null) {
+                session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+                return;
+            }
+            final String[] preference = placement.replicas(key);
+            final long timestamp = dao.timestamp();
+            if (request.getMethod() == Request.METHOD_PUT && expiresAt(request, timestamp) == INVALID_DEADLINE) {
+                session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+                return;
+            }
+            if (replicas.from == 1 && preference[0].equals(me)) {
+                session.sendResponse(local(request, key, timestamp));
+            } else if (request.getMethod() == Request.METHOD_GET) {
+                read(request, session, key, Arrays.asList(preference).subList(0, replicas.from), replicas);
+            } else {
+                replicate(request, session, key, preference, replicas, timestamp);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can't process " + request.getURI(), e);
+            session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+        }
+    }
+
+    /**
+     * @return the timestamp assigned by the coordinator or a new one
+     */
+    private long timestamp(@NotNull final Request request) {
+        final String timestamp = request.getHeader(Coordinator.TIMESTAMP);
+        if (timestamp != null) {
+            try {
+                return Long.parseLong(timestamp.trim());
+            } catch (NumberFormatException e) {
+                log.log(Level.FINE, "Malformed timestamp " + timestamp, e);
+            }
+        }
+        return dao.timestamp();
+    }
+
+    /**
+     * An update may expire either in {@code ttl} seconds since its version was issued
+     * or at the {@code expires} milliseconds since the epoch. Replicas receive the
+     * parameters along with the version, so they all derive the same deadline.
+     *
+     * @return the deadline, {@link Value#NEVER} or {@link #INVALID_DEADLINE}
+     */
+    private static long expiresAt(
+            @NotNull final Request request,
+            final long timestamp) {
+        final String ttl = request.getParameter(TTL);
+        final String expires = request.getParameter(EXPIRES);
+        if (ttl != null && expires != null) {
+            return INVALID_DEADLINE;
+        }
+        try {
+            if (ttl != null) {
+                final long seconds = Long.parseLong(ttl);
+                if (seconds <= 0 || seconds > Long.MAX_VALUE / 1000) {
+                    return INVALID_DEADLINE;
+                }
+                return Value.expiresAfter(timestamp, seconds * 1000);
+            }
+            if (expires != null) {
+                final long deadline = Long.parseLong(expires);
+                return deadline <= 0 || deadline == Value.NEVER ? INVALID_DEADLINE : deadline;
+            }
+        } catch (NumberFormatException e) {
+            return INVALID_DEADLINE;
+        }
+        return Value.NEVER;
+    }
+
+    /**
+     * Serves the request on this node
+     *
+     * @param timestamp version of the update
+     */
+    @NotNull
+    private Response local(
+            @NotNull final Request request,
+            @NotNull final byte[] key,
+            final long timestamp) throws IOException {
+        switch (request.getMethod()) {
+            case Request.METHOD_GET:
+                return get(key);
+            case Request.METHOD_HEAD:
+                return head(key);
+            case Request.METHOD_PUT:
+                return put(key, request, timestamp);
+            case Request.METHOD_DELETE:
+                dao.remove(key, timestamp);
+                return new Response(Response.ACCEPTED, Response.EMPTY);
+            default:
+                return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+        }
+    }
+
+    /**
+     * The response carries the timestamp of the version, if any, for the coordinator to pick the newest one
+     */
+    @NotNull
+    private Response get(@NotNull final byte[] key) throws IOException {
+        final Record record = dao.getWithMeta(key);
+        if (record == null) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+        final Response response;
+        if (record.isTombstone()) {
+            response = new Response(Response.NOT_FOUND, Response.EMPTY);
+        } else {
+            // The session closes the reader once the body is sent
+            response = StreamingResponse.of(record.getValue());
+        }
+        return versioned(response, record);
+    }
+
+    /**
+     * The version of the key without the value, whose length is reported in {@code Content-Length}
+     */
+    @NotNull
+    private Response head(@NotNull final byte[] key) throws IOException {
+        try (Record record = dao.getWithMeta(key)) {
+            if (record == null) {
+                return new Response(Response.NOT_FOUND, Response.EMPTY);
+            }
+            if (record.isTombstone()) {
+                return versioned(new Response(Response.NOT_FOUND, Response.EMPTY), record);
+            }
+            final Response response = new Response(Response.OK);
+            response.addHeader(Coordinator.CONTENT_LENGTH + record.getValue().length());
+            return versioned(response, record);
+        }
+    }
+
+    @NotNull
+    private static Response versioned(
+            @NotNull final Response response,
+            @NotNull final Record record) {
+        response.addHeader(Coordinator.TIMESTAMP + record.getTimestamp());
+        if (!record.isTombstone() && record.getExpiresAt() != Value.NEVER) {
+            response.addHeader(Coordinator.EXPIRES + record.getExpiresAt());
+        }
+        return response;
+    }
+
+    @NotNull
+    private Response put(
+            @NotNull final byte[] key,
+            @NotNull final Request request,
+            final long timestamp) throws IOException {
+        final long expiresAt = expiresAt(request, timestamp);
+        if (expiresAt == INVALID_DEADLINE) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        final byte[] body = body(request);
+        final String contentRange = request.getHeader(Coordinator.CONTENT_RANGE);
+        if (contentRange == null) {
+            dao.upsert(key, body, timestamp, expiresAt);
+            return new Response(Response.CREATED, Response.EMPTY);
+        }
+        // The deadline of the last part applies to the whole value
+        switch (uploads.append(new String(key, StandardCharsets.UTF_8), key, contentRange, body, timestamp, expiresAt)) {
+            case COMPLETE:
+                return new Response(Response.CREATED, Response.EMPTY);
+            case PARTIAL:
+                return new Response(Response.ACCEPTED, Response.EMPTY);
+            default:
+                return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+    }
+
+    @NotNull
+    private static byte[] body(@NotNull final Request request) {
+        final byte[] body = request.getBody();
+        return body == null ? Response.EMPTY : body;
+    }
+
+    /**
+     * Probes the versions of the replicas in parallel and reads the value of the newest
+     * of {@code ack} of them, so that a single copy of the value is transferred.
+     * A single replica is read right away.
+     */
+    private void read(
+            @NotNull final Request request,
+            @NotNull final HttpSession session,
+            @NotNull final byte[] key,
+            @NotNull final List<String> targets,
+            @NotNull final Replicas replicas) {
+        if (targets.size() == 1) {
+            readFrom(request, session, targets.get(0));
+            return;
+        }
+        final List<CompletableFuture<Response>> probes = new ArrayList<>(targets.size());
+        CompletableFuture<Response> local = null;
+        for (final String node : targets) {
+            if (node.equals(me)) {
+                local = new CompletableFuture<>();
+                probes.add(local);
+            } else {
+                probes.add(coordinator.head(node, request.getURI()));
+            }
+        }
+
+        Coordinator.ack(probes, replicas.ack, KVServiceImpl::isRead)
+                .whenComplete((acks, error) -> {
+                    if (error != null) {
+                        send(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+                        return;
+                    }
+                    final String newest = newest(targets, probes);
+                    if (newest == null) {
+                        send(session, new Response(Response.NOT_FOUND, Response.EMPTY));
+                    } else if (newest.equals(me)) {
+                        try {
+                            send(session, get(key));
+                        } catch (IOException e) {
+                            log.log(Level.WARNING, "Can't read " + request.getURI(), e);
+                            send(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                        }
+                    } else {
+                        readFrom(request, session, newest);
+                    }
+                });
+        readRepair.check(key, targets, probes);
+
+        // Meanwhile probe the local replica in this thread
+        if (local != null) {
+            try {
+                local.complete(head(key));
+            } catch (IOException e) {
+                local.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * @return the replica of the newest value answered, this node winning a tie,
+     *         or {@code null} if the newest version is a tombstone or there is none
+     */
+    @Nullable
+    private String newest(
+            @NotNull final List<String> targets,
+            @NotNull final List<CompletableFuture<Response>> probes) {
+        String newest = null;
+        Response newestResponse = null;
+        long newestTimestamp = Coordinator.NO_TIMESTAMP;
+        for (int i = 0; i < probes.size(); i++) {
+            final CompletableFuture<Response> probe = probes.get(i);
+            if (!probe.isDone() || probe.isCompletedExceptionally()) {
+                continue;
+            }
+            final Response response = probe.join();
+            final long timestamp = Coordinator.timestampOf(response);
+            if (timestamp > newestTimestamp || timestamp == newestTimestamp && targets.get(i).equals(me)) {
+                newest = targets.get(i);
+                newestResponse = response;
+                newestTimestamp = timestamp;
+            }
+        }
+        return newestResponse == null || newestResponse.getStatus() != 200 ? null : newest;
+    }
+
+    /**
+     * Reads the value from the replica, whose body the client receives as a whole
+     */
+    private void readFrom(
+            @NotNull final Request request,
+            @NotNull final HttpSession session,
+            @NotNull final String node) {
+        coordinator.get(node, request.getURI()).whenComplete((response, error) -> {
+            if (error != null || !isRead(response)) {
+                send(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+            } else if (response.getStatus() != 200) {
+                send(session, new Response(Response.NOT_FOUND, Response.EMPTY));
+            } else {
+                final Response value = Response.ok(response.getBody());
+                final long expiresAt = Coordinator.expiresOf(response);
+                if (expiresAt != Value.NEVER) {
+                    value.addHeader(Coordinator.EXPIRES + expiresAt);
+                }
+                send(session, value);
+            }
+        });
+    }
+
+    private static void send(
+            @NotNull final HttpSession session,
+            @NotNull final Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Can't send response", e);
+            session.close();
+        }
+    }
+
+    /**
+     * Sends the update to the replicas in parallel and answers once {@code ack} of them succeed
+     */
+    private void replicate(
+            @NotNull final Request request,
+            @NotNull final HttpSession session,
+            @NotNull final byte[] key,
+            @NotNull final String[] preference,
+            @NotNull final Replicas replicas,
+            final long timestamp) {
+        final byte[] body = body(request);
+        final List<String> targets = Arrays.asList(preference).subList(0, replicas.from);
+        final List<CompletableFuture<Response>> responses = new ArrayList<>(replicas.from);
+        CompletableFuture<Response> local = null;
+        for (final String node : targets) {
+            if (node.equals(me)) {
+                local = new CompletableFuture<>();
+                responses.add(local);
+            } else {
+                responses.add(coordinator.send(node, request, body, timestamp));
+            }
+        }
+
+        Coordinator.ack(responses, replicas.ack, KVServiceImpl::isUpdate)
+                .whenComplete((acks, error) -> send(
+                        session,
+                        error == null ? mergeUpdate(acks) : new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY)));
+
+        if (request.getHeader(Coordinator.CONTENT_RANGE) == null) {
+            if (request.getMethod() == Request.METHOD_PUT) {
+                hintFailed(targets, responses, key, timestamp, body, expiresAt(request, timestamp));
+            } else {
+                hintFailed(targets, responses, key, timestamp, null, Value.NEVER);
+            }
+        }
+
+        // Meanwhile serve the local replica in this thread
+        if (local != null) {
+            try {
+                local.complete(local(request, key, timestamp));
+            } catch (IOException e) {
+                local.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Keeps the update for the replicas which fail to apply it.
+     * <p>
+     * Parts of uploads are not hinted, since only the complete value is a version.
+     *
+     * @param value the value or {@code null} for a tombstone
+     */
+    private void hintFailed(
+            @NotNull final List<String> targets,
+            @NotNull final List<CompletableFuture<Response>> responses,
+            @NotNull final byte[] key,
+            final long timestamp,
+            @Nullable final byte[] value,
+            final long expiresAt) {
+        for (int i = 0; i < targets.size(); i++) {
+            final String node = targets.get(i);
+            if (node.equals(me)) {
+                continue;
+            }
+            responses.get(i).whenComplete((response, error) -> {
+                if (error != null || response.getStatus() >= 500) {
+                    handoff.hint(node, key, timestamp, value, expiresAt);
+                }
+            });
+        }
+    }
+
+    private static boolean isRead(@NotNull final Response response) {
+        final int status = response.getStatus();
+        return status == 200 || status == 404;
+    }
+
+    /**
+     * Parts of uploads are answered with {@code 202} until the upload completes
+     */
+    private static boolean isUpdate(@NotNull final Response response) {
+        final int status = response.getStatus();
+        return status == 201 || status == 202;
+    }
+
+    @NotNull
+    private static Response mergeUpdate(@NotNull final List<Response> acks) {
+        for (final Response response : acks) {
+            if (response.getStatus() == 201) {
+                return new Response(Response.CREATED, Response.EMPTY);
+            }
+        }
+        return new Response(Response.ACCEPTED, Response.EMPTY);
+    }
+
+    @Override
+    public void handleDefault(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) throws IOException {
+        session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+    }
+
+    /**
+     * A selector thread blocks in {@code epoll_wait} without a timeout and sees that its
+     * selector is closed only once an event arrives, so a selector without traffic would
+     * never let the server stop. Every selector is kept awake by a readable loopback socket
+     * which is never read until the selectors are stopped.
+     * <p>
+     * one-nio 1.0.2 offers no way around it: {@code SelectorThread.shutdown()} closes the
+     * selector and joins the thread, but the native selector only closes the epoll descriptor,
+     * which doesn't wake the waiting thread up, and the {@code JavaSelector} which would is
+     * used only when the native library can't be loaded, with no option to choose it.
+     */
+    @Override
+    public synchronized void stop() {
+        final List<Socket> wakeups = new ArrayList<>();
+        try {
+            wakeUpSelectors(wakeups);
+            super.stop();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't wake up the selectors", e);
+        } finally {
+            for (final Socket socket : wakeups) {
+                socket.close();
+            }
+        }
+
+        workers.shutdownNow();
+        readRepair.close();
+        handoff.close();
+        antiEntropy.close();
+        coordinator.close();
+        uploads.close();
+    }
+
+    private void wakeUpSelectors(@NotNull final List<Socket> sockets) throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (Socket listener = Socket.createServerSocket()) {
+            listener.bind(loopback, 0, selectors.length);
+            listener.listen(selectors.length);
+            final int wakeupPort = listener.getLocalAddress().getPort();
+            for (final SelectorThread selector : selectors) {
+                final Socket client = Socket.connectInet(loopback, wakeupPort);
+                sockets.add(client);
+                final Socket wakeup = listener.accept();
+                sockets.add(wakeup);
+                client.write(new byte[1], 0, 1, 0);
+                selector.selector.register(new WakeupSession(wakeup));
+            }
+        }
+    }
+
+    /**
+     * Leaves its byte unread, so that the selector polls it again and again
+     */
+    private static final class WakeupSession extends Session {
+        WakeupSession(@NotNull final Socket socket) {
+            super(socket);
+        }
+
+        @Override
+        public void process(final byte[] buffer) {
+            // Nothing to do
+        }
+    }
+}
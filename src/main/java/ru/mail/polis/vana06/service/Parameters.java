@@ -0,0 +1,163 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decodes query parameters right from the request URI into bytes.
+ * <p>
+ * Unlike {@link one.nio.http.Request#getParameter(String)} followed by
+ * {@link String#getBytes(java.nio.charset.Charset)}, no intermediate strings are
+ * created: the decoded size is counted first, and the only allocation is the result.
+ * Escaped bytes are taken as is, other characters are encoded in UTF-8.
+ */
+final class Parameters {
+    private static final char UNPAIRED_SURROGATE = '?';
+
+    private Parameters() {
+        // Not instantiable
+    }
+
+    /**
+     * @param name the name of the parameter followed by {@code =}
+     * @return the decoded value of the first occurrence of the parameter,
+     * or {@code null} if it is absent or malformed
+     */
+    @Nullable
+    static byte[] bytes(
+            @NotNull final String uri,
+            @NotNull final String name) {
+        final int start = find(uri, name);
+        if (start < 0) {
+            return null;
+        }
+        int end = uri.indexOf('&', start);
+        if (end < 0) {
+            end = uri.length();
+        }
+        final int size = size(uri, start, end);
+        if (size < 0) {
+            return null;
+        }
+        final byte[] result = new byte[size];
+        decode(uri, start, end, result);
+        return result;
+    }
+
+    /**
+     * @return the index of the value of the parameter or {@code -1}
+     */
+    private static int find(
+            @NotNull final String uri,
+            @NotNull final String name) {
+        int separator = uri.indexOf('?');
+        while (separator >= 0) {
+            final int start = separator + 1;
+            if (uri.startsWith(name, start)) {
+                return start + name.length();
+            }
+            separator = uri.indexOf('&', start);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of bytes the value decodes to or {@code -1} if it is malformed
+     */
+    private static int size(
+            @NotNull final String uri,
+            final int start,
+            final int end) {
+        int size = 0;
+        int i = start;
+        while (i < end) {
+            final char c = uri.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= end || hex(uri.charAt(i + 1)) < 0 || hex(uri.charAt(i + 2)) < 0) {
+                    return -1;
+                }
+                size++;
+                i += 3;
+            } else if (c < 0x80) {
+                size++;
+                i++;
+            } else if (c < 0x800) {
+                size += 2;
+                i++;
+            } else if (isSurrogatePair(uri, i, end)) {
+                size += 4;
+                i += 2;
+            } else if (Character.isSurrogate(c)) {
+                size++;
+                i++;
+            } else {
+                size += 3;
+                i++;
+            }
+        }
+        return size;
+    }
+
+    private static void decode(
+            @NotNull final String uri,
+            final int start,
+            final int end,
+            @NotNull final byte[] result) {
+        int size = 0;
+        int i = start;
+        while (i < end) {
+            final char c = uri.charAt(i);
+            if (c == '%') {
+                result[size++] = (byte) (hex(uri.charAt(i + 1)) << 4 | hex(uri.charAt(i + 2)));
+                i += 3;
+            } else if (c == '+') {
+                result[size++] = ' ';
+                i++;
+            } else if (c < 0x80) {
+                result[size++] = (byte) c;
+                i++;
+            } else if (c < 0x800) {
+                result[size++] = (byte) (0xc0 | c >> 6);
+                result[size++] = (byte) (0x80 | c & 0x3f);
+                i++;
+            } else if (isSurrogatePair(uri, i, end)) {
+                final int codePoint = Character.toCodePoint(c, uri.charAt(i + 1));
+                result[size++] = (byte) (0xf0 | codePoint >> 18);
+                result[size++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                result[size++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                result[size++] = (byte) (0x80 | codePoint & 0x3f);
+                i += 2;
+            } else if (Character.isSurrogate(c)) {
+                result[size++] = UNPAIRED_SURROGATE;
+                i++;
+            } else {
+                result[size++] = (byte) (0xe0 | c >> 12);
+                result[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+                result[size++] = (byte) (0x80 | c & 0x3f);
+                i++;
+            }
+        }
+    }
+
+    private static boolean isSurrogatePair(
+            @NotNull final String uri,
+            final int i,
+            final int end) {
+        return Character.isHighSurrogate(uri.charAt(i))
+                && i + 1 < end
+                && Character.isLowSurrogate(uri.charAt(i + 1));
+    }
+
+    private static int hex(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
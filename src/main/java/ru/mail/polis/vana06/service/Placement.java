@@ -0,0 +1,156 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vana06.dao.MerkleTree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Consistent hashing of keys to the nodes of the cluster.
+ * <p>
+ * Every node owns {@link #VIRTUAL_NODES} points of a 64-bit hash ring. Keys are
+ * placed by their {@link MerkleTree} leaf: the replicas of a leaf are the distinct
+ * nodes met walking clockwise from the {@link MerkleTree#token(int) token} of the
+ * leaf. So a smaller number of replicas is always a prefix of a larger one, adding
+ * or removing a node moves only about {@code 1/N} of the leaves, and two replicas
+ * share whole leaves, whose trees they may compare.
+ * <p>
+ * The walks of every leaf are precomputed, so a lookup is a hash and doesn't allocate.
+ */
+final class Placement {
+    static final int VIRTUAL_NODES = 128;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * All the nodes in the order of the clockwise walk from the token of the leaf with the same index
+     */
+    @NotNull
+    private final String[][] walks = new String[MerkleTree.LEAVES][];
+
+    Placement(@NotNull final Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Empty topology");
+        }
+
+        final List<Point> ring = new ArrayList<>(nodes.size() * VIRTUAL_NODES);
+        for (final String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.add(new Point(hash((node + '#' + i).getBytes(StandardCharsets.UTF_8)), node));
+            }
+        }
+        // Ties are broken by the node, so that every node builds the same ring
+        ring.sort((a, b) -> {
+            final int cmp = Long.compare(a.hash, b.hash);
+            return cmp != 0 ? cmp : a.node.compareTo(b.node);
+        });
+
+        final int size = ring.size();
+        final long[] points = new long[size];
+        final String[][] pointWalks = new String[size][];
+        for (int i = 0; i < size; i++) {
+            points[i] = ring.get(i).hash;
+        }
+        // The walk from a point is its owner followed by the walk from the next point.
+        // Going around the ring backwards twice, every walk of the second lap has met all the nodes.
+        String[] next = new String[0];
+        for (int i = 2 * size - 1; i >= 0; i--) {
+            final String node = ring.get(i % size).node;
+            if (next.length == 0 || !next[0].equals(node)) {
+                next = prepend(node, next);
+            }
+            if (i < size) {
+                pointWalks[i] = next;
+            }
+        }
+        for (int leaf = 0; leaf < MerkleTree.LEAVES; leaf++) {
+            int index = Arrays.binarySearch(points, MerkleTree.token(leaf));
+            if (index < 0) {
+                index = -index - 1;
+                if (index == size) {
+                    index = 0;
+                }
+            }
+            walks[leaf] = pointWalks[index];
+        }
+    }
+
+    @NotNull
+    private static String[] prepend(
+            @NotNull final String node,
+            @NotNull final String[] walk) {
+        final boolean present = Arrays.asList(walk).contains(node);
+        final String[] result = new String[present ? walk.length : walk.length + 1];
+        result[0] = node;
+        int size = 1;
+        for (final String n : walk) {
+            if (!n.equals(node)) {
+                result[size++] = n;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all the nodes in the order of preference for the key, the first
+     * {@code from} of them are the replicas; the array must not be modified
+     */
+    @NotNull
+    String[] replicas(@NotNull final byte[] key) {
+        return walks[MerkleTree.leafOf(ByteBuffer.wrap(key))];
+    }
+
+    /**
+     * @return the leaves both nodes are among the first {@code from} replicas of
+     */
+    @NotNull
+    BitSet shared(
+            @NotNull final String node,
+            @NotNull final String other,
+            final int from) {
+        final BitSet result = new BitSet(MerkleTree.LEAVES);
+        for (int leaf = 0; leaf < MerkleTree.LEAVES; leaf++) {
+            final List<String> replicas = Arrays.asList(walks[leaf]).subList(0, Math.min(from, walks[leaf].length));
+            if (replicas.contains(node) && replicas.contains(other)) {
+                result.set(leaf);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * FNV-1a with the MurmurHash3 finalizer, as the plain FNV hashes of similar names are too close
+     */
+    private static long hash(@NotNull final byte[] key) {
+        long hash = FNV_OFFSET;
+        for (final byte b : key) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Point {
+        final long hash;
+        @NotNull
+        final String node;
+
+        Point(
+                final long hash,
+                @NotNull final String node) {
+            this.hash = hash;
+            this.node = node;
+        }
+    }
+}
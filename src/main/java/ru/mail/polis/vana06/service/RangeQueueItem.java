@@ -0,0 +1,137 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.vana06.dao.Entry;
+import ru.mail.polis.vana06.dao.ValueReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Chunked response body which pulls the entries of a range from the storage
+ * as the socket accepts them, so only a single pooled buffer is held whatever the range.
+ * <p>
+ * Every entry is a chunk of its own:
+ * <pre>
+ * chunk := size:hex CRLF key LF value CRLF
+ * </pre>
+ * followed by the terminating empty chunk.
+ */
+final class RangeQueueItem extends BodyQueueItem {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte LF = '\n';
+
+    @NotNull
+    private final Iterator<Entry> entries;
+
+    /**
+     * The entry whose header doesn't fit in the buffer yet
+     */
+    @Nullable
+    private Entry pending;
+
+    /**
+     * The value being copied to the buffer
+     */
+    @Nullable
+    private ValueReader value;
+    private long read;
+    private boolean last;
+
+    RangeQueueItem(
+            @NotNull final BufferPool pool,
+            @NotNull final Iterator<Entry> entries) {
+        super(pool);
+        this.entries = entries;
+    }
+
+    @Override
+    boolean hasMore() {
+        return !last;
+    }
+
+    @Override
+    void fill(@NotNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (value != null) {
+                if (read < value.length()) {
+                    final int count = value.read(buffer, read);
+                    if (count == 0) {
+                        throw new IOException("Value is shorter than " + value.length() + " bytes");
+                    }
+                    read += count;
+                    continue;
+                }
+                if (buffer.remaining() < CRLF.length) {
+                    break;
+                }
+                buffer.put(CRLF);
+                close();
+                continue;
+            }
+            if (last) {
+                break;
+            }
+            if (pending == null) {
+                if (!entries.hasNext()) {
+                    if (buffer.remaining() < LAST_CHUNK.length) {
+                        break;
+                    }
+                    buffer.put(LAST_CHUNK);
+                    last = true;
+                    break;
+                }
+                pending = entries.next();
+            }
+            if (!header(buffer, pending)) {
+                break;
+            }
+            pending = null;
+        }
+    }
+
+    /**
+     * Opens the value of the entry and puts the chunk header and the key
+     *
+     * @return whether they fit in the buffer
+     */
+    private boolean header(
+            @NotNull final ByteBuffer buffer,
+            @NotNull final Entry entry) throws IOException {
+        final ByteBuffer key = entry.getKey();
+        // Hex size of up to 16 digits, CRLF and LF
+        final int headerSize = key.remaining() + 16 + CRLF.length + 1;
+        if (headerSize > buffer.capacity()) {
+            throw new IOException("Key of " + key.remaining() + " bytes is too long");
+        }
+        if (buffer.remaining() < headerSize) {
+            return false;
+        }
+        final ValueReader reader = entry.open();
+        if (reader == null) {
+            // Removed meanwhile
+            return true;
+        }
+        final long size = key.remaining() + 1 + reader.length();
+        buffer.put(Long.toHexString(size).getBytes(StandardCharsets.US_ASCII));
+        buffer.put(CRLF);
+        buffer.put(key);
+        buffer.put(LF);
+        value = reader;
+        read = 0;
+        return true;
+    }
+
+    @Override
+    void close() throws IOException {
+        if (value != null) {
+            final ValueReader reader = value;
+            value = null;
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
+import ru.mail.polis.vana06.dao.Value;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the newest version of a key to the replicas which have answered a read
+ * with an older one.
+ * <p>
+ * Replicas are compared once all of them have answered, long after the client
+ * has got the response. Reads answer versions without values, so the newest value
+ * is fetched from its replica, see {@link Versions#fetch(byte[], StreamingKVDao)}. Repairs are accumulated per node and sent in background
+ * as {@link Versions} batches.
+ */
+final class ReadRepair implements Closeable {
+    private static final Logger log = Logger.getLogger(ReadRepair.class.getName());
+
+    /**
+     * Repairs are dropped above this, anti-entropy catches up with them later
+     */
+    private static final long MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+    @NotNull
+    private final StreamingKVDao dao;
+    @NotNull
+    private final String me;
+    @NotNull
+    private final Coordinator coordinator;
+    private final ConcurrentMap<String, Batch> pending = new ConcurrentHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final ScheduledExecutorService sender;
+
+    ReadRepair(
+            @NotNull final StreamingKVDao dao,
+            @NotNull final String me,
+            @NotNull final Coordinator coordinator,
+            @NotNull final ServiceConfig config) {
+        this.dao = dao;
+        this.me = me;
+        this.coordinator = coordinator;
+        this.sender = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "read-repair");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sender.scheduleWithFixedDelay(this::send, config.repairIntervalMs, config.repairIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compares the versions of the key once all the replicas have answered
+     *
+     * @param nodes     the replicas in the order of the responses
+     * @param responses responses to a read
+     */
+    void check(
+            @NotNull final byte[] key,
+            @NotNull final List<String> nodes,
+            @NotNull final List<CompletableFuture<Response>> responses) {
+        final CompletableFuture<?>[] all = new CompletableFuture<?>[responses.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = responses.get(i).handle((response, error) -> null);
+        }
+        CompletableFuture.allOf(all).thenRun(() -> repair(key, nodes, responses));
+    }
+
+    private void repair(
+            @NotNull final byte[] key,
+            @NotNull final List<String> nodes,
+            @NotNull final List<CompletableFuture<Response>> responses) {
+        int newest = -1;
+        long newestTimestamp = Coordinator.NO_TIMESTAMP;
+        for (int i = 0; i < responses.size(); i++) {
+            final Response response = responses.get(i).getNow(null);
+            if (response != null) {
+                final long timestamp = Coordinator.timestampOf(response);
+                if (timestamp > newestTimestamp) {
+                    newest = i;
+                    newestTimestamp = timestamp;
+                }
+            }
+        }
+        if (newest < 0) {
+            return;
+        }
+
+        final List<String> stale = new ArrayList<>();
+        for (int i = 0; i < responses.size(); i++) {
+            // Unavailable replicas are left to the hints and anti-entropy
+            final Response response = responses.get(i).getNow(null);
+            if (response != null
+                    && (response.getStatus() == 200 || response.getStatus() == 404)
+                    && Coordinator.timestampOf(response) < newestTimestamp) {
+                stale.add(nodes.get(i));
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        final Response response = responses.get(newest).getNow(null);
+        if (response.getStatus() != 200) {
+            schedule(stale, Versions.encode(key, newestTimestamp, null, Value.NEVER));
+            return;
+        }
+        // The responses carry no values, so the newest one is fetched unless it is too large to repair
+        final long length = Coordinator.lengthOf(response);
+        if (length < 0 || length > Versions.MAX_BATCH_BYTES) {
+            log.fine("Version is too large to repair");
+            return;
+        }
+        final String source = nodes.get(newest);
+        final byte[] keys = Versions.frame(Collections.singletonList(key));
+        if (source.equals(me)) {
+            sender.execute(() -> {
+                try {
+                    final byte[] version = Versions.fetch(keys, dao);
+                    if (version != null && version.length > 0) {
+                        schedule(stale, version);
+                    }
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Can't read local version", e);
+                }
+            });
+        } else {
+            coordinator.put(source, Versions.FETCH_PATH, keys).whenComplete((fetched, error) -> {
+                if (error != null || fetched.getStatus() != 200) {
+                    log.log(Level.FINE, "Can't fetch from " + source, error);
+                } else if (fetched.getBody().length > 0) {
+                    schedule(stale, fetched.getBody());
+                }
+            });
+        }
+    }
+
+    /**
+     * @param version the encoded version, see {@link Versions#encode(byte[], long, byte[], long)}
+     */
+    private void schedule(
+            @NotNull final List<String> nodes,
+            @NotNull final byte[] version) {
+        if (version.length > Versions.MAX_BATCH_BYTES) {
+            log.fine("Version is too large to repair");
+            return;
+        }
+        for (final String node : nodes) {
+            if (pendingBytes.addAndGet(version.length) > MAX_PENDING_BYTES) {
+                pendingBytes.addAndGet(-version.length);
+                log.fine("Too many pending repairs, dropping one");
+                return;
+            }
+            final Batch batch = pending.compute(node, (n, current) -> {
+                final Batch result = current == null ? new Batch() : current;
+                result.add(version);
+                return result;
+            });
+            if (batch.size() >= Versions.MAX_BATCH_BYTES) {
+                sender.execute(this::send);
+            }
+        }
+    }
+
+    private void send() {
+        for (final String node : pending.keySet()) {
+            final Batch batch = pending.remove(node);
+            if (batch == null) {
+                continue;
+            }
+            pendingBytes.addAndGet(-batch.size());
+            for (final byte[] body : Versions.batches(batch.versions)) {
+                send(node, body);
+            }
+        }
+    }
+
+    private void send(
+            @NotNull final String node,
+            @NotNull final byte[] body) {
+        if (node.equals(me)) {
+            try {
+                Versions.apply(body, dao);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Can't repair local versions", e);
+            }
+        } else {
+            coordinator.put(node, Versions.PATH, body).whenComplete((response, error) -> {
+                if (error != null || response.getStatus() != 201) {
+                    log.log(Level.FINE, "Can't repair " + node, error);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        sender.shutdownNow();
+    }
+
+    /**
+     * Versions to be sent to a node
+     */
+    private static final class Batch {
+        private final List<byte[]> versions = new ArrayList<>();
+        private int size;
+
+        void add(@NotNull final byte[] version) {
+            versions.add(version);
+            size += version.length;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The {@code replicas=<ack>/<from>} request parameter: a request succeeds once
+ * {@code ack} of the {@code from} replicas of the key have answered
+ */
+final class Replicas {
+    final int ack;
+    final int from;
+
+    private Replicas(
+            final int ack,
+            final int from) {
+        this.ack = ack;
+        this.from = from;
+    }
+
+    /**
+     * A quorum of all the nodes by default
+     */
+    @NotNull
+    static Replicas quorum(final int nodes) {
+        return new Replicas(nodes / 2 + 1, nodes);
+    }
+
+    /**
+     * @return the parsed parameter or {@code null} if it is malformed or unsatisfiable
+     */
+    @Nullable
+    static Replicas parse(
+            @Nullable final String parameter,
+            final int nodes) {
+        if (parameter == null) {
+            return quorum(nodes);
+        }
+        final int slash = parameter.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        try {
+            final int ack = Integer.parseInt(parameter.substring(0, slash));
+            final int from = Integer.parseInt(parameter.substring(slash + 1));
+            if (ack < 1 || from < ack || from > nodes) {
+                return null;
+            }
+            return new Replicas(ack, from);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
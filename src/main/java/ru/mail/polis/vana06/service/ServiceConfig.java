@@ -0,0 +1,114 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tunables of {@link KVServiceImpl} which may be overridden with {@code -Dkv.*} system properties
+ */
+public final class ServiceConfig {
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 120;
+    private static final int DEFAULT_REPLICA_TIMEOUT_MS = 500;
+    private static final int DEFAULT_REPAIR_INTERVAL_MS = 10;
+    private static final long DEFAULT_HINTS_MAX_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_HINTS_RATE = 1024 * 1024;
+    private static final int DEFAULT_HINTS_INTERVAL_MS = 1000;
+    private static final int DEFAULT_ANTI_ENTROPY_INTERVAL_MS = 30_000;
+
+    /**
+     * Threads polling the sockets, they never touch the storage
+     */
+    final int selectors;
+
+    /**
+     * Threads serving requests which may block on the storage or on other nodes
+     */
+    final int workers;
+
+    /**
+     * Requests waiting for a worker, the ones which don't fit are answered with {@code 503}
+     */
+    final int queueSize;
+
+    /**
+     * Idle keep-alive connections are closed after this timeout
+     */
+    final int keepAliveSeconds;
+
+    /**
+     * How long to wait for a replica
+     */
+    final int replicaTimeoutMs;
+
+    /**
+     * Threads waiting for the replicas, a request to every replica occupies one
+     */
+    final int replicationThreads;
+
+    /**
+     * How often the read repairs accumulated for every node are sent in a batch
+     */
+    final int repairIntervalMs;
+
+    /**
+     * Disk space for the hints of a single node, the ones which don't fit are dropped
+     */
+    final long hintsMaxBytes;
+
+    /**
+     * Hints replay limit in bytes per second, non positive means unlimited
+     */
+    final long hintsRate;
+
+    /**
+     * How often the nodes with hints are checked for availability
+     */
+    final int hintsIntervalMs;
+
+    /**
+     * How often the node reconciles with one of the peers, non positive disables anti-entropy
+     */
+    final int antiEntropyIntervalMs;
+
+    private ServiceConfig(
+            final int selectors,
+            final int workers,
+            final int queueSize,
+            final int keepAliveSeconds,
+            final int replicaTimeoutMs,
+            final int replicationThreads,
+            final int repairIntervalMs,
+            final long hintsMaxBytes,
+            final long hintsRate,
+            final int hintsIntervalMs,
+            final int antiEntropyIntervalMs) {
+        this.selectors = selectors;
+        this.workers = workers;
+        this.queueSize = queueSize;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.replicaTimeoutMs = replicaTimeoutMs;
+        this.replicationThreads = replicationThreads;
+        this.repairIntervalMs = repairIntervalMs;
+        this.hintsMaxBytes = hintsMaxBytes;
+        this.hintsRate = hintsRate;
+        this.hintsIntervalMs = hintsIntervalMs;
+        this.antiEntropyIntervalMs = antiEntropyIntervalMs;
+    }
+
+    @NotNull
+    public static ServiceConfig fromSystemProperties() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        return new ServiceConfig(
+                Integer.getInteger("kv.http.selectors", processors),
+                Integer.getInteger("kv.http.workers", processors * 2),
+                Integer.getInteger("kv.http.queue", DEFAULT_QUEUE_SIZE),
+                Integer.getInteger("kv.http.keepalive", DEFAULT_KEEP_ALIVE_SECONDS),
+                Integer.getInteger("kv.cluster.timeout", DEFAULT_REPLICA_TIMEOUT_MS),
+                Integer.getInteger("kv.cluster.threads", processors * 4),
+                Integer.getInteger("kv.repair.interval", DEFAULT_REPAIR_INTERVAL_MS),
+                Long.getLong("kv.hints.max", DEFAULT_HINTS_MAX_BYTES),
+                Long.getLong("kv.hints.rate", DEFAULT_HINTS_RATE),
+                Integer.getInteger("kv.hints.interval", DEFAULT_HINTS_INTERVAL_MS),
+                Integer.getInteger("kv.antientropy.interval", DEFAULT_ANTI_ENTROPY_INTERVAL_MS));
+    }
+}
@@ -0,0 +1,53 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vana06.dao.Entry;
+import ru.mail.polis.vana06.dao.ValueReader;
+
+import java.util.Iterator;
+
+/**
+ * Response whose body is streamed from the storage by the {@link StreamingSession}
+ */
+final class StreamingResponse extends Response {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Enough for the responses in flight on a loaded node, retaining at most 2 MB
+     */
+    private static final int POOLED_CHUNKS = 32;
+    private static final BufferPool chunks = new BufferPool(CHUNK_SIZE, POOLED_CHUNKS);
+
+    @NotNull
+    private final BodyQueueItem body;
+
+    private StreamingResponse(
+            @NotNull final String header,
+            @NotNull final BodyQueueItem body) {
+        super(Response.OK);
+        addHeader(header);
+        this.body = body;
+    }
+
+    /**
+     * @return the response with the value as the body
+     */
+    @NotNull
+    static StreamingResponse of(@NotNull final ValueReader value) {
+        return new StreamingResponse("Content-Length: " + value.length(), new ValueQueueItem(chunks, value));
+    }
+
+    /**
+     * @return the response with the entries as the chunks of the body, see {@link RangeQueueItem}
+     */
+    @NotNull
+    static StreamingResponse chunked(@NotNull final Iterator<Entry> entries) {
+        return new StreamingResponse("Transfer-Encoding: chunked", new RangeQueueItem(chunks, entries));
+    }
+
+    @NotNull
+    BodyQueueItem body() {
+        return body;
+    }
+}
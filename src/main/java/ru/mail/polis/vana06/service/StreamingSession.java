@@ -0,0 +1,48 @@
+package ru.mail.polis.vana06.service;
+
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * {@link HttpSession} which writes the body of a {@link StreamingResponse} right
+ * after its headers, before any response to a pipelined request. The headers
+ * share the first chunk of the body, see {@link BodyQueueItem#head(byte[])}.
+ */
+final class StreamingSession extends HttpSession {
+    StreamingSession(
+            @NotNull final Socket socket,
+            @NotNull final HttpServer server) {
+        super(socket, server);
+    }
+
+    @Override
+    protected void writeResponse(
+            @NotNull final Response response,
+            final boolean includeBody) throws IOException {
+        if (!(response instanceof StreamingResponse)) {
+            super.writeResponse(response, includeBody);
+            return;
+        }
+        final BodyQueueItem body = ((StreamingResponse) response).body();
+        if (!includeBody) {
+            super.writeResponse(response, false);
+            body.release();
+            return;
+        }
+        final byte[] header = response.toBytes(false);
+        try {
+            if (!body.head(header)) {
+                write(header, 0, header.length);
+            }
+        } catch (IOException e) {
+            body.release();
+            throw e;
+        }
+        write(body);
+    }
+}
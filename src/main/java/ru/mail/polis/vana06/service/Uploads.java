@@ -0,0 +1,168 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
+import ru.mail.polis.vana06.dao.ValueWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Values uploaded in parts by a sequence of {@code PUT} requests with
+ * {@code Content-Range: bytes <first>-<last>/<total>} headers.
+ * <p>
+ * Every part is appended to the storage right away, so neither a request nor
+ * the whole value has to fit in memory. Parts must arrive in order, the value
+ * becomes visible once the last one is received. An upload starting from
+ * the first byte again discards the previous unfinished one.
+ */
+final class Uploads implements Closeable {
+    private static final Logger log = Logger.getLogger(Uploads.class.getName());
+    private static final String UNIT = "bytes ";
+
+    /**
+     * Outcome of a part
+     */
+    enum Result {
+        /**
+         * The part is stored, more parts are expected
+         */
+        PARTIAL,
+        /**
+         * The value is complete and stored
+         */
+        COMPLETE,
+        /**
+         * The range is malformed or doesn't continue the upload
+         */
+        INVALID
+    }
+
+    @NotNull
+    private final StreamingKVDao dao;
+    private final ConcurrentMap<String, Upload> pending = new ConcurrentHashMap<>();
+
+    Uploads(@NotNull final StreamingKVDao dao) {
+        this.dao = dao;
+    }
+
+    @NotNull
+    Result append(
+            @NotNull final String id,
+            @NotNull final byte[] key,
+            @NotNull final String contentRange,
+            @NotNull final byte[] part,
+            final long timestamp,
+            final long expiresAt) throws IOException {
+        final Range range = Range.parse(contentRange);
+        if (range == null || range.last - range.first + 1 != part.length) {
+            return Result.INVALID;
+        }
+
+        final Upload upload;
+        if (range.first == 0) {
+            upload = new Upload(dao.create(), range.total);
+            abort(pending.put(id, upload));
+        } else {
+            upload = pending.get(id);
+            if (upload == null) {
+                return Result.INVALID;
+            }
+        }
+
+        synchronized (upload) {
+            if (upload.total != range.total || upload.writer.length() != range.first) {
+                return Result.INVALID;
+            }
+            upload.writer.write(ByteBuffer.wrap(part));
+            if (upload.writer.length() < upload.total) {
+                return Result.PARTIAL;
+            }
+            try {
+                upload.writer.commit(key, timestamp, expiresAt);
+            } finally {
+                pending.remove(id, upload);
+                upload.writer.close();
+            }
+            return Result.COMPLETE;
+        }
+    }
+
+    private static void abort(@Nullable final Upload upload) {
+        if (upload == null) {
+            return;
+        }
+        synchronized (upload) {
+            try {
+                upload.writer.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Can't discard upload", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (final Upload upload : pending.values()) {
+            abort(upload);
+        }
+        pending.clear();
+    }
+
+    private static final class Upload {
+        @NotNull
+        final ValueWriter writer;
+        final long total;
+
+        Upload(
+                @NotNull final ValueWriter writer,
+                final long total) {
+            this.writer = writer;
+            this.total = total;
+        }
+    }
+
+    private static final class Range {
+        final long first;
+        final long last;
+        final long total;
+
+        private Range(
+                final long first,
+                final long last,
+                final long total) {
+            this.first = first;
+            this.last = last;
+            this.total = total;
+        }
+
+        @Nullable
+        static Range parse(@NotNull final String header) {
+            if (!header.startsWith(UNIT)) {
+                return null;
+            }
+            final int dash = header.indexOf('-', UNIT.length());
+            final int slash = header.indexOf('/', dash + 1);
+            if (dash < 0 || slash < 0) {
+                return null;
+            }
+            try {
+                final long first = Long.parseLong(header.substring(UNIT.length(), dash).trim());
+                final long last = Long.parseLong(header.substring(dash + 1, slash).trim());
+                final long total = Long.parseLong(header.substring(slash + 1).trim());
+                if (first < 0 || last < first || total <= last) {
+                    return null;
+                }
+                return new Range(first, last, total);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vana06.dao.ValueReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Response body which is read from the storage chunk by chunk as the socket accepts it
+ */
+final class ValueQueueItem extends BodyQueueItem {
+    @NotNull
+    private final ValueReader reader;
+    private final long length;
+    private long read;
+
+    ValueQueueItem(
+            @NotNull final BufferPool pool,
+            @NotNull final ValueReader reader) {
+        super(pool);
+        this.reader = reader;
+        this.length = reader.length();
+    }
+
+    @Override
+    boolean hasMore() {
+        return read < length;
+    }
+
+    @Override
+    void fill(@NotNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && read < length) {
+            final int count = reader.read(buffer, read);
+            if (count == 0) {
+                throw new IOException("Value is shorter than " + length + " bytes");
+            }
+            read += count;
+        }
+    }
+
+    @Override
+    void close() throws IOException {
+        reader.close();
+    }
+}
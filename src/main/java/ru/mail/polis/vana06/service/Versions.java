@@ -0,0 +1,349 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.vana06.dao.Batch;
+import ru.mail.polis.vana06.dao.Record;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
+import ru.mail.polis.vana06.dao.Value;
+import ru.mail.polis.vana06.dao.ValueReaders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Batches of versions pushed between the nodes by {@link ReadRepair}, {@link HintedHandoff}
+ * and {@link Entities}, and pulled by {@link AntiEntropy} and {@link Entities}.
+ * <p>
+ * A replica applies a batch with a single log record as ordinary versioned
+ * updates, so a late or repeated batch never overwrites a newer version.
+ * <p>
+ * Batch layout:
+ * <pre>
+ * batch   := version*
+ * version  := keyLength:int key timestamp:long deadline? valueLength:int value  (valueLength is -1 for tombstones)
+ * deadline := -2:int expiresAt:long
+ * </pre>
+ * A fetched version which doesn't fit a batch on its own comes with the valueLength of -3 and no value,
+ * since the value isn't read into the heap. Such a version is skipped when a batch is applied, it is
+ * read by the streaming single-key path.
+ */
+final class Versions {
+    static final String PATH = "/v0/versions";
+
+    /**
+     * Reads the versions of the keys in the body, see {@link #fetch(byte[], StreamingKVDao)}
+     */
+    static final String FETCH_PATH = "/v0/fetch";
+
+    /**
+     * one-nio rejects request bodies over 64 KB, larger versions are left to anti-entropy
+     */
+    static final int MAX_BATCH_BYTES = 60 * 1024;
+
+    private static final int TOMBSTONE_LENGTH = -1;
+    private static final int EXPIRING = -2;
+    private static final int OVERSIZED = -3;
+
+    private Versions() {
+        // Not instantiable
+    }
+
+    /**
+     * @param value     the value or {@code null} for a tombstone
+     * @param expiresAt the time in milliseconds since the epoch the value expires at or {@link Value#NEVER}
+     */
+    @NotNull
+    static byte[] encode(
+            @NotNull final byte[] key,
+            final long timestamp,
+            @Nullable final byte[] value,
+            final long expiresAt) {
+        return encode(key, timestamp, value, value == null ? TOMBSTONE_LENGTH : value.length, expiresAt);
+    }
+
+    @NotNull
+    private static byte[] encode(
+            @NotNull final byte[] key,
+            final long timestamp,
+            @Nullable final byte[] value,
+            final int length,
+            final long expiresAt) {
+        final boolean expiring = length >= 0 && expiresAt != Value.NEVER;
+        final ByteBuffer version = ByteBuffer.allocate(
+                (int) size(key.length, value == null ? 0 : value.length, expiring));
+        version.putInt(key.length);
+        version.put(key);
+        version.putLong(timestamp);
+        if (expiring) {
+            version.putInt(EXPIRING);
+            version.putLong(expiresAt);
+        }
+        version.putInt(length);
+        if (value != null) {
+            version.put(value);
+        }
+        return version.array();
+    }
+
+    /**
+     * @return the size of an encoded version
+     */
+    private static long size(
+            final int keyLength,
+            final long valueLength,
+            final boolean expiring) {
+        return Integer.BYTES * 2 + Long.BYTES + keyLength + valueLength + (expiring ? Integer.BYTES + Long.BYTES : 0);
+    }
+
+    /**
+     * @return request bodies of up to {@link #MAX_BATCH_BYTES} each
+     */
+    @NotNull
+    static List<byte[]> batches(@NotNull final List<byte[]> versions) {
+        final List<byte[]> bodies = new ArrayList<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(MAX_BATCH_BYTES);
+        for (final byte[] version : versions) {
+            if (body.size() + version.length > MAX_BATCH_BYTES && body.size() > 0) {
+                bodies.add(body.toByteArray());
+                body.reset();
+            }
+            body.write(version, 0, version.length);
+        }
+        if (body.size() > 0) {
+            bodies.add(body.toByteArray());
+        }
+        return bodies;
+    }
+
+    /**
+     * @return the versions of the batch or {@code null} if it is malformed
+     */
+    @Nullable
+    static List<Version> decode(@NotNull final byte[] batch) {
+        final ByteBuffer buffer = ByteBuffer.wrap(batch);
+        final List<Version> versions = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                final byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                final long timestamp = buffer.getLong();
+                int length = buffer.getInt();
+                long expiresAt = Value.NEVER;
+                if (length == EXPIRING) {
+                    expiresAt = buffer.getLong();
+                    length = buffer.getInt();
+                }
+                if (length == OVERSIZED) {
+                    versions.add(Version.oversized(key, timestamp));
+                    continue;
+                }
+                byte[] value = null;
+                if (length != TOMBSTONE_LENGTH) {
+                    value = new byte[length];
+                    buffer.get(value);
+                }
+                versions.add(new Version(key, timestamp, value, expiresAt));
+            }
+            return versions;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the versions of a batch at once unless newer versions are stored already
+     *
+     * @return whether the batch is well formed
+     */
+    static boolean apply(
+            @NotNull final byte[] batch,
+            @NotNull final StreamingKVDao dao) throws IOException {
+        final List<Version> versions = decode(batch);
+        if (versions == null) {
+            return false;
+        }
+        apply(versions, dao);
+        return true;
+    }
+
+    /**
+     * Stores the versions at once unless newer versions are stored already, oversized ones are skipped
+     */
+    static void apply(
+            @NotNull final List<Version> versions,
+            @NotNull final StreamingKVDao dao) throws IOException {
+        final Batch updates = new Batch();
+        for (final Version version : versions) {
+            if (version.oversized) {
+                continue;
+            }
+            if (version.value == null) {
+                updates.remove(version.key, version.timestamp);
+            } else {
+                updates.upsert(version.key, version.value, version.timestamp, version.expiresAt);
+            }
+        }
+        if (!updates.isEmpty()) {
+            dao.apply(updates);
+        }
+    }
+
+    /**
+     * Reads the stored versions of a prefix of the keys into a batch of up to {@link #MAX_BATCH_BYTES}, unknown
+     * keys are skipped. A version is never read whole unless it fits, and the first one that fits is always
+     * answered, so an empty batch means the keys are exhausted, see {@link #rest(List, List)}.
+     *
+     * @param keys {@code (keyLength:int key)*}
+     * @return the batch or {@code null} if the keys are malformed
+     */
+    @Nullable
+    static byte[] fetch(
+            @NotNull final byte[] keys,
+            @NotNull final StreamingKVDao dao) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(keys);
+        final ByteArrayOutputStream versions = new ByteArrayOutputStream();
+        try {
+            while (buffer.hasRemaining()) {
+                final byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                try (Record record = dao.getWithMeta(key)) {
+                    if (record == null) {
+                        continue;
+                    }
+                    final byte[] version;
+                    if (record.isTombstone()) {
+                        version = encode(key, record.getTimestamp(), null, Value.NEVER);
+                    } else {
+                        final long size = size(key.length, record.getValue().length(), true);
+                        if (size > MAX_BATCH_BYTES) {
+                            version = encode(key, record.getTimestamp(), null, OVERSIZED, Value.NEVER);
+                        } else if (versions.size() > 0 && versions.size() + size > MAX_BATCH_BYTES) {
+                            // The rest is fetched by the next request
+                            break;
+                        } else {
+                            final byte[] value = ValueReaders.toArray(record.getValue());
+                            version = encode(key, record.getTimestamp(), value, record.getExpiresAt());
+                        }
+                    }
+                    versions.write(version, 0, version.length);
+                }
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return null;
+        }
+        return versions.toByteArray();
+    }
+
+    /**
+     * @param requested the keys of a fetch
+     * @param fetched   the versions it has answered
+     * @return the keys to fetch next, none once the fetch has answered for all of them
+     */
+    @NotNull
+    static List<byte[]> rest(
+            @NotNull final List<byte[]> requested,
+            @NotNull final List<Version> fetched) {
+        if (fetched.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // Versions follow the order of the keys
+        int next = 0;
+        for (final Version version : fetched) {
+            while (next < requested.size() && !Arrays.equals(requested.get(next), version.key)) {
+                next++;
+            }
+            next++;
+        }
+        return next < requested.size() ? requested.subList(next, requested.size()) : Collections.emptyList();
+    }
+
+    /**
+     * @return the keys split into groups which fit a request body each
+     */
+    @NotNull
+    static List<List<byte[]>> chunks(@NotNull final List<byte[]> keys) {
+        final List<List<byte[]>> chunks = new ArrayList<>();
+        int start = 0;
+        int size = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            final int framed = Integer.BYTES + keys.get(i).length;
+            if (size + framed > MAX_BATCH_BYTES && size > 0) {
+                chunks.add(keys.subList(start, i));
+                start = i;
+                size = 0;
+            }
+            size += framed;
+        }
+        if (start < keys.size()) {
+            chunks.add(keys.subList(start, keys.size()));
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the keys framed as {@code (keyLength:int key)*}
+     */
+    @NotNull
+    static byte[] frame(@NotNull final List<byte[]> keys) {
+        int size = 0;
+        for (final byte[] key : keys) {
+            size += Integer.BYTES + key.length;
+        }
+        final ByteBuffer framed = ByteBuffer.allocate(size);
+        for (final byte[] key : keys) {
+            framed.putInt(key.length).put(key);
+        }
+        return framed.array();
+    }
+
+    static final class Version {
+        @NotNull
+        final byte[] key;
+        final long timestamp;
+        /**
+         * {@code null} for a tombstone
+         */
+        @Nullable
+        final byte[] value;
+        final long expiresAt;
+        /**
+         * Whether the value is left out for its size
+         */
+        final boolean oversized;
+
+        Version(
+                @NotNull final byte[] key,
+                final long timestamp,
+                @Nullable final byte[] value,
+                final long expiresAt) {
+            this(key, timestamp, value, expiresAt, false);
+        }
+
+        private Version(
+                @NotNull final byte[] key,
+                final long timestamp,
+                @Nullable final byte[] value,
+                final long expiresAt,
+                final boolean oversized) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.oversized = oversized;
+        }
+
+        @NotNull
+        static Version oversized(
+                @NotNull final byte[] key,
+                final long timestamp) {
+            return new Version(key, timestamp, null, Value.NEVER, true);
+        }
+    }
+}
@@ -110,4 +110,24 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws Exception {
         return client(node).put(path(key, ack, from), data);
     }
+
+    Response upsert(
+            final int node,
+            @NotNull final String key,
+            @NotNull final byte[] data,
+            final int ack,
+            final int from,
+            final long ttlSeconds) throws Exception {
+        return client(node).put(path(key, ack, from) + "&ttl=" + ttlSeconds, data);
+    }
+
+    /**
+     * Streams the keys stored by the node from {@code start} inclusive to {@code end} exclusive
+     */
+    Response range(
+            final int node,
+            @NotNull final String start,
+            @NotNull final String end) throws Exception {
+        return client(node).get("/v0/entities?start=" + start + "&end=" + end);
+    }
 }
@@ -18,18 +18,30 @@ package ru.mail.polis;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
+import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Test;
+import ru.mail.polis.vana06.dao.Entry;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
+import ru.mail.polis.vana06.dao.ValueReader;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Functional unit tests for {@link KVDao} implementations
@@ -148,4 +160,78 @@ class KVDaoTest extends TestBase {
         dao.remove(key);
         assertThrows(NoSuchElementException.class, () -> dao.get(key));
     }
+
+    @Test
+    void range() throws IOException {
+        final File data = Files.createTempDirectory();
+        try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data)) {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(key(i), key(i));
+            }
+            dao.remove(key(5));
+
+            final Iterator<Entry> entries = dao.range(key(2), key(8));
+            for (final int i : new int[]{2, 3, 4, 6, 7}) {
+                final Entry entry = entries.next();
+                assertEquals(ByteBuffer.wrap(key(i)), entry.getKey());
+                try (ValueReader value = entry.open()) {
+                    final ByteBuffer buffer = ByteBuffer.allocate((int) value.length());
+                    value.read(buffer, 0);
+                    assertArrayEquals(key(i), buffer.array());
+                }
+            }
+            assertFalse(entries.hasNext());
+
+            int count = 0;
+            for (final Iterator<Entry> all = dao.range(new byte[0], null); all.hasNext(); all.next()) {
+                count++;
+            }
+            assertEquals(9, count);
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void concurrentUpserts() throws Exception {
+        final File data = Files.createTempDirectory();
+        try (KVDao dao = KVDaoFactory.create(data)) {
+            // Enough to fill several memtables while the writers race
+            final int threads = 4;
+            final int keys = 4_000;
+            final byte[] value = new byte[4 * 1024];
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                final List<Future<?>> writers = new ArrayList<>(threads);
+                for (int t = 0; t < threads; t++) {
+                    final int thread = t;
+                    writers.add(executor.submit(() -> {
+                        for (int i = thread; i < keys; i += threads) {
+                            dao.upsert(key(i), value);
+                            // Every writer also overwrites a key shared with the others
+                            dao.upsert(key(keys), key(i));
+                        }
+                        return null;
+                    }));
+                }
+                for (final Future<?> writer : writers) {
+                    writer.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            for (int i = 0; i < keys; i++) {
+                assertArrayEquals(value, dao.get(key(i)));
+            }
+            assertTrue(new String(dao.get(key(keys)), StandardCharsets.UTF_8).startsWith("key"));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @NotNull
+    private static byte[] key(final int index) {
+        return ("key" + index).getBytes(StandardCharsets.UTF_8);
+    }
 }
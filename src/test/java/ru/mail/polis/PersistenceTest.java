@@ -18,12 +18,29 @@ package ru.mail.polis;
 
 
 import org.junit.jupiter.api.Test;
+import ru.mail.polis.vana06.dao.Batch;
+import ru.mail.polis.vana06.dao.DaoConfig;
+import ru.mail.polis.vana06.dao.Entry;
+import ru.mail.polis.vana06.dao.MerkleTree;
+import ru.mail.polis.vana06.dao.StreamingKVDao;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import static java.nio.file.Files.copy;
+import static java.nio.file.Files.delete;
+import static java.nio.file.Files.list;
+import static java.nio.file.Files.walk;
+import static java.nio.file.Files.write;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -35,6 +52,29 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
  * @author Vadim Tsesko <incubos@yandex.com>
  */
 class PersistenceTest extends TestBase {
+    private static final String SHARDS = "kv.shards";
+    private static final String ENGINE = "kv.engine";
+    private static final String SEGMENT_SIZE = "kv.hash.segment.size";
+    private static final String MEMTABLE_SIZE = "kv.memtable.size";
+
+    /**
+     * @param properties names and values of the {@code kv.*} tunables
+     */
+    private static DaoConfig config(final String... properties) {
+        final Properties result = new Properties();
+        for (int i = 0; i < properties.length; i += 2) {
+            result.setProperty(properties[i], properties[i + 1]);
+        }
+        return DaoConfig.fromProperties(result);
+    }
+
+    /**
+     * Stops the threads of the abandoned storage, so that they don't touch the files reopened
+     */
+    private static void crash(final KVDao dao) throws IOException {
+        ((StreamingKVDao) dao).crash();
+    }
+
     @Test()
     void fs() throws IOException {
         // Reference key
@@ -75,4 +115,401 @@ class PersistenceTest extends TestBase {
             Files.recursiveDelete(data);
         }
     }
+
+    @Test
+    void crash() throws IOException {
+        // Reference value
+        final byte[] key = randomKey();
+        final byte[] value = randomValue();
+        final File data = Files.createTempDirectory();
+
+        // Fill and abandon storage without closing like kill -9 does
+        final KVDao crashed = KVDaoFactory.create(data);
+        crashed.upsert(key, value);
+        crashed.remove(randomKey());
+        crash(crashed);
+
+        // Recreate dao
+        try (KVDao dao = KVDaoFactory.create(data)) {
+            assertArrayEquals(value, dao.get(key));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void largeValue() throws IOException {
+        // Reference value much larger than the request body limit
+        final byte[] key = randomKey();
+        final byte[] value = new byte[4 * 1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(value);
+        final File data = Files.createTempDirectory();
+        try (KVDao dao = KVDaoFactory.create(data)) {
+            dao.upsert(key, value);
+            assertArrayEquals(value, dao.get(key));
+        }
+
+        // Recreate dao, then replace the value
+        final byte[] small = randomValue();
+        try (KVDao dao = KVDaoFactory.create(data)) {
+            assertArrayEquals(value, dao.get(key));
+            dao.upsert(key, small);
+        }
+        try (KVDao dao = KVDaoFactory.create(data)) {
+            assertArrayEquals(small, dao.get(key));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void newestVersionWins() throws IOException {
+        final byte[] key = randomKey();
+        final byte[] newer = randomValue();
+        final byte[] older = randomValue();
+        final File data = Files.createTempDirectory();
+        try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data)) {
+            final long timestamp = dao.timestamp();
+            dao.upsert(key, newer, timestamp);
+            dao.upsert(key, older, timestamp - 1);
+            assertArrayEquals(newer, dao.get(key));
+        }
+
+        // Recreate dao, so that the stale updates meet the newer version in a table
+        try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data)) {
+            final long timestamp = dao.getWithMeta(key).getTimestamp();
+            dao.remove(key, timestamp - 1);
+            assertArrayEquals(newer, dao.get(key));
+            dao.remove(key, dao.timestamp());
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertTrue(dao.getWithMeta(key).isTombstone());
+        }
+        try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data)) {
+            assertTrue(dao.getWithMeta(key).isTombstone());
+            assertTrue(dao.timestamp() > dao.getWithMeta(key).getTimestamp());
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void tieOrderIndependent() throws IOException {
+        for (final String engine : new String[]{"lsm", "hash"}) {
+            final byte[] key = randomKey();
+            final byte[] first = randomValue();
+            final byte[] second = randomValue();
+            second[0] = (byte) ~first[0];
+            final byte[] winner = (first[0] & 0xFF) > (second[0] & 0xFF) ? first : second;
+            final File data = Files.createTempDirectory();
+            try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data, config(ENGINE, engine))) {
+                final long timestamp = dao.timestamp();
+                // Replicas may get the versions of a tie in either order
+                dao.upsert(key, first, timestamp);
+                dao.upsert(key, second, timestamp);
+                assertArrayEquals(winner, dao.get(key));
+                dao.upsert(key, first, timestamp);
+                assertArrayEquals(winner, dao.get(key));
+            }
+            try (KVDao dao = KVDaoFactory.create(data, config(ENGINE, engine))) {
+                assertArrayEquals(winner, dao.get(key));
+            } finally {
+                Files.recursiveDelete(data);
+            }
+        }
+    }
+
+    @Test
+    void batchAfterCrash() throws IOException {
+        final byte[] first = randomKey();
+        final byte[] second = randomKey();
+        final byte[] removed = randomKey();
+        final byte[] value = randomValue();
+        final byte[] overwritten = randomValue();
+        final File data = Files.createTempDirectory();
+
+        // Abandon the storage after a batch without closing it
+        final StreamingKVDao crashed = (StreamingKVDao) KVDaoFactory.create(data);
+        crashed.upsert(removed, randomValue());
+        crashed.apply(new Batch()
+                .upsert(first, overwritten)
+                .upsert(second, value)
+                .remove(removed)
+                .upsert(first, value));
+        crashed.crash();
+
+        try (KVDao dao = KVDaoFactory.create(data)) {
+            assertArrayEquals(value, dao.get(first));
+            assertArrayEquals(value, dao.get(second));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void batchExceedingMemTable() throws IOException {
+        final File data = Files.createTempDirectory();
+        final byte[] key = randomKey();
+        final byte[] value = randomValue();
+        try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(
+                data, config(MEMTABLE_SIZE, Integer.toString(64 * 1024)))) {
+            final Batch batch = new Batch();
+            for (int i = 0; i < 64; i++) {
+                batch.upsert(randomKey(), new byte[4 * 1024]);
+            }
+            assertThrows(IOException.class, () -> dao.apply(batch));
+
+            // The storage stays writable
+            dao.upsert(key, value);
+            assertArrayEquals(value, dao.get(key));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void expiredAfterReopen() throws IOException {
+        final byte[] expired = randomKey();
+        final byte[] live = randomKey();
+        final byte[] value = randomValue();
+        final File data = Files.createTempDirectory();
+        final long now = System.currentTimeMillis();
+
+        try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data)) {
+            dao.upsert(expired, value, dao.timestamp(), now - 1);
+            dao.upsert(live, value, dao.timestamp(), now + TimeUnit.HOURS.toMillis(1));
+            assertThrows(NoSuchElementException.class, () -> dao.get(expired));
+            assertArrayEquals(value, dao.get(live));
+        }
+
+        try (KVDao dao = KVDaoFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(expired));
+            assertArrayEquals(value, dao.get(live));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void manifest() throws IOException {
+        final File data = Files.createTempDirectory();
+        // Many small tables, which are compacted meanwhile
+        final DaoConfig config = config(MEMTABLE_SIZE, Integer.toString(64 * 1024));
+        try {
+            final byte[][] keys = new byte[512][];
+            final byte[][] values = new byte[keys.length][];
+            try (KVDao dao = KVDaoFactory.create(data, config)) {
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = randomKey();
+                    values[i] = randomValue();
+                    dao.upsert(keys[i], values[i]);
+                }
+            }
+
+            // The tables are opened as described and read on demand
+            final KVDao crashed = KVDaoFactory.create(data, config);
+            for (int i = 0; i < keys.length; i++) {
+                assertArrayEquals(values[i], crashed.get(keys[i]));
+            }
+            for (int i = 0; i < keys.length; i += 2) {
+                values[i] = randomValue();
+                crashed.upsert(keys[i], values[i]);
+            }
+            crash(crashed);
+
+            try (KVDao dao = KVDaoFactory.create(data, config)) {
+                for (int i = 0; i < keys.length; i++) {
+                    assertArrayEquals(values[i], dao.get(keys[i]));
+                }
+            }
+
+            // A broken manifest is ignored
+            try (Stream<Path> files = walk(data.toPath())) {
+                final Iterator<Path> manifests =
+                        files.filter(path -> path.getFileName().toString().equals("manifest")).iterator();
+                assertTrue(manifests.hasNext());
+                while (manifests.hasNext()) {
+                    write(manifests.next(), randomValue());
+                }
+            }
+            try (KVDao dao = KVDaoFactory.create(data, config)) {
+                for (int i = 0; i < keys.length; i++) {
+                    assertArrayEquals(values[i], dao.get(keys[i]));
+                }
+            }
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void merkleTreeAfterCrash() throws IOException {
+        final File data = Files.createTempDirectory();
+        // Flushes and compactions change the recorded digests meanwhile
+        final DaoConfig config = config(MEMTABLE_SIZE, Integer.toString(64 * 1024));
+        try {
+            final byte[][] keys = new byte[512][];
+            final long root;
+            final StreamingKVDao crashed = (StreamingKVDao) KVDaoFactory.create(data, config);
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = randomKey();
+                crashed.upsert(keys[i], randomValue());
+            }
+            for (int i = 0; i < keys.length; i += 3) {
+                crashed.upsert(keys[i], randomValue());
+                crashed.remove(keys[i + 1]);
+            }
+            root = crashed.merkleTree().hash(MerkleTree.ROOT);
+            crash(crashed);
+
+            // The recorded digests are advanced by the replayed updates
+            try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data, config)) {
+                assertEquals(root, dao.merkleTree().hash(MerkleTree.ROOT));
+            }
+
+            // A table the manifest doesn't describe is removed
+            final File undescribed = new File(data, Long.MAX_VALUE / 2 + ".sst");
+            try (Stream<Path> files = list(data.toPath())) {
+                final Path table =
+                        files.filter(path -> path.getFileName().toString().endsWith(".sst")).findAny().get();
+                copy(table, undescribed.toPath());
+            }
+            try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data, config)) {
+                assertFalse(undescribed.exists());
+                assertEquals(root, dao.merkleTree().hash(MerkleTree.ROOT));
+            }
+
+            // The same digests without a manifest
+            delete(new File(data, "manifest").toPath());
+            try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data, config)) {
+                assertEquals(root, dao.merkleTree().hash(MerkleTree.ROOT));
+            }
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void merkleTreeOfTiedVersions() throws IOException {
+        final File first = Files.createTempDirectory();
+        final File second = Files.createTempDirectory();
+        try (StreamingKVDao a = (StreamingKVDao) KVDaoFactory.create(first);
+             StreamingKVDao b = (StreamingKVDao) KVDaoFactory.create(second)) {
+            final byte[] key = randomKey();
+            final byte[] value = randomValue();
+            final byte[] other = value.clone();
+            other[0]++;
+            a.apply(new Batch().upsert(key, value, 42));
+            b.apply(new Batch().upsert(key, value, 42));
+            assertEquals(a.merkleTree().hash(MerkleTree.ROOT), b.merkleTree().hash(MerkleTree.ROOT));
+
+            // Values of the same length and timestamp still differ
+            final byte[] tied = randomKey();
+            a.apply(new Batch().upsert(tied, value, 42));
+            b.apply(new Batch().upsert(tied, other, 42));
+            assertFalse(a.merkleTree().hash(MerkleTree.ROOT) == b.merkleTree().hash(MerkleTree.ROOT));
+        } finally {
+            Files.recursiveDelete(first);
+            Files.recursiveDelete(second);
+        }
+    }
+
+    @Test
+    void shardedReopen() throws IOException {
+        final File data = Files.createTempDirectory();
+        final DaoConfig config = config(SHARDS, "4");
+        try {
+            final byte[][] keys = new byte[64][];
+            final byte[] value = randomValue();
+            try (StreamingKVDao dao = (StreamingKVDao) KVDaoFactory.create(data, config)) {
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = randomKey();
+                    dao.upsert(keys[i], value);
+                }
+                int count = 0;
+                for (final Iterator<Entry> entries = dao.range(new byte[0], null); entries.hasNext(); entries.next()) {
+                    count++;
+                }
+                assertEquals(keys.length, count);
+            }
+
+            try (KVDao dao = KVDaoFactory.create(data, config)) {
+                for (final byte[] key : keys) {
+                    assertArrayEquals(value, dao.get(key));
+                }
+            }
+
+            // The keys would end up in other shards
+            assertThrows(IllegalStateException.class, () -> KVDaoFactory.create(data, config(SHARDS, "2")));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void shardedSmallMemTable() throws IOException {
+        final File data = Files.createTempDirectory();
+        // A share of the memtable smaller than the largest inline value
+        final DaoConfig config = config(SHARDS, "8", MEMTABLE_SIZE, Integer.toString(64 * 1024));
+        try {
+            final byte[] key = randomKey();
+            final byte[] value = new byte[64 * 1024];
+            ThreadLocalRandom.current().nextBytes(value);
+            try (KVDao dao = KVDaoFactory.create(data, config)) {
+                dao.upsert(key, value);
+                assertArrayEquals(value, dao.get(key));
+            }
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void hashEngine() throws IOException {
+        final File data = Files.createTempDirectory();
+        // Overwrites fill many small segments, which are merged meanwhile
+        final DaoConfig config = config(ENGINE, "hash", SEGMENT_SIZE, Integer.toString(64 * 1024));
+        try {
+            final byte[][] keys = new byte[16][];
+            final byte[][] values = new byte[keys.length][];
+            try (KVDao dao = KVDaoFactory.create(data, config)) {
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = randomKey();
+                }
+                for (int round = 0; round < 100; round++) {
+                    for (int i = 0; i < keys.length; i++) {
+                        values[i] = randomValue();
+                        dao.upsert(keys[i], values[i]);
+                    }
+                }
+                dao.remove(keys[0]);
+            }
+
+            // The index is reused after a clean shutdown
+            final byte[] added = randomKey();
+            final byte[] value = randomValue();
+            final KVDao crashed = KVDaoFactory.create(data, config);
+            assertThrows(NoSuchElementException.class, () -> crashed.get(keys[0]));
+            for (int i = 1; i < keys.length; i++) {
+                assertArrayEquals(values[i], crashed.get(keys[i]));
+            }
+            crashed.upsert(added, value);
+            crashed.remove(keys[1]);
+            crash(crashed);
+
+            // The index is rebuilt after a crash
+            try (KVDao dao = KVDaoFactory.create(data, config)) {
+                assertArrayEquals(value, dao.get(added));
+                assertThrows(NoSuchElementException.class, () -> dao.get(keys[0]));
+                assertThrows(NoSuchElementException.class, () -> dao.get(keys[1]));
+                for (int i = 2; i < keys.length; i++) {
+                    assertArrayEquals(values[i], dao.get(keys[i]));
+                }
+            }
+
+            assertThrows(IllegalStateException.class, () -> KVDaoFactory.create(data, config(ENGINE, "lsm")));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
 }
@@ -24,8 +24,11 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -288,4 +291,83 @@ class SingleNodeTest extends TestBase {
             assertEquals(404, get(key).getStatus());
         });
     }
+
+    @Test
+    void batchReadOfLargeValue() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] small = randomId().getBytes(StandardCharsets.UTF_8);
+            final byte[] value = randomValue();
+            final byte[] large = randomId().getBytes(StandardCharsets.UTF_8);
+            dao.upsert(small, value);
+            dao.upsert(large, new byte[256 * 1024]);
+
+            // Not buffered for a batch
+            assertEquals(413, client.post("/v0/entities", keys(small, large)).getStatus());
+
+            final Response response = client.post("/v0/entities", keys(small));
+            assertEquals(200, response.getStatus());
+            final ByteBuffer body = ByteBuffer.wrap(response.getBody());
+            assertEquals(small.length, body.getInt());
+            body.position(body.position() + small.length);
+            assertEquals(value.length, body.getInt());
+            final byte[] read = new byte[value.length];
+            body.get(read);
+            assertArrayEquals(value, read);
+            assertFalse(body.hasRemaining());
+        });
+    }
+
+    @Test
+    void rangeOfBinaryKeys() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Not valid UTF-8 and without LF, so that the body is unambiguous
+            final byte[] prefix = concat(randomId().getBytes(StandardCharsets.UTF_8), (byte) 0xFF);
+            final byte[] first = concat(prefix, (byte) 0x00);
+            final byte[] second = concat(prefix, (byte) 0x80);
+            final byte[] end = concat(prefix, (byte) 0xFF);
+            dao.upsert(second, "second".getBytes(StandardCharsets.UTF_8));
+            dao.upsert(first, "first".getBytes(StandardCharsets.UTF_8));
+            dao.upsert(end, "end".getBytes(StandardCharsets.UTF_8));
+
+            final Response response = client.get("/v0/entities?start=" + escape(prefix) + "&end=" + escape(end));
+            assertEquals(200, response.getStatus());
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(first);
+            expected.write('\n');
+            expected.write("first".getBytes(StandardCharsets.UTF_8));
+            expected.write(second);
+            expected.write('\n');
+            expected.write("second".getBytes(StandardCharsets.UTF_8));
+            assertArrayEquals(expected.toByteArray(), response.getBody());
+        });
+    }
+
+    @NotNull
+    private static byte[] concat(
+            @NotNull final byte[] prefix,
+            final byte last) {
+        final byte[] result = new byte[prefix.length + 1];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        result[prefix.length] = last;
+        return result;
+    }
+
+    @NotNull
+    private static String escape(@NotNull final byte[] bytes) {
+        final StringBuilder result = new StringBuilder();
+        for (final byte b : bytes) {
+            result.append(String.format("%%%02X", b & 0xFF));
+        }
+        return result.toString();
+    }
+
+    @NotNull
+    private static byte[] keys(@NotNull final byte[]... keys) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (final byte[] key : keys) {
+            body.write(ByteBuffer.allocate(Integer.BYTES).putInt(key.length).array(), 0, Integer.BYTES);
+            body.write(key, 0, key.length);
+        }
+        return body.toByteArray();
+    }
 }
@@ -17,16 +17,19 @@
 package ru.mail.polis;
 
 import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -208,6 +211,92 @@ class TwoNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void hintedWrite() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Stop node 1
+            stop(1, storage1);
+
+            // Insert
+            assertEquals(201, upsert(0, key, value, 1, 2).getStatus());
+
+            // Start node 1
+            storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+            start(1, storage1);
+
+            // The hint is replayed long before anti-entropy starts
+            awaitStored(dao1, key, value);
+        });
+    }
+
+    @Test
+    void repairedRead() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Only node 0 has the value
+            dao0.upsert(key.getBytes(StandardCharsets.UTF_8), value);
+
+            // Read
+            final Response response = get(1, key, 2, 2);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            // The stale replica is repaired
+            awaitStored(dao1, key, value);
+        });
+    }
+
+    @Test
+    void range() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String prefix = randomId();
+            final byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+
+            // Insert in reverse order, the keys sharing the prefix
+            for (int i = 9; i >= 0; i--) {
+                assertEquals(201, upsert(0, prefix + i, value, 2, 2).getStatus());
+            }
+
+            // Every replica streams the keys within the bounds in order
+            for (int node = 0; node < 2; node++) {
+                final Response response = range(node, prefix + 2, prefix + 7);
+                assertEquals(200, response.getStatus());
+                final StringBuilder expected = new StringBuilder();
+                for (int i = 2; i < 7; i++) {
+                    expected.append(prefix).append(i).append('\n').append("value");
+                }
+                assertEquals(expected.toString(), new String(response.getBody(), StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    @Test
+    void expiredWrite() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Insert
+            assertEquals(201, upsert(0, key, value, 2, 2, 1).getStatus());
+            final Response response = get(1, key, 2, 2);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            // Wait for the deadline
+            Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+
+            // Check
+            assertEquals(404, get(0, key, 2, 2).getStatus());
+            assertEquals(404, get(1, key, 1, 2).getStatus());
+            assertEquals(404, get(0, key, 1, 2).getStatus());
+        });
+    }
+
     @Test
     void respectRF() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -247,4 +336,22 @@ class TwoNodeTest extends ClusterTestBase {
             assertEquals(1, copies);
         });
     }
+
+    private static void awaitStored(
+            @NotNull final KVDao dao,
+            @NotNull final String key,
+            @NotNull final byte[] value) throws Exception {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (true) {
+            try {
+                assertArrayEquals(value, dao.get(key.getBytes(StandardCharsets.UTF_8)));
+                return;
+            } catch (NoSuchElementException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
 }
@@ -0,0 +1,136 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the eviction and the pinning of the {@link BlockCache}
+ */
+class BlockCacheTest {
+    private static final int SLOT_SIZE = 1024;
+
+    /**
+     * Slots per shard, 8 of them protected
+     */
+    private static final int SLOTS = 10;
+    private static final int SHARDS = 16;
+    private static final long CAPACITY = (long) SLOT_SIZE * SLOTS * SHARDS;
+
+    @Test
+    void cachedCopy() {
+        final BlockCache cache = new BlockCache(CAPACITY, SLOT_SIZE);
+        assertNull(cache.get(1, 0));
+        put(cache, 1, 0).release();
+
+        final BlockCache.Block block = cache.get(1, 0);
+        assertNotNull(block);
+        assertEquals(block(1, 0), block.data());
+        block.release();
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    void largeBlockNotCached() {
+        final BlockCache cache = new BlockCache(CAPACITY, SLOT_SIZE);
+        assertNull(cache.put(1, 0, ByteBuffer.allocate(SLOT_SIZE + 1)));
+        assertNull(cache.get(1, 0));
+    }
+
+    @Test
+    void scanKeepsHotBlocks() {
+        final BlockCache cache = new BlockCache(CAPACITY, SLOT_SIZE);
+        // Hit twice, so protected
+        final int hot = SLOTS / 2;
+        for (int i = 0; i < hot; i++) {
+            put(cache, 1, i).release();
+            cache.get(1, i).release();
+        }
+
+        // One-off reads of many more blocks than fit
+        for (int i = 0; i < SLOTS * SHARDS * 10; i++) {
+            final BlockCache.Block block = cache.put(2, i, block(2, i));
+            if (block != null) {
+                block.release();
+            }
+        }
+
+        for (int i = 0; i < hot; i++) {
+            final BlockCache.Block block = cache.get(1, i);
+            assertNotNull(block, "Hot block " + i + " has been evicted");
+            assertEquals(block(1, i), block.data());
+            block.release();
+        }
+        // Evicted rather than kept by the probation
+        assertNull(cache.get(2, 0));
+    }
+
+    @Test
+    void pinnedBlocksStay() {
+        final BlockCache cache = new BlockCache(CAPACITY, SLOT_SIZE);
+        final List<BlockCache.Block> pinned = new ArrayList<>();
+        final List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < SLOTS * SHARDS * 10; i++) {
+            final BlockCache.Block block = cache.put(1, i, block(1, i));
+            if (block != null) {
+                pinned.add(block);
+                indexes.add(i);
+            }
+        }
+        // No slot is evicted while it is pinned
+        assertEquals(SLOTS * SHARDS, pinned.size());
+        for (int i = 0; i < pinned.size(); i++) {
+            assertEquals(block(1, indexes.get(i)), pinned.get(i).data());
+        }
+
+        for (final BlockCache.Block block : pinned) {
+            block.release();
+        }
+        // The released slots are reused
+        for (int i = 0; i < SLOTS * SHARDS; i++) {
+            final BlockCache.Block block = cache.put(2, i, block(2, i));
+            assertNotNull(block);
+            block.release();
+        }
+        int kept = 0;
+        for (final int index : indexes) {
+            final BlockCache.Block block = cache.get(1, index);
+            if (block != null) {
+                kept++;
+                block.release();
+            }
+        }
+        assertTrue(kept < indexes.size());
+    }
+
+    @NotNull
+    private static BlockCache.Block put(
+            @NotNull final BlockCache cache,
+            final long generation,
+            final int blockIndex) {
+        final BlockCache.Block block = cache.put(generation, blockIndex, block(generation, blockIndex));
+        assertNotNull(block);
+        return block;
+    }
+
+    @NotNull
+    private static ByteBuffer block(
+            final long generation,
+            final int blockIndex) {
+        final ByteBuffer result = ByteBuffer.allocate(SLOT_SIZE / 2);
+        while (result.hasRemaining()) {
+            result.putLong(generation).putInt(blockIndex).putInt(result.position());
+        }
+        result.flip();
+        return result;
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the {@link BloomFilter} of a table
+ */
+class BloomFilterTest {
+    private static final int KEYS = 10_000;
+    private static final int BITS_PER_KEY = 10;
+
+    @Test
+    void noFalseNegatives() {
+        final BloomFilter filter = filter(KEYS, BITS_PER_KEY);
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain(key(i)));
+        }
+    }
+
+    @Test
+    void fewFalsePositives() {
+        final BloomFilter filter = filter(KEYS, BITS_PER_KEY);
+        int positives = 0;
+        for (int i = KEYS; i < 2 * KEYS; i++) {
+            if (filter.mightContain(key(i))) {
+                positives++;
+            }
+        }
+        // About 1% for 10 bits per key
+        assertTrue(positives < KEYS * 2 / 100, "False positives: " + positives);
+    }
+
+    @Test
+    void disabled() {
+        assertEquals(0, BloomFilter.sizeInBytes(KEYS, 0));
+        final BloomFilter filter = BloomFilter.wrap(Bytes.EMPTY, BloomFilter.hashFunctions(0));
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain(key(i)));
+        }
+    }
+
+    @Test
+    void absentKeysSkipTheBlocks() throws IOException {
+        final File file = File.createTempFile("highload-kv", SSTable.SUFFIX);
+        try {
+            // Even keys only, so the odd ones are within the bounds of the table
+            final List<Cell> cells = new ArrayList<>(KEYS);
+            for (int i = 0; i < KEYS; i++) {
+                cells.add(new Cell(tableKey(2 * i), Value.of(ByteBuffer.wrap(new byte[16]), 1)));
+            }
+            SSTableWriter.write(file, cells.iterator(), 0, 1, Long.MAX_VALUE, 4 * 1024, BITS_PER_KEY);
+            final BlockCache cache = new BlockCache(1024 * 1024, 8 * 1024);
+            final SSTable table = SSTable.open(file, 1, cache);
+            try {
+                for (int i = 0; i < KEYS; i++) {
+                    assertNull(table.get(tableKey(2 * i + 1)));
+                }
+                // Only the false positives read a block
+                assertTrue(cache.misses() < KEYS * 2 / 100, "Blocks read: " + cache.misses());
+                for (int i = 0; i < KEYS; i++) {
+                    assertNotNull(table.get(tableKey(2 * i)));
+                }
+            } finally {
+                table.close();
+            }
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @NotNull
+    private static BloomFilter filter(
+            final int keys,
+            final int bitsPerKey) {
+        final ByteBuffer words = ByteBuffer.allocate((int) BloomFilter.sizeInBytes(keys, bitsPerKey));
+        final int hashFunctions = BloomFilter.hashFunctions(bitsPerKey);
+        for (int i = 0; i < keys; i++) {
+            BloomFilter.add(words, hashFunctions, BloomFilter.hash(key(i)));
+        }
+        return BloomFilter.wrap(words, hashFunctions);
+    }
+
+    @NotNull
+    private static ByteBuffer tableKey(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(("key" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
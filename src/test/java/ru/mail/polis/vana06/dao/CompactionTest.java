@@ -0,0 +1,215 @@
+package ru.mail.polis.vana06.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Unit tests for the compaction of the tables of {@link LSMDao}
+ */
+class CompactionTest {
+    private static final int KEYS = 1000;
+    private static final int VALUE_LENGTH = 100;
+
+    /**
+     * Tables flushed before a compaction is triggered by either policy
+     */
+    private static final int FLUSHES = 4;
+
+    private File data;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        data = Files.createTempDirectory("highload-kv").toFile();
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        try (Stream<Path> paths = Files.walk(data.toPath())) {
+            for (final Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void tiered() throws IOException {
+        final DaoConfig config = config("kv.compaction.policy", "tiered");
+        fill(config);
+
+        try (LSMDao dao = new LSMDao(data, config)) {
+            await(dao, tables -> tables.size() == 1);
+            check(dao);
+        }
+        try (LSMDao dao = new LSMDao(data, config)) {
+            assertEquals(1, dao.tables().size());
+            check(dao);
+        }
+    }
+
+    @Test
+    void leveled() throws IOException {
+        final DaoConfig config = config(
+                "kv.compaction.policy", "leveled",
+                "kv.compaction.table.size", Integer.toString(16 * 1024));
+        fill(config);
+
+        try (LSMDao dao = new LSMDao(data, config)) {
+            await(dao, tables -> tables.stream().allMatch(table -> table.level() > 0));
+            // The tables of a level don't overlap and are bounded in size
+            final List<SSTable> level = new ArrayList<>(dao.tables());
+            assertTrue(level.size() > 1);
+            level.sort(Comparator.comparing(SSTable::minKey, Bytes.COMPARATOR));
+            for (int i = 1; i < level.size(); i++) {
+                assertTrue(Bytes.COMPARATOR.compare(level.get(i - 1).maxKey(), level.get(i).minKey()) < 0);
+            }
+            check(dao);
+        }
+        try (LSMDao dao = new LSMDao(data, config)) {
+            assertTrue(dao.tables().stream().allMatch(table -> table.level() > 0));
+            check(dao);
+        }
+    }
+
+    @Test
+    void tombstonePurgedAfterGrace() throws IOException {
+        final DaoConfig config = config("kv.tombstone.grace", "0");
+        fill(config);
+
+        try (LSMDao dao = new LSMDao(data, config)) {
+            await(dao, tables -> tables.size() == 1);
+            for (int i = 0; i < KEYS; i++) {
+                if (removed(i)) {
+                    assertNull(dao.getWithMeta(key(i)));
+                }
+            }
+            check(dao);
+        }
+    }
+
+    @Test
+    void tombstoneKeptWithinGrace() throws IOException {
+        final DaoConfig config = config("kv.tombstone.grace", Long.toString(TimeUnit.HOURS.toMillis(1)));
+        fill(config);
+
+        try (LSMDao dao = new LSMDao(data, config)) {
+            await(dao, tables -> tables.size() == 1);
+            for (int i = 0; i < KEYS; i++) {
+                if (removed(i)) {
+                    // Still there for the replicas which have missed the delete
+                    final Record record = dao.getWithMeta(key(i));
+                    assertNotNull(record);
+                    assertTrue(record.isTombstone());
+                }
+            }
+            check(dao);
+        }
+    }
+
+    /**
+     * Flushes a table on every close: the values of all the keys, then the tombstones
+     * of the removed keys, and then the newer values of the rest of the keys
+     */
+    private void fill(@NotNull final DaoConfig config) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 0));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                if (removed(i)) {
+                    dao.remove(key(i));
+                }
+            }
+        }
+        for (int round = 1; round < FLUSHES - 1; round++) {
+            try (LSMDao dao = new LSMDao(data, config)) {
+                for (int i = 0; i < KEYS; i++) {
+                    if (!removed(i)) {
+                        dao.upsert(key(i), value(i, round));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void check(@NotNull final LSMDao dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final Record record = dao.getWithMeta(key(i));
+            if (removed(i)) {
+                assertTrue(record == null || record.isTombstone());
+            } else {
+                assertArrayEquals(value(i, FLUSHES - 2), dao.get(key(i)));
+            }
+        }
+    }
+
+    private static void await(
+            @NotNull final LSMDao dao,
+            @NotNull final Predicate<List<SSTable>> compacted) {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!compacted.test(dao.tables())) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Tables haven't been compacted");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+    }
+
+    private static boolean removed(final int i) {
+        return i % 3 == 0;
+    }
+
+    @NotNull
+    private static byte[] key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(i).array();
+    }
+
+    @NotNull
+    private static byte[] value(
+            final int i,
+            final int round) {
+        final byte[] result = new byte[VALUE_LENGTH];
+        ByteBuffer.wrap(result).putInt(i).putInt(round);
+        return result;
+    }
+
+    /**
+     * @param properties names and values of the {@code kv.*} tunables
+     */
+    @NotNull
+    private static DaoConfig config(@NotNull final String... properties) {
+        final Properties result = new Properties();
+        for (int i = 0; i < properties.length; i += 2) {
+            result.setProperty(properties[i], properties[i + 1]);
+        }
+        return DaoConfig.fromProperties(result);
+    }
+}
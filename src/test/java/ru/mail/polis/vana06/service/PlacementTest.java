@@ -0,0 +1,152 @@
+package ru.mail.polis.vana06.service;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.vana06.dao.MerkleTree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the consistent hashing of the keys by {@link Placement}
+ */
+class PlacementTest {
+    private static final int KEYS = 5000;
+    private static final int NODES = 4;
+
+    @Test
+    void walkVisitsEveryNodeOnce() {
+        final List<String> nodes = nodes(NODES);
+        final Placement placement = new Placement(nodes);
+        for (final byte[] key : keys()) {
+            final String[] walk = placement.replicas(key);
+            assertEquals(NODES, walk.length);
+            assertEquals(new HashSet<>(nodes), new HashSet<>(Arrays.asList(walk)));
+        }
+    }
+
+    @Test
+    void sameRingOnEveryNode() {
+        final List<String> nodes = nodes(NODES);
+        final List<String> shuffled = new ArrayList<>(nodes);
+        Collections.shuffle(shuffled, new Random(42));
+        final Placement placement = new Placement(nodes);
+        final Placement other = new Placement(shuffled);
+        for (final byte[] key : keys()) {
+            assertArrayEquals(placement.replicas(key), other.replicas(key));
+        }
+    }
+
+    @Test
+    void fewerReplicasArePrefix() {
+        final List<String> nodes = nodes(NODES);
+        final Placement placement = new Placement(nodes);
+        for (int from = 1; from < NODES; from++) {
+            final BitSet smaller = placement.shared(nodes.get(0), nodes.get(1), from);
+            final BitSet larger = placement.shared(nodes.get(0), nodes.get(1), from + 1);
+            final BitSet notInLarger = (BitSet) smaller.clone();
+            notInLarger.andNot(larger);
+            assertTrue(notInLarger.isEmpty(), "Leaves shared by " + from + " replicas are shared by more");
+        }
+        assertEquals(MerkleTree.LEAVES, placement.shared(nodes.get(0), nodes.get(1), NODES).cardinality());
+    }
+
+    @Test
+    void addedNodeTakesItsShare() {
+        final List<String> nodes = nodes(NODES);
+        final List<String> grown = nodes(NODES + 1);
+        final String added = grown.get(NODES);
+        final Placement before = new Placement(nodes);
+        final Placement after = new Placement(grown);
+
+        int moved = 0;
+        for (final byte[] key : keys()) {
+            for (int from = 1; from <= NODES; from++) {
+                final Set<String> old = replicas(before, key, from);
+                final Set<String> now = replicas(after, key, from);
+                if (!now.contains(added)) {
+                    assertEquals(old, now);
+                } else {
+                    // The new node replaces a single replica
+                    now.remove(added);
+                    assertTrue(old.containsAll(now));
+                }
+            }
+            if (!before.replicas(key)[0].equals(after.replicas(key)[0])) {
+                assertEquals(added, after.replicas(key)[0]);
+                moved++;
+            }
+        }
+        assertShare(moved, NODES + 1);
+    }
+
+    @Test
+    void removedNodeGivesAwayItsShare() {
+        final List<String> nodes = nodes(NODES);
+        final String removed = nodes.get(1);
+        final List<String> shrunk = new ArrayList<>(nodes);
+        shrunk.remove(removed);
+        final Placement before = new Placement(nodes);
+        final Placement after = new Placement(shrunk);
+
+        int moved = 0;
+        for (final byte[] key : keys()) {
+            final List<String> walk = new ArrayList<>(Arrays.asList(before.replicas(key)));
+            walk.remove(removed);
+            // The walk of the rest of the nodes is kept
+            assertEquals(walk, Arrays.asList(after.replicas(key)));
+            if (before.replicas(key)[0].equals(removed)) {
+                moved++;
+            }
+        }
+        assertShare(moved, NODES);
+    }
+
+    private static void assertShare(
+            final int moved,
+            final int nodes) {
+        final double share = (double) moved / KEYS;
+        final double expected = 1.0 / nodes;
+        assertTrue(
+                share > expected / 2 && share < expected * 1.5,
+                "Moved " + share + " of the keys instead of about " + expected);
+    }
+
+    @NotNull
+    private static Set<String> replicas(
+            @NotNull final Placement placement,
+            @NotNull final byte[] key,
+            final int from) {
+        return new HashSet<>(Arrays.asList(placement.replicas(key)).subList(0, from));
+    }
+
+    @NotNull
+    private static List<String> nodes(final int count) {
+        final List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add("http://localhost:" + (8080 + i));
+        }
+        return result;
+    }
+
+    @NotNull
+    private static List<byte[]> keys() {
+        final Random random = new Random(42);
+        final List<byte[]> result = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            result.add(Long.toHexString(random.nextLong()).getBytes(StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+}